@@ -0,0 +1,163 @@
+package ch.epfl.biop.ij2command;
+
+import ch.epfl.biop.omero.export.OmeroN5Exporter;
+import ch.epfl.biop.omero.omerosource.OmeroSourceOpener;
+import net.imagej.ImageJ;
+import omero.gateway.Gateway;
+import omero.gateway.SecurityContext;
+import omero.gateway.model.ImageData;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import static ch.epfl.biop.ij2command.OmeroTools.getSecurityContext;
+
+/**
+ * Headless command which mirrors all images of an OMERO dataset into a local folder,
+ * one OME-Zarr or N5 container per image.
+ *
+ * Several images are downloaded at the same time, but the total number of tiles being fetched or written
+ * is bounded by a single limit shared by all images, which also bounds the memory used.
+ * Images already complete are skipped, and partially written images are resumed from their missing tiles,
+ * so the command can simply be run again after an interruption.
+ */
+@Plugin(type = Command.class, menuPath = "Plugins>BIOP>Download OMERO dataset to OME-Zarr or N5", headless = true)
+public class OmeroDownloadDatasetCommand implements Command {
+
+    @Parameter(label = "OMERO host")
+    String host;
+
+    @Parameter(label = "Enter your gaspar username")
+    String username;
+
+    @Parameter(label = "Enter your gaspar password", style = "password", persist = false)
+    String password;
+
+    @Parameter(label = "Enter the ID of your OMERO dataset")
+    long datasetID;
+
+    @Parameter(label = "Output folder", style = "directory")
+    File output;
+
+    @Parameter(label = "Format", choices = {"OME-Zarr", "N5"})
+    String format = "OME-Zarr";
+
+    @Parameter(label = "Number of images downloaded in parallel")
+    int nImagesInParallel = 4;
+
+    @Parameter(label = "Number of threads per image")
+    int nThreadsPerImage = 4;
+
+    @Parameter(label = "Maximal number of tiles in flight (all images)")
+    int maxTilesInFlight = 32;
+
+    static int port = 4064;
+
+    @Override
+    public void run() {
+        try {
+            Gateway gateway = OmeroTools.omeroConnect(host, port, username, password);
+            System.out.println( "Session active : "+gateway.isConnected() );
+            SecurityContext ctx = getSecurityContext(gateway);
+
+            OmeroN5Exporter.Format n5Format = format.equals("N5") ? OmeroN5Exporter.Format.N5 : OmeroN5Exporter.Format.ZARR;
+            String extension = format.equals("N5") ? ".n5" : ".zarr";
+            // shared by all exporters : bounds the number of requests to the server and the tiles held in memory
+            Semaphore inFlight = new Semaphore(maxTilesInFlight);
+            ExecutorService executor = Executors.newFixedThreadPool(nImagesInParallel);
+
+            try {
+                Collection<ImageData> images = OmeroTools.getImagesFromDataset(gateway, datasetID);
+                System.out.println("Downloading " + images.size() + " images of dataset " + datasetID + " to " + output.getAbsolutePath());
+                output.mkdirs();
+
+                List<Future<Boolean>> futures = new ArrayList<>();
+                for (ImageData image : images) {
+                    long imageID = image.getId();
+                    String path = new File(output, "omero_" + imageID + extension).getAbsolutePath();
+                    futures.add(executor.submit(() -> download(gateway, ctx, imageID, path, n5Format, inFlight)));
+                }
+
+                int nFailed = 0;
+                for (Future<Boolean> future : futures) {
+                    if (!future.get()) nFailed++;
+                }
+                System.out.println("Dataset " + datasetID + " downloaded : " + (futures.size() - nFailed) + " images complete, "
+                        + nFailed + " failed (run the command again to resume them)");
+            } finally {
+                executor.shutdownNow();
+                System.out.println( "Disconnecting...");
+                gateway.disconnect();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Downloads one image, errors are reported without stopping the other images
+     * @return true if the image is completely written on disk
+     */
+    boolean download(Gateway gateway, SecurityContext ctx, long imageID, String path,
+                     OmeroN5Exporter.Format n5Format, Semaphore inFlight) {
+        if (OmeroN5Exporter.isComplete(path, n5Format)) {
+            System.out.println("Image " + imageID + " already downloaded in " + path);
+            return true;
+        }
+        try {
+            OmeroSourceOpener opener = new OmeroSourceOpener()
+                    .imageID(imageID)
+                    .gateway(gateway)
+                    .securityContext(ctx)
+                    .micrometer()
+                    .create();
+
+            try {
+                OmeroN5Exporter exporter = new OmeroN5Exporter(opener)
+                        .path(path)
+                        .format(n5Format)
+                        .nThreads(nThreadsPerImage)
+                        .inFlightLimit(inFlight);
+                exporter.export();
+
+                System.out.println("Image " + imageID + " downloaded in " + path
+                        + " : " + exporter.getWrittenBlocks() + " blocks written, "
+                        + exporter.getSkippedBlocks() + " blocks already present");
+                return true;
+            } finally {
+                // the rawPixelsStores of this image are not needed by the next images
+                opener.closeStores();
+            }
+        } catch (Exception e) {
+            System.err.println("Error while downloading image " + imageID + " : " + e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * This main function serves for development purposes.
+     * It allows you to run the plugin immediately out of
+     * your integrated development environment (IDE).
+     *
+     * @param args whatever, it's ignored
+     * @throws Exception
+     */
+    public static void main(final String... args) throws Exception {
+        // create the ImageJ application context with all available services
+        final ImageJ ij = new ImageJ();
+        ij.ui().showUI();
+
+        ij.command().run(OmeroDownloadDatasetCommand.class, true);
+    }
+
+}
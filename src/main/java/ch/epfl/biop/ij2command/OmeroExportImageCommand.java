@@ -0,0 +1,118 @@
+package ch.epfl.biop.ij2command;
+
+import ch.epfl.biop.omero.export.OmeroBdvHdf5Exporter;
+import ch.epfl.biop.omero.export.OmeroN5Exporter;
+import ch.epfl.biop.omero.omerosource.OmeroSourceOpener;
+import ch.epfl.biop.omero.process.ForegroundMask;
+import net.imagej.ImageJ;
+import omero.gateway.Gateway;
+import omero.gateway.SecurityContext;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.File;
+
+import static ch.epfl.biop.ij2command.OmeroTools.getSecurityContext;
+
+/**
+ * Headless command which exports all resolution levels of an OMERO image
+ * into a local OME-Zarr or N5 container, or into a BigDataViewer HDF5 / XML dataset.
+ * Running it again on the same OME-Zarr or N5 output resumes an interrupted export.
+ */
+@Plugin(type = Command.class, menuPath = "Plugins>BIOP>Export OMERO image to OME-Zarr, N5 or BDV HDF5", headless = true)
+public class OmeroExportImageCommand implements Command {
+
+    @Parameter(label = "OMERO host")
+    String host;
+
+    @Parameter(label = "Enter your gaspar username")
+    String username;
+
+    @Parameter(label = "Enter your gaspar password", style = "password", persist = false)
+    String password;
+
+    @Parameter(label = "Enter the ID of your OMERO image")
+    long imageID;
+
+    @Parameter(label = "Output container (or folder of the BDV xml file)", style = "directory")
+    File output;
+
+    @Parameter(label = "Format", choices = {"OME-Zarr", "N5", "BDV HDF5"})
+    String format = "OME-Zarr";
+
+    @Parameter(label = "Number of threads")
+    int nThreads = 4;
+
+    @Parameter(label = "Background tiles (OME-Zarr and N5)", choices = {"Export", "Skip - fluorescence", "Skip - brightfield"})
+    String background = "Export";
+
+    static int port = 4064;
+
+    @Override
+    public void run() {
+        try {
+            Gateway gateway = OmeroTools.omeroConnect(host, port, username, password);
+            System.out.println( "Session active : "+gateway.isConnected() );
+            SecurityContext ctx = getSecurityContext(gateway);
+
+            try {
+                OmeroSourceOpener opener = new OmeroSourceOpener()
+                        .imageID(imageID)
+                        .gateway(gateway)
+                        .securityContext(ctx)
+                        .micrometer()
+                        .create();
+
+                if (format.equals("BDV HDF5")) {
+                    File xmlFile = new File(output, "omero_" + imageID + ".xml");
+                    new OmeroBdvHdf5Exporter(opener)
+                            .xmlFile(xmlFile)
+                            .nThreads(nThreads)
+                            .export();
+                    System.out.println("Exported image " + imageID + " to " + xmlFile.getAbsolutePath());
+                } else {
+                    OmeroN5Exporter exporter = new OmeroN5Exporter(opener)
+                            .path(output.getAbsolutePath())
+                            .format(format.equals("N5") ? OmeroN5Exporter.Format.N5 : OmeroN5Exporter.Format.ZARR)
+                            .nThreads(nThreads);
+                    if (!background.equals("Export")) {
+                        ForegroundMask foreground = new ForegroundMask(opener);
+                        if (background.equals("Skip - brightfield")) foreground.darkForeground();
+                        exporter.skipBackground(foreground.compute());
+                        System.out.println("Foreground of image " + imageID + " : "
+                                + Math.round(100 * foreground.getForegroundFraction()) + "%");
+                    }
+                    exporter.export();
+
+                    System.out.println("Exported image " + imageID + " to " + output.getAbsolutePath()
+                            + " : " + exporter.getWrittenBlocks() + " blocks written, "
+                            + exporter.getSkippedBlocks() + " blocks already present, "
+                            + exporter.getBackgroundBlocks() + " background blocks filled");
+                }
+            } finally {
+                System.out.println( "Disconnecting...");
+                gateway.disconnect();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * This main function serves for development purposes.
+     * It allows you to run the plugin immediately out of
+     * your integrated development environment (IDE).
+     *
+     * @param args whatever, it's ignored
+     * @throws Exception
+     */
+    public static void main(final String... args) throws Exception {
+        // create the ImageJ application context with all available services
+        final ImageJ ij = new ImageJ();
+        ij.ui().showUI();
+
+        ij.command().run(OmeroExportImageCommand.class, true);
+    }
+
+}
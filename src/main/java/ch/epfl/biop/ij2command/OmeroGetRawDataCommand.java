@@ -1,29 +1,30 @@
 package ch.epfl.biop.ij2command;
 
+import ch.epfl.biop.omero.extract.HypercubeReader;
+import ch.epfl.biop.omero.extract.PointSampler;
+import ch.epfl.biop.omero.omerosource.OmeroSourceOpener;
 import ij.IJ;
 import net.imagej.ImageJ;
-import omero.api.RawPixelsStorePrx;
 import omero.gateway.Gateway;
 import omero.gateway.LoginCredentials;
 import omero.gateway.SecurityContext;
 import omero.gateway.facility.BrowseFacility;
-import omero.gateway.facility.RawDataFacility;
 import omero.gateway.model.ExperimenterData;
 import omero.gateway.model.ImageData;
-import omero.gateway.model.PixelsData;
-import omero.gateway.rnd.Plane2D;
 import omero.log.Logger;
 import omero.log.SimpleLogger;
 import omero.model.IObject;
-import omero.util.ReadOnlyByteArray;
 import org.scijava.command.Command;
 import org.scijava.platform.PlatformService;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 import org.scijava.ui.UIService;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 /**
  * TODO
@@ -63,6 +64,12 @@ public class OmeroGetRawDataCommand implements Command {
     @Parameter
     int x,y;
 
+    @Parameter(label = "Raw output file (XYZCT, big endian)", style = "save")
+    File rawFile;
+
+    @Parameter(label = "Number of threads")
+    int nThreads = 4;
+
 
     @Override
     public void run() {
@@ -91,62 +98,35 @@ public class OmeroGetRawDataCommand implements Command {
             BrowseFacility browse = gateway.getFacility(BrowseFacility.class);
             ImageData image = browse.getImage(ctx, imageID);
 
-            byte[] bytes  = new byte[500];
-            ReadOnlyByteArray readOnlyByteArray = new ReadOnlyByteArray(bytes, 0,500);
-
-            try (RawDataFacility rdf = gateway.getFacility(RawDataFacility.class)) {
-                PixelsData pixels = image.getDefaultPixels();
-                int sizeZ = pixels.getSizeZ();
-                int sizeT = pixels.getSizeT();
-                int sizeC = pixels.getSizeC();
+            OmeroSourceOpener opener = new OmeroSourceOpener()
+                    .imageData(image)
+                    .gateway(gateway)
+                    .securityContext(ctx)
+                    .micrometer()
+                    .create();
 
-                Plane2D p;
-                /*for (int z = 0; z < sizeZ; z++)
-                    for (int t = 0; t < sizeT; t++)
-                        for (int c = 0; c < sizeC; c++) {
-
-                        }*/
-
-                p = rdf.getPlane(ctx, pixels, 0, 0, 0);
-                p.getPixelValue(x,y);
-                System.out.println("pix v = "+p.getPixelValue(x,y));
-            }
+            // a single pixel only needs a 1x1 request, not the whole plane
+            double[] values = new PointSampler(opener).sample(0, new long[]{x}, new long[]{y}, 0, 0, 0);
+            System.out.println("pix v = "+values[0]);
 
 
             //------------------- OK
 
-            PixelsData pixels = image.getDefaultPixels();
-            long pixelsId = pixels.getId();
-//offset values in each dimension XYZCT
-            List<Integer> offset = new ArrayList<Integer>();
-            int n = 5;
-            for (int i = 0; i < n; i++) {
-                offset.add(i, 0);
-            }
-
-            List<Integer> size = new ArrayList<Integer>();
-            size.add(pixels.getSizeX());
-            size.add(pixels.getSizeY());
-            size.add(pixels.getSizeZ());
-            size.add(pixels.getSizeC());
-            size.add(pixels.getSizeT());
-
-//indicate the step in each direction, step = 1,
-//will return values at index 0, 1, 2.
-//step = 2, values at index 0, 2, 4 etc.
-            List<Integer> step = new ArrayList<Integer>();
-            for (int i = 0; i < n; i++) {
-                step.add(i, 1);
-            }
-            RawPixelsStorePrx store = null;
-            try {
-                store = gateway.getPixelsStore(ctx);
-                store.setPixelsId(pixelsId, false);
-                byte[] values = store.getHypercube(offset, size, step);
-                //Do something
-            } finally {
-                store.close();
+            // the whole XYZCT hypercube, streamed in chunks small enough for the server
+            int[] offset = new int[]{0, 0, 0, 0, 0};
+            int[] size = new int[]{opener.getSizeX(0), opener.getSizeY(0), opener.getSizeZ(0), opener.getSizeC(), opener.getSizeT()};
+            HypercubeReader reader = new HypercubeReader(opener).nThreads(nThreads);
+            long nBytes = 0;
+            try (InputStream in = reader.openStream(0, offset, size);
+                 OutputStream out = new BufferedOutputStream(new FileOutputStream(rawFile))) {
+                byte[] buffer = new byte[1 << 16];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                    nBytes += n;
+                }
             }
+            System.out.println("Wrote " + nBytes + " bytes (XYZCT, " + opener.getPixelType() + ", big endian) to " + rawFile.getAbsolutePath());
 
 
             //openImagePlus(host,username,password,groupID,imageID);
@@ -1,25 +1,39 @@
 package ch.epfl.biop.ij2command;
 
 
-import bdv.util.BdvFunctions;
-import bdv.util.BdvOptions;
-import bdv.util.BdvStackSource;
+import bdv.util.volatiles.SharedQueue;
+import ch.epfl.biop.omero.omerosource.ThumbnailBatchLoader;
+import ch.epfl.biop.omero.scene.OmeroLazyScene;
 import net.imagej.ImageJ;
-import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.converter.read.BiConvertedRandomAccessibleInterval;
-import net.imglib2.position.FunctionRealRandomAccessible;
+import net.imglib2.RealInterval;
 import net.imglib2.realtransform.AffineTransform3D;
-import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.ARGBType;
 import omero.gateway.Gateway;
+import omero.gateway.SecurityContext;
 import omero.gateway.model.ImageData;
-import omero.gateway.model.PixelsData;
 import org.scijava.command.Command;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
-
-import java.util.Collection;
-
-//New class for displaying all images from an OMERO Dataset in a tiled manner in BDV
+import sc.fiji.bdvpg.scijava.services.SourceAndConverterBdvDisplayService;
+import sc.fiji.bdvpg.sourceandconverter.display.BrightnessAutoAdjuster;
+import sc.fiji.bdvpg.sourceandconverter.display.ColorChanger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static ch.epfl.biop.ij2command.OmeroTools.getSecurityContext;
+
+/**
+ * Displays all images of an OMERO Dataset in a mosaic in BDV.
+ *
+ * Images are placed on a grid or at their stage position. Each image is opened lazily with an
+ * {@link ch.epfl.biop.omero.omerosource.OmeroSourceOpener} when it first becomes visible, and only the
+ * images intersecting the view are rendered, see {@link OmeroLazyScene}. All openers share the session and
+ * the fetching queue, and their rawPixelsStores are only opened when needed.
+ */
 @Plugin(type = Command.class, menuPath = "Plugins>BIOP>OpenDataset")
 public class OmeroOpenDatasetCommand implements Command {
 
@@ -36,49 +50,101 @@ public class OmeroOpenDatasetCommand implements Command {
     @Parameter(label = "Enter the ID of your OMERO dataset")
     long datasetID;
 
+    @Parameter(label = "Place images", choices = {"Grid", "Stage position"})
+    String layout = "Grid";
+
+    @Parameter
+    boolean autocontrast;
+
+    @Parameter(label = "Use thumbnails as coarsest level")
+    boolean thumbnailLevel = true;
+
+    @Parameter(label = "Number of images opened in parallel")
+    int nThreads = 8;
+
+    @Parameter(label = "Number of fetching threads (all images)")
+    int nFetchingThreads = 8;
+
     static int port = 4064;
 
+    // space between two images of the mosaic, relative to the size of the largest image
+    static double spacing = 0.05;
+
+    @Parameter
+    SourceAndConverterBdvDisplayService sacDisplayService;
+
     @Override
     public void run() {
-        // Run the function
         // Connect to Omero
         // https://downloads.openmicroscopy.org/omero/5.4.10/api/omero/gateway/Gateway.html
         try {
-        Gateway gateway =  OmeroTools.omeroConnect(host, port, username, password);
-        System.out.println( "Session active : "+gateway.isConnected() );
-        Collection<ImageData> images = OmeroTools.getImagesFromDataset(gateway, datasetID);
-        gateway.disconnect();
-
-        int imageOffset = 0;
-        double[] translationvector = new double[3];
-
-
-        RandomAccessibleInterval volatilerandomAccessible = null;
-        BdvStackSource bss = null;
-        //bdvOptions.addTo(bss.getBdvHandle());
-
-        for (ImageData img : images){
-            long imageID = img.getId();
-            volatilerandomAccessible = OmeroTools.openRandomAccessibleInterval(host, username, password, imageID, true);
-
-            if (imageOffset == 0) {
-                bss = BdvFunctions.show(volatilerandomAccessible,"OMERO Dataset");
+            Gateway gateway =  OmeroTools.omeroConnect(host, port, username, password);
+            System.out.println( "Session active : "+gateway.isConnected() );
+            SecurityContext ctx = getSecurityContext(gateway);
+            List<ImageData> images = new ArrayList<>(OmeroTools.getImagesFromDataset(gateway, datasetID));
+
+            // images are only opened when they become visible
+            OmeroLazyScene scene = new OmeroLazyScene(gateway, ctx)
+                    // a single queue for all images, to bound the number of fetching threads
+                    .sharedQueue(new SharedQueue(nFetchingThreads, 4))
+                    .nThreads(nThreads)
+                    .sourceInitializer((sac, c) -> {
+                        new ColorChanger(sac, new ARGBType(ARGBType.rgba(255*(c%8), 255*((c+1)%2), 255*(c%2), 255 ))).run();
+                        //handle autocontrast option, it fetches the lowest resolution of the image
+                        if (autocontrast) {
+                            new BrightnessAutoAdjuster(sac, 0).run();
+                        }
+                    });
+
+            if (layout.equals("Stage position")) {
+                // one round trip per image, done in parallel
+                ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+                try {
+                    List<Future<double[]>> positions = new ArrayList<>();
+                    for (ImageData image : images) {
+                        positions.add(executor.submit(() -> OmeroTools.getStagePosition(gateway, ctx, image.getId())));
+                    }
+                    for (int i = 0; i < images.size(); i++) {
+                        AffineTransform3D position = new AffineTransform3D();
+                        position.translate(positions.get(i).get());
+                        scene.add(images.get(i), position);
+                    }
+                } finally {
+                    executor.shutdown();
+                }
+            } else {
+                // mosaic grid : all cells have the size of the largest image
+                double cellX = 0;
+                double cellY = 0;
+                for (ImageData image : images) {
+                    RealInterval bounds = OmeroLazyScene.getBounds(image.getDefaultPixels(), new AffineTransform3D());
+                    cellX = Math.max(cellX, bounds.realMax(0));
+                    cellY = Math.max(cellY, bounds.realMax(1));
+                }
+                cellX *= 1 + spacing;
+                cellY *= 1 + spacing;
+                int nColumns = (int) Math.ceil(Math.sqrt(images.size()));
+                for (int i = 0; i < images.size(); i++) {
+                    AffineTransform3D position = new AffineTransform3D();
+                    position.translate((i % nColumns) * cellX, (i / nColumns) * cellY, 0);
+                    scene.add(images.get(i), position);
+                }
             }
 
-            BdvOptions bdvOptions = new BdvOptions();
-            bdvOptions.addTo(bss.getBdvHandle());
-            AffineTransform3D transform3D = new AffineTransform3D();
-            translationvector[1] = imageOffset;
-            transform3D.translate(translationvector);
-            bdvOptions.sourceTransform(transform3D);
-            bss = BdvFunctions.show(volatilerandomAccessible,"OMERO Dataset",bdvOptions);
-            //bss.getBdvHandle().getViewerPanel().setNumTimepoints(150);
-            bss.setDisplayRange(0, 300);
-            imageOffset = imageOffset + img.getDefaultPixels().getSizeY();
-
+            if (thumbnailLevel) {
+                // zoomed out views cost one thumbnail request per batch of images
+                scene.thumbnails(new ThumbnailBatchLoader(gateway, ctx, 128));
+            }
 
-        }
+            scene.show(sacDisplayService.getActiveBdv());
+            System.out.println("Placed " + images.size() + " images of dataset " + datasetID);
 
+            // End of session : the sources need the gateway until then
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                System.out.println( "Session active : "+gateway.isConnected() );
+                gateway.disconnect();
+                System.out.println("Gateway disconnected");
+            }));
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -105,4 +171,4 @@ public class OmeroOpenDatasetCommand implements Command {
     }
 
 
-}
\ No newline at end of file
+}
@@ -64,6 +64,12 @@ public class OmeroOpenImageCommand implements Command {
     @Parameter(label = "Enter the ID of your OMERO image")
     long imageID;
 
+    @Parameter(label = "Open as", choices = {"Virtual stack", "Bio-Formats (whole image in memory)"})
+    String openAs = "Virtual stack";
+
+    @Parameter(label = "Resolution level of the virtual stack (0 = full resolution)")
+    int level = 0;
+
     //@Parameter(label = "Enter the ID of your OMERO dataset")
     //long datasetID;
 
@@ -81,6 +87,15 @@ public class OmeroOpenImageCommand implements Command {
         try {
             Gateway gateway = OmeroTools.omeroConnect(host, port, username, password);
             System.out.println( "Session active : "+gateway.isConnected() );
+            if (openAs.equals("Virtual stack")) {
+                OmeroTools.openVirtualImagePlus(gateway, OmeroTools.getSecurityContext(gateway), imageID, level).show();
+                // End of session : the planes are read from the server while the image is displayed
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    gateway.disconnect();
+                    System.out.println("Gateway disconnected");
+                }));
+                return;
+            }
             openImagePlus(host,username,password,imageID);
             System.out.println( "Disconnecting...");
             gateway.disconnect();
@@ -0,0 +1,107 @@
+package ch.epfl.biop.ij2command;
+
+import bdv.util.volatiles.SharedQueue;
+import ch.epfl.biop.omero.omerosource.ThumbnailBatchLoader;
+import ch.epfl.biop.omero.scene.OmeroLazyScene;
+import ch.epfl.biop.omero.scene.OmeroPlateOpener;
+import net.imagej.ImageJ;
+import net.imglib2.type.numeric.ARGBType;
+import omero.gateway.Gateway;
+import omero.gateway.SecurityContext;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import sc.fiji.bdvpg.scijava.services.SourceAndConverterBdvDisplayService;
+import sc.fiji.bdvpg.sourceandconverter.display.ColorChanger;
+
+import static ch.epfl.biop.ij2command.OmeroTools.getSecurityContext;
+
+/**
+ * Displays all fields of all wells of an OMERO plate in BDV, on the layout of the plate.
+ *
+ * Fields are only opened when they are visible and large enough on screen, and the rawPixelsStores
+ * of the fields which have not been visible recently are closed, see {@link OmeroLazyScene}.
+ */
+@Plugin(type = Command.class, menuPath = "Plugins>BIOP>Open OMERO plate in BDV")
+public class OmeroOpenPlateCommand implements Command {
+
+    @Parameter(label = "OMERO host")
+    String host;
+
+    @Parameter(label = "Enter your gaspar username")
+    String username;
+
+    @Parameter(label = "Enter your gaspar password", style = "password", persist = false)
+    String password;
+
+    @Parameter(label = "Enter the ID of your OMERO plate")
+    long plateID;
+
+    @Parameter(label = "Minimal size of a field on screen to open it (pixels)")
+    double minScreenSize = 64;
+
+    @Parameter(label = "Maximal number of fields keeping their pixel stores open")
+    int maxOpenImages = 64;
+
+    @Parameter(label = "Use thumbnails as coarsest level")
+    boolean thumbnailLevel = true;
+
+    @Parameter(label = "Number of fetching threads (all fields)")
+    int nFetchingThreads = 8;
+
+    static int port = 4064;
+
+    @Parameter
+    SourceAndConverterBdvDisplayService sacDisplayService;
+
+    @Override
+    public void run() {
+        try {
+            Gateway gateway =  OmeroTools.omeroConnect(host, port, username, password);
+            System.out.println( "Session active : "+gateway.isConnected() );
+            SecurityContext ctx = getSecurityContext(gateway);
+
+            OmeroLazyScene scene = new OmeroLazyScene(gateway, ctx)
+                    .sharedQueue(new SharedQueue(nFetchingThreads, 4))
+                    .minScreenSize(minScreenSize)
+                    .maxOpenImages(maxOpenImages)
+                    .poolSize(2)
+                    .sourceInitializer((sac, c) ->
+                        new ColorChanger(sac, new ARGBType(ARGBType.rgba(255*(c%8), 255*((c+1)%2), 255*(c%2), 255 ))).run());
+            if (thumbnailLevel) {
+                scene.thumbnails(new ThumbnailBatchLoader(gateway, ctx, 128));
+            }
+
+            int nFields = new OmeroPlateOpener(gateway, ctx, plateID).addTo(scene);
+            scene.show(sacDisplayService.getActiveBdv());
+            System.out.println("Placed " + nFields + " fields of plate " + plateID);
+
+            // End of session : the sources need the gateway until then
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                System.out.println( "Session active : "+gateway.isConnected() );
+                gateway.disconnect();
+                System.out.println("Gateway disconnected");
+            }));
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * This main function serves for development purposes.
+     * It allows you to run the plugin immediately out of
+     * your integrated development environment (IDE).
+     *
+     * @param args whatever, it's ignored
+     * @throws Exception
+     */
+    public static void main(final String... args) throws Exception {
+        // create the ImageJ application context with all available services
+        final ImageJ ij = new ImageJ();
+        ij.ui().showUI();
+
+        ij.command().run(OmeroOpenPlateCommand.class, true);
+    }
+
+}
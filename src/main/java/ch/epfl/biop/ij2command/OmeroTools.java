@@ -1,35 +1,55 @@
 package ch.epfl.biop.ij2command;
 
 import bdv.util.volatiles.VolatileViews;
+import ch.epfl.biop.omero.extract.RegionExtractor;
+import ch.epfl.biop.omero.omerosource.OmeroSourceOpener;
+import ch.epfl.biop.omero.omerosource.OmeroVirtualStack;
+import ch.epfl.biop.omero.omerosource.TileDecoder;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.WindowManager;
 import ij.process.ImageProcessor;
 import loci.plugins.LociImporter;
 import net.imglib2.Cursor;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
 import net.imglib2.cache.img.CellLoader;
 import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
 import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
 import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Intervals;
 import omero.api.RawPixelsStorePrx;
 import omero.api.ResolutionDescription;
 import omero.gateway.Gateway;
 import omero.gateway.LoginCredentials;
 import omero.gateway.SecurityContext;
 import omero.gateway.facility.BrowseFacility;
+import omero.gateway.facility.MetadataFacility;
 import omero.gateway.facility.RawDataFacility;
 import omero.gateway.model.ExperimenterData;
+import omero.gateway.model.ImageAcquisitionData;
 import omero.gateway.model.ImageData;
 import omero.gateway.model.PixelsData;
 import omero.gateway.rnd.Plane2D;
 import omero.log.SimpleLogger;
+import omero.model.Length;
 import omero.model.enums.UnitsLength;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.locks.ReentrantLock;
 
 import java.util.concurrent.ExecutorService;
@@ -77,6 +97,16 @@ public class OmeroTools {
     }
 
 
+    /**
+     * Opens a resolution level of an image as an ImageJ1 hyperstack without loading it in memory:
+     * the planes are read on demand from the tiled reader of the image, see {@link OmeroVirtualStack}.
+     * The gateway must stay connected while the image is used.
+     * @param level resolution level, 0 being the highest resolution
+     */
+    public static ImagePlus openVirtualImagePlus(Gateway gateway, SecurityContext ctx, long imageID, int level) throws Exception {
+        return new OmeroVirtualStack(getTiledReader(imageID, ctx, gateway), level).createImagePlus();
+    }
+
     public static Collection<ImageData> getImagesFromDataset(Gateway gateway, long DatasetID) throws Exception{
         //List all images contained in a Dataset
         BrowseFacility browse = gateway.getFacility(BrowseFacility.class);
@@ -87,6 +117,23 @@ public class OmeroTools {
 
     }
 
+    /**
+     * @return stage position (x, y, z) of an image in micrometer, missing coordinates are set to 0
+     */
+    public static double[] getStagePosition(Gateway gateway, SecurityContext ctx, long imageID) throws Exception{
+        MetadataFacility metadata = gateway.getFacility(MetadataFacility.class);
+        ImageAcquisitionData acquisitionData = metadata.getImageAcquisitionData(ctx, imageID);
+        Length[] position = new Length[]{
+                acquisitionData.getPositionX(UnitsLength.MICROMETER),
+                acquisitionData.getPositionY(UnitsLength.MICROMETER),
+                acquisitionData.getPositionZ(UnitsLength.MICROMETER)};
+        double[] result = new double[3];
+        for (int d = 0; d < 3; d++) {
+            if (position[d] != null) result[d] = position[d].getValue();
+        }
+        return result;
+    }
+
     public static SecurityContext getSecurityContext(Gateway gateway)throws Exception{
         ExperimenterData exp = gateway.getLoggedInUser();
         long groupID = exp.getGroupId();
@@ -191,194 +238,190 @@ public class OmeroTools {
         return VolatileViews.wrapAsVolatile(randomAccessible);
     }
 
-    public static RandomAccessibleInterval openRawPlaneRandomAccessibleInterval(SecurityContext ctx, RawDataFacility rdf, PixelsData pixels, boolean windowless) throws Exception {
+    /**
+     * Opens all planes of an image side by side along x (planes ordered by c, then z, then t),
+     * with the ImgLib2 type matching the pixel type of the image.
+     * Each plane is fetched as raw bytes and copied directly into its cell.
+     */
+    public static <T extends RealType<T> & NativeType<T>> RandomAccessibleInterval openRawPlaneRandomAccessibleInterval(Gateway gateway, SecurityContext ctx, PixelsData pixels, boolean windowless) throws Exception {
 
         int sizeX = pixels.getSizeX();
         int sizeY = pixels.getSizeY();
         int sizeZ = pixels.getSizeZ();
         int sizeC = pixels.getSizeC();
         int sizeT = pixels.getSizeT();
-        //pixels.getPixelSizeX(UnitsLength.MILLIMETER);
+        String pixelType = pixels.getPixelType();
 
         long[] total_dim = new long[2];
-        total_dim[0] = sizeX*sizeZ*sizeC*sizeT;
+        total_dim[0] = (long) sizeX*sizeZ*sizeC*sizeT;
         System.out.println("total size : "+sizeZ*sizeC*sizeT);
         total_dim[1] = sizeY;
 
-        // Create cached image factory of Type Byte
+        // One cell per plane
         ReadOnlyCachedCellImgOptions options = new ReadOnlyCachedCellImgOptions();
-        // Put cell dimensions to image width and height
         options = options.cellDimensions(sizeX,sizeY);
         final ReadOnlyCachedCellImgFactory factory = new ReadOnlyCachedCellImgFactory(options);
 
-        UnsignedShortType type = new UnsignedShortType();
-
-
-        CellLoader<UnsignedShortType> loader = new CellLoader<UnsignedShortType>(){
-            @Override
-            public void load(SingleCellArrayImg<UnsignedShortType, ?> singleCellArrayImg) throws Exception {
-                long[] positions = new long[2];
-                Cursor<UnsignedShortType> cursor = singleCellArrayImg.localizingCursor();
-                cursor.localize(positions);
-
-                int index = (int) ((positions[0]+1)/ sizeX + 1);
-                //ImageProcessor ip = image.getStack().getProcessor(index);
-                final long channelOffset = - (index-1)*sizeX;
-                // move through pixels until there is no pixel left in this cell
-
-                int c_index = (index-1) % sizeC;
-                int z_index = 0;
-                if (sizeZ > 1){
-                    z_index = (index-1)/sizeC;
-                }
-                int t_index = 0;
-                if (sizeT > 1) {
-                    t_index = (index - 1) / (sizeC * sizeZ);
-                }
-
-                Plane2D plane2D = getRawPlane(ctx, rdf, pixels, z_index, t_index, c_index);
-                double[][] pixelIntensities = plane2D.getPixelValues();
-
-                while (cursor.hasNext())
-                {
-                    // move the cursor forward by one pixel
-                    cursor.fwd();
-                    //get the current position
-                    cursor.localize(positions);
-                    long px = positions[0]+ channelOffset;
-                    long py = positions[1];
-                    //get pixel value of the input image (from stack) at pos (px,py) and copy it to the current cell at the same position
-                    cursor.get().set((int) pixelIntensities[(int)px][(int)py]);
-                }
-            }
-
+        // the rawPixelsStores of the shared opener of the image, see getTiledReader
+        OmeroSourceOpener opener = getTiledReader(pixels.getImage().getId(), ctx, gateway);
+        CellLoader<T> loader = cell -> {
+            int planeIndex = (int) (cell.min(0) / sizeX);
+            int c_index = planeIndex % sizeC;
+            int z_index = (planeIndex / sizeC) % sizeZ;
+            int t_index = planeIndex / (sizeC * sizeZ);
+            loadPlane(opener, cell, z_index, c_index, t_index, pixelType);
         };
 
-        RandomAccessibleInterval<UnsignedShortType> randomAccessible = factory.create(total_dim,type,loader);
+        RandomAccessibleInterval<T> randomAccessible = factory.create(total_dim, TileDecoder.<T>createType(pixelType), loader);
         //ask if pixel has already been loaded or not
         return VolatileViews.wrapAsVolatile(randomAccessible);
     }
 
 
-    public static RandomAccessibleInterval openRawRandomAccessibleInterval(SecurityContext ctx, RawDataFacility rdf, PixelsData pixels, int t, int c) throws Exception {
+    /**
+     * Opens the planes (x, y, z) of a channel and timepoint of an image,
+     * with the ImgLib2 type matching the pixel type of the image.
+     * Each plane is fetched as raw bytes and copied directly into its cell.
+     */
+    public static <T extends RealType<T> & NativeType<T>> RandomAccessibleInterval openRawRandomAccessibleInterval(Gateway gateway, SecurityContext ctx, PixelsData pixels, int t, int c) throws Exception {
         int sizeX = pixels.getSizeX();
         int sizeY = pixels.getSizeY();
         int sizeZ = pixels.getSizeZ();
+        String pixelType = pixels.getPixelType();
 
         long[] total_dim = new long[3];
         total_dim[0] = sizeX;
         total_dim[1] = sizeY;
         total_dim[2] = sizeZ;
 
-        // Create cached image factory of Type Byte
+        // One cell per plane
         ReadOnlyCachedCellImgOptions options = new ReadOnlyCachedCellImgOptions();
-        // Put cell dimensions to image width and height
         options = options.cellDimensions(sizeX,sizeY, 1);
         final ReadOnlyCachedCellImgFactory factory = new ReadOnlyCachedCellImgFactory(options);
 
-        UnsignedShortType type = new UnsignedShortType();
-        CellLoader<UnsignedShortType> loader = new CellLoader<UnsignedShortType>(){
-            @Override
-            public void load(SingleCellArrayImg<UnsignedShortType, ?> singleCellArrayImg) throws Exception {
-                long[] positions = new long[3];
-                Cursor<UnsignedShortType> cursor = singleCellArrayImg.localizingCursor();
-                cursor.localize(positions);
-                Plane2D plane2D = getRawPlanefromPixelsData(ctx, rdf, pixels, (int) positions[2], t, c);
+        // the rawPixelsStores of the shared opener of the image, see getTiledReader
+        OmeroSourceOpener opener = getTiledReader(pixels.getImage().getId(), ctx, gateway);
+        CellLoader<T> loader = cell -> loadPlane(opener, cell, (int) cell.min(2), c, t, pixelType);
 
-                double[][] pixelIntensities = plane2D.getPixelValues();
-
-                while (cursor.hasNext())
-                {
-                    // move the cursor forward by one pixel
-                    cursor.fwd();
-                    //get the current position
-                    cursor.localize(positions);
-                    //get pixel value of the input image (from stack) at pos (px,py) and copy it to the current cell at the same position
-                    cursor.get().set((int) pixelIntensities[(int)positions[0]][(int)positions[1]]);
-                }
-            }
-        };
-
-        RandomAccessibleInterval<UnsignedShortType> randomAccessible = factory.create(total_dim,type,loader);
+        RandomAccessibleInterval<T> randomAccessible = factory.create(total_dim, TileDecoder.<T>createType(pixelType), loader);
         //ask if pixel has already been loaded or not
         return VolatileViews.wrapAsVolatile(randomAccessible);
     }
 
+    /**
+     * Fills a cell covering a whole plane with the raw bytes of the plane, fetched as a single tile
+     * of the highest resolution, without going through the double[][] of Plane2D
+     */
+    static void loadPlane(OmeroSourceOpener opener, SingleCellArrayImg<?, ?> cell, int z, int c, int t, String pixelType) throws Exception {
+        byte[] bytes = opener.getTile(0, z, c, t, 0, 0, opener.getSizeX(0), opener.getSizeY(0));
+        Object array = ((ArrayDataAccess<?>) cell.update(null)).getCurrentStorageArray();
+        TileDecoder.copy(bytes, 0, array, 0, (int) Intervals.numElements(cell), pixelType);
+    }
 
-    public static RandomAccessibleInterval openTiledRawRandomAccessibleInterval(long imageID, int c, int t,int level,SecurityContext ctx, Gateway gateway) throws Exception {
-        final PixelsData pixels = OmeroTools.getPixelsDataFromOmeroID(imageID,gateway,ctx);
-        //final RawPixelsStorePrx rawPixStore = gateway.getPixelsStore(ctx);
-        //rawPixStore.setPixelsId(pixels.getId(), false);
-        // set raw pixel to the current resolution level
-        //rawPixStore.setResolutionLevel(level);
-
-        int sizeX = pixels.getSizeX();
-        int sizeY = pixels.getSizeY();
-        int sizeZ = pixels.getSizeZ();
-
-        long[] total_dim = new long[3];
-
-        System.out.println("X " + sizeX);
-        System.out.println("Y " + sizeY);
-        total_dim[0] = sizeX;
-        total_dim[1] = sizeY;
-        total_dim[2] = sizeZ;
-
-        // Create cached image factory of Type Byte
-        ReadOnlyCachedCellImgOptions options = new ReadOnlyCachedCellImgOptions();
-        // Put cell dimensions to arbitrary values
-        final int Xdefaultcellsize = 512;
-        final int Ydefaultcellsize = 512;
-
-        options = options.cellDimensions(Xdefaultcellsize,Ydefaultcellsize, 1);
-        final ReadOnlyCachedCellImgFactory factory = new ReadOnlyCachedCellImgFactory(options);
-
-        UnsignedShortType type = new UnsignedShortType();
-        CellLoader<UnsignedShortType> loader = new CellLoader<UnsignedShortType>(){
-            @Override
-            public void load(SingleCellArrayImg<UnsignedShortType, ?> singleCellArrayImg) {
 
-                long[] positions = new long[3];
-                Cursor<UnsignedShortType> cursor = singleCellArrayImg.localizingCursor();
-                cursor.localize(positions);
+    /**
+     * Lazy cached cell image of a channel, timepoint and resolution level of an image, with the ImgLib2 type
+     * matching the pixel type. The opener of each image is created once per gateway and shared by all calls,
+     * so that all levels, channels and timepoints of an image share the same rawPixelsStores, metadata and cache.
+     * @param level resolution level, 0 being the highest resolution
+     */
+    public static RandomAccessibleInterval openTiledRawRandomAccessibleInterval(long imageID, int c, int t,int level,SecurityContext ctx, Gateway gateway) throws Exception {
+        return getTiledReader(imageID, ctx, gateway).getCachedImage(c, t, level);
+    }
 
-                // +1 since cursor starts just before the block
-                int xOffset = (int) positions[0] + 1;
-                int yOffset = (int) positions[1];
-                //System.out.println("Offset : (" + xOffset + "," + yOffset + ")");
-                double[][] pixelIntensities;
-
-                try(RawDataFacility rdf = gateway.getFacility(RawDataFacility.class)) {
-                    //synchronized (OmeroTools.class) {
-                        int Xcellsize = Xdefaultcellsize;
-                        int Ycellsize = Ydefaultcellsize;
-                        if (sizeX - xOffset < Xdefaultcellsize){
-                            Xcellsize = sizeX - xOffset;
-                        }
-                        if (sizeY - yOffset < Ydefaultcellsize) {
-                            Ycellsize = sizeY - yOffset;
-                        }
-                        Plane2D plane2D = getRawTilefromPixelsData(ctx, rdf, pixels, (int) positions[2], t, c, xOffset, yOffset, Xcellsize, Ycellsize);
-                        pixelIntensities = plane2D.getPixelValues();
-                    //}
-                    while (cursor.hasNext()) {
-                        // move the cursor forward by one pixel
-                        cursor.fwd();
-                        //get the current position
-                        cursor.localize(positions);
-                        //get pixel value of the input image (from stack) at pos (px,py) and copy it to the current cell at the same position
-                        cursor.get().set((int) pixelIntensities[(int) positions[0] - xOffset][(int) positions[1] - yOffset]);
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
+    // maximal number of openers kept by getTiledReader
+    static int maxTiledReaders = 16;
+
+    // openers of the tiled reader, by gateway, security context and image ID, the least recently used first.
+    // Each opener is created by the first caller, outside of the lock, the other callers wait for its task
+    static final LinkedHashMap<List<Object>, FutureTask<OmeroSourceOpener>> tiledReaders =
+            new LinkedHashMap<List<Object>, FutureTask<OmeroSourceOpener>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<List<Object>, FutureTask<OmeroSourceOpener>> eldest) {
+                    if (size() <= maxTiledReaders) return false;
+                    // new stores are opened if the evicted opener is still used,
+                    // an opener still being created is only dropped
+                    OmeroSourceOpener opener = getIfCreated(eldest.getValue());
+                    if (opener != null) opener.closeStores();
+                    return true;
                 }
+            };
+
+    static OmeroSourceOpener getIfCreated(FutureTask<OmeroSourceOpener> task) {
+        if (!task.isDone()) return null;
+        try {
+            return task.get();
+        } catch (Exception e) {
+            return null;
+        }
+    }
 
+    /**
+     * Headless tiled reader of an image: the opener, created once per gateway, security context and image
+     * and shared by all calls. Only the {@link #maxTiledReaders} most recently used openers are kept,
+     * the openers of disconnected gateways are dropped. See {@link OmeroSourceOpener#getCachedImage(int, int, int)}
+     */
+    public static OmeroSourceOpener getTiledReader(long imageID, SecurityContext ctx, Gateway gateway) throws Exception {
+        List<Object> key = Arrays.asList(gateway, ctx, imageID);
+        FutureTask<OmeroSourceOpener> task;
+        boolean create = false;
+        synchronized (tiledReaders) {
+            Iterator<Map.Entry<List<Object>, FutureTask<OmeroSourceOpener>>> iterator = tiledReaders.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<List<Object>, FutureTask<OmeroSourceOpener>> entry = iterator.next();
+                // the stores of a disconnected gateway are already closed with its session
+                if (!((Gateway) entry.getKey().get(0)).isConnected()) iterator.remove();
             }
-        };
+            task = tiledReaders.get(key);
+            if (task == null) {
+                task = new FutureTask<>(() -> new OmeroSourceOpener()
+                        .imageID(imageID)
+                        .gateway(gateway)
+                        .securityContext(ctx)
+                        .micrometer()
+                        .create());
+                tiledReaders.put(key, task);
+                create = true;
+            }
+        }
+        // the metadata are read from the server without blocking the openers of other images
+        if (create) task.run();
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            synchronized (tiledReaders) {
+                // the next call tries again
+                tiledReaders.remove(key, task);
+            }
+            throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+        }
+    }
 
-        RandomAccessibleInterval<UnsignedShortType> randomAccessible = factory.create(total_dim,type,loader);
-        //ask if pixel has already been loaded or not
-        return randomAccessible;
+
+    /**
+     * Extracts a bounding box of an image into a contiguous image of dimensions XYZCT,
+     * the covering tiles are fetched in parallel
+     * @param opener opener of the image, its rawPixelsStore pool is used
+     * @param level resolution level
+     * @param region bounding box (x, y, z) in pixel coordinates of the resolution level
+     * @param channels channels to extract
+     * @param timepoints timepoints to extract
+     */
+    public static <T extends RealType<T> & NativeType<T>> ArrayImg<T, ?> extractRegion(OmeroSourceOpener opener, int level, Interval region, int[] channels, int[] timepoints) throws Exception {
+        return new RegionExtractor(opener).extract(level, region, channels, timepoints);
+    }
+
+    /**
+     * Extracts a bounding box of an image into a contiguous image of dimensions XYZCT,
+     * the covering tiles are fetched in parallel
+     * @param opener opener of the image, its rawPixelsStore pool is used
+     * @param level resolution level
+     * @param region bounding box (x, y, z) in physical coordinates
+     * @param channels channels to extract
+     * @param timepoints timepoints to extract
+     */
+    public static <T extends RealType<T> & NativeType<T>> ArrayImg<T, ?> extractRegion(OmeroSourceOpener opener, int level, RealInterval region, int[] channels, int[] timepoints) throws Exception {
+        return new RegionExtractor(opener).extract(level, region, channels, timepoints);
     }
 
 }
\ No newline at end of file
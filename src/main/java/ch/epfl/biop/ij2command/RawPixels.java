@@ -7,7 +7,6 @@ import net.imglib2.RandomAccessibleInterval;
 import omero.gateway.Gateway;
 import omero.gateway.SecurityContext;
 import omero.gateway.facility.BrowseFacility;
-import omero.gateway.facility.RawDataFacility;
 import omero.gateway.model.ImageData;
 import omero.gateway.model.PixelsData;
 import org.scijava.command.Command;
@@ -44,15 +43,20 @@ public class RawPixels implements Command {
             System.out.println( "Session active : "+gateway.isConnected() );
             BrowseFacility browse = gateway.getFacility(BrowseFacility.class);
             SecurityContext ctx = getSecurityContext(gateway);
-            RawDataFacility rdf = gateway.getFacility(RawDataFacility.class);
             ImageData image = browse.getImage(ctx, imageID);
             PixelsData pixels = image.getDefaultPixels();
-            RandomAccessibleInterval volatilerandomAccessible = OmeroTools.openRawPlaneRandomAccessibleInterval(ctx, rdf,pixels,true);
-            gateway.disconnect();
+            RandomAccessibleInterval volatilerandomAccessible = OmeroTools.openRawPlaneRandomAccessibleInterval(gateway, ctx, pixels, true);
 
             BdvStackSource bss = BdvFunctions.show(volatilerandomAccessible,"OMERO raw plane");
             bss.setDisplayRange(0, 1500);
 
+            // planes are fetched lazily : the gateway is needed until the end of the session
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                System.out.println( "Session active : "+gateway.isConnected() );
+                gateway.disconnect();
+                System.out.println("Gateway disconnected");
+            }));
+
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -55,6 +55,9 @@ public class RawPixelsfromSource implements Command {
     @Parameter
     boolean show;
 
+    @Parameter(label = "Number of coarse levels displayed from server rendered JPEG tiles (0 = none)")
+    int previewLevels = 0;
+
     static int port = 4064;
 
     /**
@@ -90,18 +93,16 @@ public class RawPixelsfromSource implements Command {
                     .gateway(gateway)
                     .securityContext(ctx)
                     .millimeter()
+                    .previewLevels(previewLevels, 0.8f)
+                    .deriveCoarseLevels()
                     .create();
 
             //(new Gson()).toJson(opener);
             //System.out.println(new Gson().toJson(opener));
 
             //
-            sacs = new SourceAndConverter[opener.getSizeC()];
-
-            for (int c=0; c<opener.getSizeC(); c++) {
-                // create the right source and convertor depending on the image type
-                sacs[c] = opener.getSourceAndConvertor(c);
-            }
+            // create the right sources and convertors depending on the image type, a single one for RGB images
+            sacs = opener.getSourceAndConvertors();
 
             // give the sources to the sacService (BDV source manager)
             for (SourceAndConverter sac:sacs){
@@ -111,7 +112,9 @@ public class RawPixelsfromSource implements Command {
             MetadataFacility metadata = gateway.getFacility(MetadataFacility.class);
             List<ChannelData> channelMetadata = metadata.getChannelData(ctx, imageID);
 
-            for (int i=0;i<sacs.length;i++) {
+            // the colors of RGB images and of the preview levels are in their pixels
+            int nChannelSacs = opener.isRGB() ? 0 : opener.getSizeC();
+            for (int i=0;i<nChannelSacs;i++) {
                 Length wv = channelMetadata.get(i).getEmissionWavelength(UnitsLength.NANOMETER);
                 //Length wv = channelMetadata.get(i).getExcitationWavelength(UnitsLength.NANOMETER);
 
@@ -149,6 +152,7 @@ public class RawPixelsfromSource implements Command {
             // End of session
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                 //fail
+                System.out.println( "Cache metrics : "+opener.getCacheMetrics() );
                 System.out.println( "Session active : "+gateway.isConnected() );
                 gateway.disconnect();
                 System.out.println("Gateway disconnected");
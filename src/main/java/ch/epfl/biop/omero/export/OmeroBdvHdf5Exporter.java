@@ -0,0 +1,380 @@
+package ch.epfl.biop.omero.export;
+
+import bdv.img.hdf5.Hdf5ImageLoader;
+import bdv.spimdata.SequenceDescriptionMinimal;
+import bdv.spimdata.SpimDataMinimal;
+import bdv.spimdata.XmlIoSpimDataMinimal;
+import ch.epfl.biop.omero.omerosource.OmeroSource;
+import ch.epfl.biop.omero.omerosource.OmeroSourceOpener;
+import ch.epfl.biop.omero.omerosource.TileDecoder;
+import ch.systemsx.cisd.base.mdarray.MDShortArray;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.HDF5IntStorageFeatures;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import mpicbg.spim.data.generic.sequence.BasicViewSetup;
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.sequence.Channel;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.TimePoints;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.FinalDimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Exports channels of an OMERO image into a BigDataViewer HDF5 / XML dataset, one view setup per channel.
+ *
+ * The resolution levels of the OMERO pyramid are copied as they are: raw tiles are fetched from the server,
+ * no level is computed locally. Sources computed from the image, such as filtered sources or projections,
+ * are exported with {@link #OmeroBdvHdf5Exporter(List)}: each block is then read from the levels of the source.
+ * Tiles are fetched and decoded into one array per block by several threads
+ * and handed over to a single writer thread (HDF5 writes are not thread safe) through a bounded queue,
+ * so the memory footprint only depends on the number of threads and on the tile size.
+ * All datasets are created by the calling thread before the tiles are fetched.
+ *
+ * BigDataViewer HDF5 files store 16 bits data: 8 bits values are kept as is,
+ * other pixel types are rounded and clamped to [0, 65535].
+ */
+public class OmeroBdvHdf5Exporter {
+
+    final OmeroSourceOpener opener;
+    // sources of the view setups, null to export the raw tiles of the channels
+    final List<OmeroSource<?>> sources;
+    int[] channels;
+    File xmlFile;
+    int nThreads = 4;
+
+    final static Block POISON = new Block(null, null, null, null);
+
+    /**
+     * Exports all channels of the image, see {@link #channels(int...)}
+     */
+    public OmeroBdvHdf5Exporter(OmeroSourceOpener opener) {
+        this.opener = opener;
+        this.sources = null;
+        this.channels = new int[opener.getSizeC()];
+        for (int c = 0; c < channels.length; c++) {
+            channels[c] = c;
+        }
+    }
+
+    /**
+     * Exports sources of a same image, one view setup each: the blocks are read from the levels of the sources
+     * (see {@link OmeroSource#getSource(int, int)}) instead of being fetched from the server
+     * @param sources sources with real pixel values, opened by the same opener
+     */
+    public OmeroBdvHdf5Exporter(List<OmeroSource<?>> sources) {
+        if (sources.isEmpty()) throw new IllegalArgumentException("No source to export");
+        this.opener = sources.get(0).getOpener();
+        this.sources = sources;
+        this.channels = new int[sources.size()];
+        for (int setup = 0; setup < channels.length; setup++) {
+            OmeroSource<?> source = sources.get(setup);
+            if (source.getOpener() != opener) {
+                throw new IllegalArgumentException(source.getName() + " is not a source of image " + opener.getImageID());
+            }
+            if (!(source.getType() instanceof RealType)) {
+                throw new IllegalArgumentException(source.getName() + " has no real pixel values");
+            }
+            channels[setup] = source.getChannel();
+        }
+    }
+
+    /**
+     * Ignored for the exporters of sources
+     * @param channels channels to export, one view setup each
+     */
+    public OmeroBdvHdf5Exporter channels(int... channels) {
+        if (sources != null) return this;
+        this.channels = channels;
+        return this;
+    }
+
+    /**
+     * @param xmlFile path of the xml file, the h5 file is written next to it
+     */
+    public OmeroBdvHdf5Exporter xmlFile(File xmlFile) {
+        this.xmlFile = xmlFile;
+        return this;
+    }
+
+    public OmeroBdvHdf5Exporter nThreads(int nThreads) {
+        this.nThreads = nThreads;
+        return this;
+    }
+
+    public File getHdf5File() {
+        String path = xmlFile.getAbsolutePath();
+        if (path.endsWith(".xml")) path = path.substring(0, path.length() - 4);
+        return new File(path + ".h5");
+    }
+
+    static class Block {
+        final String path;
+        final long[] dimensions; // XYZ
+        final long[] offset; // XYZ
+        final short[] data;
+
+        Block(String path, long[] dimensions, long[] offset, short[] data) {
+            this.path = path;
+            this.dimensions = dimensions;
+            this.offset = offset;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Writes the h5 and the xml files, blocking until all cells are written
+     * @throws Exception the first error encountered while reading or writing a cell
+     */
+    public void export() throws Exception {
+        File hdf5File = getHdf5File();
+        IHDF5Writer writer = HDF5Factory.open(hdf5File);
+        try {
+            writeMipmapInfo(writer);
+            createDatasets(writer);
+            writeCells(writer);
+        } finally {
+            writer.close();
+        }
+        writeXml(hdf5File);
+    }
+
+    static String getCellsPath(int t, int setup, int level) {
+        return String.format("t%05d/s%02d/%d/cells", t, setup, level);
+    }
+
+    /**
+     * @return dimensions (XYZ) of a resolution level of a view setup, the thumbnail level is never exported
+     */
+    long[] getDimensions(int setup, int level) {
+        if (sources == null) {
+            return new long[]{opener.getSizeX(level), opener.getSizeY(level), opener.getSizeZ(level)};
+        }
+        return Intervals.dimensionsAsLongArray(sources.get(setup).getSource(0, level));
+    }
+
+    /**
+     * Reads a block of a view setup and converts it into the 16 bits values stored in the h5 file
+     */
+    @SuppressWarnings("unchecked")
+    short[] readBlock(int setup, int t, int level, int x, int y, int z, int w, int h) throws Exception {
+        if (sources == null) {
+            return toShorts(opener.getTile(level, z, channels[setup], t, x, y, w, h), opener.getPixelType(), w * h);
+        }
+        RandomAccessibleInterval<? extends RealType<?>> img =
+                (RandomAccessibleInterval<? extends RealType<?>>) sources.get(setup).getSource(t, level);
+        short[] data = new short[w * h];
+        int i = 0;
+        for (RealType<?> value : Views.flatIterable(Views.interval(img, new long[]{x, y, z}, new long[]{x + w - 1, y + h - 1, z}))) {
+            data[i++] = toShort(value.getRealDouble());
+        }
+        return data;
+    }
+
+    void writeMipmapInfo(IHDF5Writer writer) {
+        int nLevels = opener.getNLevels();
+        for (int setup = 0; setup < channels.length; setup++) {
+            double[][] resolutions = new double[nLevels][];
+            int[][] subdivisions = new int[nLevels][];
+            long[] fullDimensions = getDimensions(setup, 0);
+            for (int level = 0; level < nLevels; level++) {
+                long[] dimensions = getDimensions(setup, level);
+                resolutions[level] = new double[]{
+                        (double) fullDimensions[0] / dimensions[0],
+                        (double) fullDimensions[1] / dimensions[1],
+                        (double) fullDimensions[2] / dimensions[2]};
+                subdivisions[level] = new int[]{opener.getTileSizeX(level), opener.getTileSizeY(level), 1};
+            }
+            writer.float64().writeMatrix(String.format("s%02d/resolutions", setup), resolutions);
+            writer.int32().writeMatrix(String.format("s%02d/subdivisions", setup), subdivisions);
+        }
+    }
+
+    /**
+     * Creates the datasets of all levels, before the writer thread starts: the writer is only used by one thread
+     */
+    void createDatasets(IHDF5Writer writer) {
+        for (int t = 0; t < opener.getSizeT(); t++) {
+            for (int setup = 0; setup < channels.length; setup++) {
+                for (int level = 0; level < opener.getNLevels(); level++) {
+                    long[] dimensions = getDimensions(setup, level);
+                    int[] cellDimensions = new int[]{opener.getTileSizeX(level), opener.getTileSizeY(level), 1};
+                    writer.int16().createMDArray(getCellsPath(t, setup, level), reorder(dimensions), reorder(cellDimensions),
+                            HDF5IntStorageFeatures.INT_AUTO_SCALING_DEFLATE);
+                }
+            }
+        }
+    }
+
+    void writeCells(IHDF5Writer writer) throws Exception {
+        int queueSize = 2 * nThreads;
+        BlockingQueue<Block> queue = new ArrayBlockingQueue<>(queueSize);
+        // a permit is held from the submission of a cell until it is written
+        Semaphore permits = new Semaphore(queueSize + nThreads);
+        AtomicReference<Exception> error = new AtomicReference<>();
+
+        Thread writerThread = new Thread(() -> {
+            try {
+                Block block = queue.take();
+                while (block != POISON) {
+                    writer.int16().writeMDArrayBlockWithOffset(block.path,
+                            new MDShortArray(block.data, reorder(block.dimensions)), reorder(block.offset));
+                    permits.release();
+                    block = queue.take();
+                }
+            } catch (Throwable e) {
+                // the fetching threads stop when they see the error, see put
+                error.compareAndSet(null, (e instanceof Exception) ? (Exception) e : new RuntimeException(e));
+            }
+        }, "BDV HDF5 writer");
+        writerThread.start();
+
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try {
+            for (int t = 0; (t < opener.getSizeT()) && (error.get() == null); t++) {
+                for (int setup = 0; setup < channels.length; setup++) {
+                    for (int level = 0; level < opener.getNLevels(); level++) {
+                        String path = getCellsPath(t, setup, level);
+                        long[] dimensions = getDimensions(setup, level);
+                        int tileSizeX = opener.getTileSizeX(level);
+                        int tileSizeY = opener.getTileSizeY(level);
+                        for (int z = 0; z < dimensions[2]; z++) {
+                            for (int y = 0; y < dimensions[1]; y += tileSizeY) {
+                                for (int x = 0; x < dimensions[0]; x += tileSizeX) {
+                                    if (!acquire(permits, error)) break;
+                                    final int s = setup, l = level, tp = t, zp = z, xp = x, yp = y;
+                                    final int w = (int) Math.min(tileSizeX, dimensions[0] - x);
+                                    final int h = (int) Math.min(tileSizeY, dimensions[1] - y);
+                                    executor.submit(() -> {
+                                        try {
+                                            short[] data = readBlock(s, tp, l, xp, yp, zp, w, h);
+                                            put(queue, new Block(path, new long[]{w, h, 1}, new long[]{xp, yp, zp}, data), error);
+                                        } catch (Exception e) {
+                                            error.compareAndSet(null, e);
+                                            permits.release();
+                                        }
+                                    });
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (error.get() != null) {
+                // cancels the tiles not fetched yet
+                executor.shutdownNow();
+            } else {
+                executor.shutdown();
+            }
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            put(queue, POISON, error);
+            writerThread.join();
+        }
+        if (error.get() != null) throw error.get();
+    }
+
+    /**
+     * Waits for a permit as long as no error occurred
+     * @return false if an error occurred
+     */
+    static boolean acquire(Semaphore permits, AtomicReference<Exception> error) throws InterruptedException {
+        while (!permits.tryAcquire(1, TimeUnit.SECONDS)) {
+            if (error.get() != null) return false;
+        }
+        return error.get() == null;
+    }
+
+    /**
+     * Hands a block over to the writer thread, gives up if the writer stopped with an error
+     */
+    static void put(BlockingQueue<Block> queue, Block block, AtomicReference<Exception> error) throws InterruptedException {
+        while (!queue.offer(block, 1, TimeUnit.SECONDS)) {
+            if (error.get() != null) return;
+        }
+    }
+
+    /**
+     * Decodes the raw bytes of a tile into the 16 bits values stored in the h5 file
+     */
+    static short[] toShorts(byte[] bytes, String pixelType, int nPixels) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        short[] data = new short[nPixels];
+        for (int i = 0; i < nPixels; i++) {
+            data[i] = toShort(TileDecoder.getValue(buffer, pixelType, i));
+        }
+        return data;
+    }
+
+    static short toShort(double v) {
+        // unsigned values are stored in signed shorts
+        return (short) Math.max(0, Math.min(65535, Math.round(v)));
+    }
+
+    void writeXml(File hdf5File) throws Exception {
+        String unit = (opener.u == null) ? "pixel" : opener.u.name().toLowerCase();
+
+        List<TimePoint> timepoints = new ArrayList<>();
+        for (int t = 0; t < opener.getSizeT(); t++) {
+            timepoints.add(new TimePoint(t));
+        }
+
+        Map<Integer, BasicViewSetup> setups = new HashMap<>();
+        Map<ViewId, ViewRegistration> registrations = new HashMap<>();
+        for (int setup = 0; setup < channels.length; setup++) {
+            AffineTransform3D transform = new AffineTransform3D();
+            String name;
+            if (sources == null) {
+                opener.getSourceTransform(0, transform);
+                name = "OMERO ID: " + opener.getImageID() + "; Channel: " + channels[setup];
+            } else {
+                sources.get(setup).getSourceTransform(0, 0, transform);
+                name = sources.get(setup).getName();
+            }
+            BasicViewSetup viewSetup = new BasicViewSetup(setup, name, new FinalDimensions(getDimensions(setup, 0)),
+                    new FinalVoxelDimensions(unit, opener.getPixelSizeX(), opener.getPixelSizeY(), opener.getPixelSizeZ()));
+            viewSetup.setAttribute(new Channel(channels[setup]));
+            setups.put(setup, viewSetup);
+            for (int t = 0; t < opener.getSizeT(); t++) {
+                registrations.put(new ViewId(t, setup), new ViewRegistration(t, setup, transform.copy()));
+            }
+        }
+
+        SequenceDescriptionMinimal seq = new SequenceDescriptionMinimal(new TimePoints(timepoints), setups, null, null);
+        seq.setImgLoader(new Hdf5ImageLoader(hdf5File, null, seq, false));
+        SpimDataMinimal spimData = new SpimDataMinimal(xmlFile.getParentFile(), seq, new ViewRegistrations(registrations));
+        new XmlIoSpimDataMinimal().save(spimData, xmlFile.getAbsolutePath());
+    }
+
+    /**
+     * HDF5 dimensions are in reversed order (ZYX)
+     */
+    static long[] reorder(long[] xyz) {
+        return new long[]{xyz[2], xyz[1], xyz[0]};
+    }
+
+    static int[] reorder(int[] xyz) {
+        return new int[]{xyz[2], xyz[1], xyz[0]};
+    }
+
+}
@@ -0,0 +1,412 @@
+package ch.epfl.biop.omero.export;
+
+import ch.epfl.biop.omero.omerosource.OmeroSourceOpener;
+import ch.epfl.biop.omero.omerosource.TileDecoder;
+import ch.epfl.biop.omero.process.ForegroundMask;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.zarr.N5ZarrReader;
+import org.janelia.saalfeldlab.n5.zarr.N5ZarrWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static omero.gateway.model.PixelsData.*;
+
+/**
+ * Exports all resolution levels, channels, timepoints and tiles of an OMERO image
+ * into a chunked N5 or OME-Zarr container on the local disk.
+ *
+ * Each resolution level is written in a 5D dataset (XYZCT in N5 order, TCZYX in Zarr order)
+ * whose blocks are the tiles of the image. Tiles are fetched and written in parallel, the number of
+ * tiles held in memory is bounded by the number of permits of the in-flight semaphore.
+ *
+ * Blocks already present in the container are not fetched again, so an interrupted export can be resumed
+ * by running it again on the same path: a block file is only kept if it is complete, blocks truncated by the
+ * interruption are fetched and written again. With a {@link ForegroundMask}, background tiles are not fetched:
+ * they are written as constant blocks of the background value of their channel, see
+ * {@link ForegroundMask#getBackgroundValue(int)}, so that they do not read back as black.
+ */
+public class OmeroN5Exporter {
+
+    public enum Format {
+        N5,
+        ZARR
+    }
+
+    /**
+     * Root attribute holding the progress of the export, the "omero" key being reserved by OME-Zarr
+     * for the rendering settings
+     */
+    public static final String EXPORT_ATTRIBUTE = "omero-export";
+
+    final OmeroSourceOpener opener;
+    String path;
+    Format format = Format.ZARR;
+    int nThreads = 4;
+    // Limits the number of tiles being fetched or written at the same time
+    Semaphore inFlight;
+    ForegroundMask foreground;
+
+    final AtomicLong writtenBlocks = new AtomicLong();
+    final AtomicLong skippedBlocks = new AtomicLong();
+    final AtomicLong backgroundBlocks = new AtomicLong();
+    // encoded background tiles, by channel and size of the tile
+    final Map<List<Integer>, byte[]> backgroundTiles = new ConcurrentHashMap<>();
+    long totalBlocks;
+
+    public OmeroN5Exporter(OmeroSourceOpener opener) {
+        this.opener = opener;
+    }
+
+    public OmeroN5Exporter path(String path) {
+        this.path = path;
+        return this;
+    }
+
+    public OmeroN5Exporter format(Format format) {
+        this.format = format;
+        return this;
+    }
+
+    public OmeroN5Exporter nThreads(int nThreads) {
+        this.nThreads = nThreads;
+        return this;
+    }
+
+    /**
+     * Semaphore shared between exporters in order to bound the total number of in-flight tiles.
+     * If not set, each exporter allows 2 tiles per thread.
+     */
+    public OmeroN5Exporter inFlightLimit(Semaphore inFlight) {
+        this.inFlight = inFlight;
+        return this;
+    }
+
+    /**
+     * Skips the tiles which are background according to a mask computed on a coarse level
+     */
+    public OmeroN5Exporter skipBackground(ForegroundMask foreground) {
+        this.foreground = foreground;
+        return this;
+    }
+
+    public long getWrittenBlocks() {
+        return writtenBlocks.get();
+    }
+
+    public long getSkippedBlocks() {
+        return skippedBlocks.get();
+    }
+
+    /**
+     * @return number of background blocks written with the background value instead of being fetched
+     */
+    public long getBackgroundBlocks() {
+        return backgroundBlocks.get();
+    }
+
+    public long getTotalBlocks() {
+        return totalBlocks;
+    }
+
+    /**
+     * @return dataset path of a resolution level in the container
+     */
+    public static String getDatasetPath(int level) {
+        return Integer.toString(level);
+    }
+
+    public static DataType getDataType(String pixelType) {
+        switch (pixelType) {
+            case INT8_TYPE: return DataType.INT8;
+            case UINT8_TYPE: return DataType.UINT8;
+            case INT16_TYPE: return DataType.INT16;
+            case UINT16_TYPE: return DataType.UINT16;
+            case INT32_TYPE: return DataType.INT32;
+            case UINT32_TYPE: return DataType.UINT32;
+            case FLOAT_TYPE: return DataType.FLOAT32;
+            case DOUBLE_TYPE: return DataType.FLOAT64;
+            default:
+                throw new IllegalStateException("Unsupported pixel type : " + pixelType);
+        }
+    }
+
+    /**
+     * Writes the whole image, blocking until all tiles are written
+     * @throws Exception the first error encountered while fetching or writing a tile
+     */
+    public void export() throws Exception {
+        if (inFlight == null) inFlight = new Semaphore(2 * nThreads);
+
+        N5Writer n5 = (format == Format.ZARR) ? new N5ZarrWriter(path) : new N5FSWriter(path);
+        DataType dataType = getDataType(opener.getPixelType());
+
+        List<DatasetAttributes> attributes = new ArrayList<>();
+        totalBlocks = 0;
+        for (int level = 0; level < opener.getNLevels(); level++) {
+            long[] dimensions = new long[]{opener.getSizeX(level), opener.getSizeY(level), opener.getSizeZ(level),
+                    opener.getSizeC(), opener.getSizeT()};
+            int[] blockSize = new int[]{opener.getTileSizeX(level), opener.getTileSizeY(level), 1, 1, 1};
+            String dataset = getDatasetPath(level);
+            // an existing dataset is kept as is, so that its blocks are not written again
+            if (!n5.datasetExists(dataset)) {
+                n5.createDataset(dataset, dimensions, blockSize, dataType, new GzipCompression());
+            }
+            DatasetAttributes datasetAttributes = n5.getDatasetAttributes(dataset);
+            if (!Arrays.equals(datasetAttributes.getDimensions(), dimensions)) {
+                throw new IllegalStateException("Dataset " + dataset + " of " + path + " does not match image " + opener.getImageID());
+            }
+            attributes.add(datasetAttributes);
+            totalBlocks += getNTiles(level) * opener.getSizeZ(level) * opener.getSizeC() * opener.getSizeT();
+        }
+        n5.setAttribute("/", "multiscales", getMultiscales());
+
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        AtomicReference<Exception> error = new AtomicReference<>();
+        try {
+            // coarse levels first: a preview is available quickly
+            for (int level = opener.getNLevels() - 1; (level >= 0) && (error.get() == null); level--) {
+                final int l = level;
+                final DatasetAttributes datasetAttributes = attributes.get(level);
+                int nTilesX = getNTiles(opener.getSizeX(level), opener.getTileSizeX(level));
+                int nTilesY = getNTiles(opener.getSizeY(level), opener.getTileSizeY(level));
+                for (int t = 0; t < opener.getSizeT(); t++) {
+                    for (int c = 0; c < opener.getSizeC(); c++) {
+                        for (int z = 0; z < opener.getSizeZ(level); z++) {
+                            for (int ty = 0; ty < nTilesY; ty++) {
+                                for (int tx = 0; tx < nTilesX; tx++) {
+                                    if (error.get() != null) break;
+                                    final long[] gridPosition = new long[]{tx, ty, z, c, t};
+                                    inFlight.acquire();
+                                    executor.submit(() -> {
+                                        try {
+                                            writeBlock(n5, l, datasetAttributes, gridPosition);
+                                        } catch (Exception e) {
+                                            error.compareAndSet(null, e);
+                                        } finally {
+                                            inFlight.release();
+                                        }
+                                    });
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        }
+        if (error.get() != null) throw error.get();
+
+        // marks the container as complete, so that a later run does not need to check its blocks
+        Map<String, Object> progress = new HashMap<>();
+        progress.put("imageID", opener.getImageID());
+        progress.put("complete", true);
+        n5.setAttribute("/", EXPORT_ATTRIBUTE, progress);
+    }
+
+    /**
+     * @return true if a previous export to this path went through all tiles without error
+     */
+    public static boolean isComplete(String path, Format format) {
+        if (!new File(path).exists()) return false;
+        try {
+            N5Reader n5 = (format == Format.ZARR) ? new N5ZarrReader(path) : new N5FSReader(path);
+            Map<?, ?> progress = n5.getAttribute("/", EXPORT_ATTRIBUTE, Map.class);
+            return (progress != null) && Boolean.TRUE.equals(progress.get("complete"));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    void writeBlock(N5Writer n5, int level, DatasetAttributes attributes, long[] gridPosition) throws Exception {
+        String dataset = getDatasetPath(level);
+        int tileSizeX = opener.getTileSizeX(level);
+        int tileSizeY = opener.getTileSizeY(level);
+        int x = (int) gridPosition[0] * tileSizeX;
+        int y = (int) gridPosition[1] * tileSizeY;
+        int w = Math.min(tileSizeX, opener.getSizeX(level) - x);
+        int h = Math.min(tileSizeY, opener.getSizeY(level) - y);
+        int bytesPerPixel = TileDecoder.getBytesPerPixel(opener.getPixelType());
+        // Zarr chunks at the border of the image are padded to the full block size
+        if (isBlockComplete(getBlockFile(dataset, gridPosition),
+                (long) w * h * bytesPerPixel, (long) tileSizeX * tileSizeY * bytesPerPixel)) {
+            skippedBlocks.incrementAndGet();
+            return;
+        }
+
+        boolean background = (foreground != null) && !foreground.isForeground(level, x, y, w, h);
+        byte[] bytes = background ? getBackgroundTile((int) gridPosition[3], w, h) :
+                opener.getTile(level, (int) gridPosition[2], (int) gridPosition[3], (int) gridPosition[4], x, y, w, h);
+
+        // the server sends big endian bytes, which is also the byte order of N5 blocks
+        DataBlock<?> block = attributes.getDataType().createDataBlock(new int[]{w, h, 1, 1, 1}, gridPosition);
+        block.readData(ByteBuffer.wrap(bytes));
+        n5.writeBlock(dataset, attributes, block);
+        if (background) {
+            backgroundBlocks.incrementAndGet();
+        } else {
+            writtenBlocks.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return big endian bytes of a tile filled with the background value of a channel, shared by all its blocks
+     */
+    byte[] getBackgroundTile(int c, int w, int h) throws Exception {
+        List<Integer> key = Arrays.asList(c, w, h);
+        byte[] bytes = backgroundTiles.get(key);
+        if (bytes == null) {
+            bytes = getConstantTile(opener.getPixelType(), w * h, foreground.getBackgroundValue(c));
+            backgroundTiles.put(key, bytes);
+        }
+        return bytes;
+    }
+
+    static byte[] getConstantTile(String pixelType, int nPixels, double value) {
+        ByteBuffer buffer = ByteBuffer.allocate(nPixels * TileDecoder.getBytesPerPixel(pixelType));
+        for (int i = 0; i < nPixels; i++) {
+            switch (pixelType) {
+                case INT8_TYPE:
+                case UINT8_TYPE: buffer.put((byte) Math.round(value));
+                    break;
+                case INT16_TYPE:
+                case UINT16_TYPE: buffer.putShort((short) Math.round(value));
+                    break;
+                case INT32_TYPE:
+                case UINT32_TYPE: buffer.putInt((int) Math.round(value));
+                    break;
+                case FLOAT_TYPE: buffer.putFloat((float) value);
+                    break;
+                case DOUBLE_TYPE: buffer.putDouble(value);
+                    break;
+                default:
+                    throw new IllegalStateException("Unsupported pixel type : " + pixelType);
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @return file of a block in the container, N5 blocks are nested folders in XYZCT order,
+     * Zarr chunks are named by their position in TCZYX order
+     */
+    File getBlockFile(String dataset, long[] gridPosition) {
+        StringBuilder key = new StringBuilder();
+        if (format == Format.ZARR) {
+            for (int d = gridPosition.length - 1; d >= 0; d--) {
+                key.append(gridPosition[d]);
+                if (d > 0) key.append('.');
+            }
+            File file = new File(new File(path, dataset), key.toString());
+            // nested chunks with the '/' dimension separator
+            return file.exists() ? file : new File(new File(path, dataset), key.toString().replace('.', '/'));
+        }
+        for (int d = 0; d < gridPosition.length; d++) {
+            if (d > 0) key.append('/');
+            key.append(gridPosition[d]);
+        }
+        return new File(new File(path, dataset), key.toString());
+    }
+
+    /**
+     * Checks the size of the uncompressed data written at the end of the gzip stream of a block (ISIZE field),
+     * without reading the block: the trailer is the last part written, a block truncated by an interruption
+     * does not end with the expected size.
+     * @param expectedSizes sizes in bytes of the uncompressed data of a complete block
+     * @return true if the block file exists and is complete, false if it should be written
+     */
+    static boolean isBlockComplete(File file, long... expectedSizes) {
+        if (!file.isFile() || (file.length() < 18)) return false;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            in.seek(file.length() - 4);
+            // little endian, modulo 2^32
+            long size = (in.read() | (in.read() << 8) | (in.read() << 16) | ((long) in.read() << 24)) & 0xffffffffL;
+            for (long expectedSize : expectedSizes) {
+                if (size == (expectedSize & 0xffffffffL)) return true;
+            }
+            return false;
+        } catch (IOException e) {
+            // unreadable block: written again
+            return false;
+        }
+    }
+
+    long getNTiles(int level) {
+        return (long) getNTiles(opener.getSizeX(level), opener.getTileSizeX(level))
+                * getNTiles(opener.getSizeY(level), opener.getTileSizeY(level));
+    }
+
+    static int getNTiles(int size, int tileSize) {
+        return (size + tileSize - 1) / tileSize;
+    }
+
+    /**
+     * OME-Zarr (0.4) multiscales metadata, axes are given in TCZYX order
+     */
+    List<Map<String, Object>> getMultiscales() {
+        String unit = (opener.u == null) ? null : opener.u.name().toLowerCase();
+        List<Map<String, Object>> axes = new ArrayList<>();
+        axes.add(axis("t", "time", null));
+        axes.add(axis("c", "channel", null));
+        axes.add(axis("z", "space", unit));
+        axes.add(axis("y", "space", unit));
+        axes.add(axis("x", "space", unit));
+
+        List<Map<String, Object>> datasets = new ArrayList<>();
+        for (int level = 0; level < opener.getNLevels(); level++) {
+            Map<String, Object> scale = new HashMap<>();
+            scale.put("type", "scale");
+            scale.put("scale", new double[]{1, 1,
+                    opener.getPixelSizeZ() * opener.getSizeZ(0) / opener.getSizeZ(level),
+                    opener.getPixelSizeY() * opener.getSizeY(0) / opener.getSizeY(level),
+                    opener.getPixelSizeX() * opener.getSizeX(0) / opener.getSizeX(level)});
+            List<Map<String, Object>> transforms = new ArrayList<>();
+            transforms.add(scale);
+            Map<String, Object> dataset = new HashMap<>();
+            dataset.put("path", getDatasetPath(level));
+            dataset.put("coordinateTransformations", transforms);
+            datasets.add(dataset);
+        }
+
+        Map<String, Object> multiscale = new HashMap<>();
+        multiscale.put("version", "0.4");
+        multiscale.put("name", "OMERO image " + opener.getImageID());
+        multiscale.put("axes", axes);
+        multiscale.put("datasets", datasets);
+        List<Map<String, Object>> multiscales = new ArrayList<>();
+        multiscales.add(multiscale);
+        return multiscales;
+    }
+
+    static Map<String, Object> axis(String name, String type, String unit) {
+        Map<String, Object> axis = new HashMap<>();
+        axis.put("name", name);
+        axis.put("type", type);
+        if (unit != null) axis.put("unit", unit);
+        return axis;
+    }
+
+}
@@ -0,0 +1,264 @@
+package ch.epfl.biop.omero.extract;
+
+import ch.epfl.biop.omero.omerosource.OmeroSourceOpener;
+import ch.epfl.biop.omero.omerosource.TileDecoder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads a hypercube (x, y, z, c, t) of an OMERO image in chunks small enough for the server,
+ * instead of a single getHypercube call which fails for large requests.
+ *
+ * The hypercube is split into bands of rows of each plane (or parts of a row for very wide images),
+ * so that each chunk is a contiguous range of the raw bytes of the hypercube in XYZCT order, big endian.
+ * Chunks are fetched in parallel with the rawPixelsStores of the opener and can be read as a stream,
+ * with a bounded number of chunks held in memory, or written into a buffer provided by the caller.
+ */
+public class HypercubeReader {
+
+    final OmeroSourceOpener opener;
+    int nThreads = 4;
+    long maxChunkBytes = 8 * 1024 * 1024;
+
+    public HypercubeReader(OmeroSourceOpener opener) {
+        this.opener = opener;
+    }
+
+    public HypercubeReader nThreads(int nThreads) {
+        this.nThreads = nThreads;
+        return this;
+    }
+
+    // maximal size of a request to the server
+    public HypercubeReader maxChunkBytes(long maxChunkBytes) {
+        this.maxChunkBytes = maxChunkBytes;
+        return this;
+    }
+
+    /**
+     * Part of a plane, contiguous in the hypercube
+     */
+    public static class Chunk {
+        public final int x, y, z, c, t, w, h;
+        // position of the first byte of the chunk in the hypercube
+        public final long offset;
+
+        Chunk(int x, int y, int z, int c, int t, int w, int h, long offset) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.c = c;
+            this.t = t;
+            this.w = w;
+            this.h = h;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * @param offset first pixel (x, y, z, c, t) of the hypercube
+     * @param size size (x, y, z, c, t) of the hypercube
+     * @return size in bytes of the hypercube
+     */
+    public long getSizeInBytes(int[] offset, int[] size) {
+        long n = TileDecoder.getBytesPerPixel(opener.getPixelType());
+        for (int d = 0; d < 5; d++) n *= size[d];
+        return n;
+    }
+
+    /**
+     * @return chunks covering the hypercube, in the order of the bytes of the hypercube
+     */
+    public List<Chunk> getChunks(int[] offset, int[] size) {
+        int bytesPerPixel = TileDecoder.getBytesPerPixel(opener.getPixelType());
+        long rowBytes = (long) size[0] * bytesPerPixel;
+        List<Chunk> chunks = new ArrayList<>();
+        long position = 0;
+        for (int t = offset[4]; t < offset[4] + size[4]; t++) {
+            for (int c = offset[3]; c < offset[3] + size[3]; c++) {
+                for (int z = offset[2]; z < offset[2] + size[2]; z++) {
+                    if (rowBytes <= maxChunkBytes) {
+                        // bands of complete rows
+                        int rows = (int) Math.max(1, Math.min(size[1], maxChunkBytes / rowBytes));
+                        for (int y = offset[1]; y < offset[1] + size[1]; y += rows) {
+                            int h = Math.min(rows, offset[1] + size[1] - y);
+                            chunks.add(new Chunk(offset[0], y, z, c, t, size[0], h, position));
+                            position += h * rowBytes;
+                        }
+                    } else {
+                        // parts of a row
+                        int width = (int) Math.max(1, maxChunkBytes / bytesPerPixel);
+                        for (int y = offset[1]; y < offset[1] + size[1]; y++) {
+                            for (int x = offset[0]; x < offset[0] + size[0]; x += width) {
+                                int w = Math.min(width, offset[0] + size[0] - x);
+                                chunks.add(new Chunk(x, y, z, c, t, w, 1, position));
+                                position += (long) w * bytesPerPixel;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the hypercube is not inside the image at this resolution level
+     */
+    public void checkBounds(int level, int[] offset, int[] size) {
+        if ((level < 0) || (level >= opener.getNLevels())) {
+            throw new IllegalArgumentException("Resolution level " + level + " out of [0, " + opener.getNLevels() + "[");
+        }
+        long[] dimensions = new long[]{opener.getSizeX(level), opener.getSizeY(level), opener.getSizeZ(level),
+                opener.getSizeC(), opener.getSizeT()};
+        for (int d = 0; d < 5; d++) {
+            if ((offset[d] < 0) || (size[d] < 0) || ((long) offset[d] + size[d] > dimensions[d])) {
+                throw new IllegalArgumentException("Hypercube [" + offset[d] + ", " + ((long) offset[d] + size[d])
+                        + "[ out of [0, " + dimensions[d] + "[ in dimension " + "XYZCT".charAt(d));
+            }
+        }
+    }
+
+    byte[] fetch(int level, Chunk chunk) throws Exception {
+        return opener.getTile(level, chunk.z, chunk.c, chunk.t, chunk.x, chunk.y, chunk.w, chunk.h);
+    }
+
+    /**
+     * Fetches the hypercube in parallel into a buffer, at its current position
+     * @param level resolution level
+     * @param offset first pixel (x, y, z, c, t) of the hypercube
+     * @param size size (x, y, z, c, t) of the hypercube
+     * @param buffer buffer with at least {@link #getSizeInBytes(int[], int[])} remaining bytes, it can be a
+     *               memory mapped file for hypercubes larger than the memory, up to 2 GB
+     * @throws IllegalArgumentException if the hypercube is outside the image or does not fit in the buffer,
+     * before any tile is fetched
+     */
+    public void readInto(int level, int[] offset, int[] size, ByteBuffer buffer) throws Exception {
+        checkBounds(level, offset, size);
+        long sizeInBytes = getSizeInBytes(offset, size);
+        // positions in a ByteBuffer are ints
+        if ((long) buffer.position() + sizeInBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Hypercube of " + sizeInBytes + " bytes too large for a buffer, "
+                    + "read it in several parts or with openStream");
+        }
+        if (buffer.remaining() < sizeInBytes) {
+            throw new IllegalArgumentException("Buffer too small: " + buffer.remaining() + " bytes remaining, "
+                    + sizeInBytes + " bytes needed");
+        }
+        int start = buffer.position();
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Chunk chunk : getChunks(offset, size)) {
+                futures.add(executor.submit(() -> {
+                    byte[] bytes = fetch(level, chunk);
+                    // each thread writes in its own view of the buffer
+                    ByteBuffer view = buffer.duplicate();
+                    view.position(Math.toIntExact(start + chunk.offset));
+                    view.put(bytes);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        buffer.position(Math.toIntExact(start + sizeInBytes));
+    }
+
+    /**
+     * Streams the raw bytes of the hypercube. Chunks are fetched in parallel ahead of the reader,
+     * at most 2 chunks per thread are held in memory. The stream must be closed to stop the fetching threads.
+     * @param level resolution level
+     * @param offset first pixel (x, y, z, c, t) of the hypercube
+     * @param size size (x, y, z, c, t) of the hypercube
+     */
+    public InputStream openStream(int level, int[] offset, int[] size) {
+        checkBounds(level, offset, size);
+        return new ChunkInputStream(level, getChunks(offset, size));
+    }
+
+    class ChunkInputStream extends InputStream {
+
+        final int level;
+        final List<Chunk> chunks;
+        final ExecutorService executor = Executors.newFixedThreadPool(nThreads, r -> {
+            Thread thread = new Thread(r, "OMERO hypercube stream");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final Deque<Future<byte[]>> ahead = new ArrayDeque<>();
+        int nextChunk = 0;
+        byte[] current = new byte[0];
+        int position = 0;
+
+        ChunkInputStream(int level, List<Chunk> chunks) {
+            this.level = level;
+            this.chunks = chunks;
+            fillWindow();
+        }
+
+        void fillWindow() {
+            while ((ahead.size() < 2 * nThreads) && (nextChunk < chunks.size())) {
+                Chunk chunk = chunks.get(nextChunk++);
+                ahead.add(executor.submit(() -> fetch(level, chunk)));
+            }
+        }
+
+        /**
+         * @return false at the end of the hypercube
+         */
+        boolean nextChunk() throws IOException {
+            while (position >= current.length) {
+                if (ahead.isEmpty()) return false;
+                try {
+                    current = ahead.poll().get();
+                } catch (InterruptedException | ExecutionException e) {
+                    throw new IOException("Could not fetch chunk", e);
+                }
+                position = 0;
+                fillWindow();
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk()) return -1;
+            return current[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!nextChunk()) return -1;
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return current.length - position;
+        }
+
+        @Override
+        public void close() {
+            executor.shutdownNow();
+            ahead.clear();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package ch.epfl.biop.omero.extract;
+
+import ch.epfl.biop.omero.omerosource.OmeroSource;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Samples the intensities of an {@link OmeroSource} along a polyline, for one timepoint (line profile)
+ * or for all timepoints (kymograph).
+ *
+ * The polyline is rasterized with one sample per pixel of the chosen resolution level, and only the cells
+ * crossed by the line are loaded, in parallel, through the cache of the source: the cost is proportional
+ * to the length of the line, not to the area of the image.
+ */
+public class LineProfileExtractor {
+
+    final OmeroSource<? extends RealType<?>> source;
+    int nThreads = 4;
+
+    public LineProfileExtractor(OmeroSource<? extends RealType<?>> source) {
+        this.source = source;
+    }
+
+    public LineProfileExtractor nThreads(int nThreads) {
+        this.nThreads = nThreads;
+        return this;
+    }
+
+    /**
+     * Rasterizes a polyline with one sample per pixel along each segment
+     * @param polyline vertices (x, y), in pixel coordinates of the resolution level
+     * @return positions (x, y) of the samples, rounded to the nearest pixel
+     */
+    public static long[][] rasterize(double[][] polyline) {
+        List<long[]> samples = new ArrayList<>();
+        for (int i = 0; i < polyline.length - 1; i++) {
+            double dx = polyline[i + 1][0] - polyline[i][0];
+            double dy = polyline[i + 1][1] - polyline[i][1];
+            int n = Math.max(1, (int) Math.ceil(Math.max(Math.abs(dx), Math.abs(dy))));
+            // the last vertex of a segment is the first one of the next segment
+            for (int s = 0; s < n; s++) {
+                samples.add(new long[]{
+                        Math.round(polyline[i][0] + dx * s / n),
+                        Math.round(polyline[i][1] + dy * s / n)});
+            }
+        }
+        double[] last = polyline[polyline.length - 1];
+        samples.add(new long[]{Math.round(last[0]), Math.round(last[1])});
+        return samples.toArray(new long[0][]);
+    }
+
+    /**
+     * @param level resolution level
+     * @param t timepoint
+     * @param z plane, in pixels of the resolution level
+     * @param polyline vertices (x, y), in pixel coordinates of the resolution level
+     * @return intensity at each sample of the polyline, NaN outside of the image
+     * @throws IllegalArgumentException if the resolution level or the timepoint does not exist in the image
+     */
+    public double[] profile(int level, int t, int z, double[][] polyline) throws Exception {
+        PointSampler.checkIndex("Resolution level", level, source.getOpener().getNLevels());
+        PointSampler.checkIndex("Timepoint", t, source.getOpener().getSizeT());
+        long[][] samples = rasterize(polyline);
+        RandomAccessibleInterval<? extends RealType<?>> image = source.getSource(t, level);
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try {
+            waitFor(prefetch(executor, getCachedImage(t, level), samples, z));
+        } finally {
+            executor.shutdownNow();
+        }
+        double[] values = new double[samples.length];
+        sample(image, samples, z, values, 0);
+        return values;
+    }
+
+    /**
+     * @param level resolution level
+     * @param z plane, in pixels of the resolution level
+     * @param polyline vertices (x, y), in pixel coordinates of the resolution level
+     * @return kymograph: x is the position along the polyline, y is the timepoint
+     * @throws IllegalArgumentException if the resolution level does not exist in the image
+     */
+    public ArrayImg<FloatType, FloatArray> kymograph(int level, int z, double[][] polyline) throws Exception {
+        PointSampler.checkIndex("Resolution level", level, source.getOpener().getNLevels());
+        long[][] samples = rasterize(polyline);
+        int sizeT = source.getOpener().getSizeT();
+        float[] kymograph = new float[samples.length * sizeT];
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try {
+            // the crossed cells of all timepoints are loaded in parallel
+            List<Future<?>> loading = new ArrayList<>();
+            for (int t = 0; t < sizeT; t++) {
+                loading.addAll(prefetch(executor, getCachedImage(t, level), samples, z));
+            }
+            waitFor(loading);
+
+            List<Future<?>> sampling = new ArrayList<>();
+            for (int t = 0; t < sizeT; t++) {
+                final int timepoint = t;
+                sampling.add(executor.submit(() -> {
+                    double[] values = new double[samples.length];
+                    sample(source.getSource(timepoint, level), samples, z, values, 0);
+                    for (int i = 0; i < values.length; i++) {
+                        kymograph[i + samples.length * timepoint] = (float) values[i];
+                    }
+                }));
+            }
+            waitFor(sampling);
+        } finally {
+            executor.shutdownNow();
+        }
+        return ArrayImgs.floats(kymograph, samples.length, sizeT);
+    }
+
+    /**
+     * @return the image holding the cells read by {@link OmeroSource#getSource(int, int)}: at a quantized level,
+     * the source converts the cells of the compact image, which are the ones to load
+     */
+    RandomAccessibleInterval<?> getCachedImage(int t, int level) {
+        RandomAccessibleInterval<?> quantized = source.getQuantizedImage(t, level);
+        return (quantized != null) ? quantized : source.getSource(t, level);
+    }
+
+    static void sample(RandomAccessibleInterval<? extends RealType<?>> image, long[][] samples, int z, double[] values, int offset) {
+        RandomAccess<? extends RealType<?>> access = image.randomAccess();
+        for (int i = 0; i < samples.length; i++) {
+            if (!contains(image, samples[i], z)) {
+                values[offset + i] = Double.NaN;
+                continue;
+            }
+            access.setPosition(new long[]{samples[i][0], samples[i][1], z});
+            values[offset + i] = access.get().getRealDouble();
+        }
+    }
+
+    /**
+     * Loads in parallel the distinct cells crossed by the samples
+     */
+    static List<Future<?>> prefetch(ExecutorService executor, RandomAccessibleInterval<?> image, long[][] samples, int z) {
+        List<Future<?>> futures = new ArrayList<>();
+        if (!(image instanceof CachedCellImg)) return futures;
+        CellGrid grid = ((CachedCellImg<?, ?>) image).getCellGrid();
+        // one pixel per crossed cell, the first sample met in this cell
+        Set<List<Long>> cells = new LinkedHashSet<>();
+        List<long[]> positions = new ArrayList<>();
+        for (long[] sample : samples) {
+            if (!contains(image, sample, z)) continue;
+            List<Long> cell = new ArrayList<>();
+            cell.add(sample[0] / grid.cellDimension(0));
+            cell.add(sample[1] / grid.cellDimension(1));
+            if (cells.add(cell)) positions.add(new long[]{sample[0], sample[1], z});
+        }
+        for (long[] position : positions) {
+            futures.add(executor.submit(() -> {
+                RandomAccess<?> access = image.randomAccess();
+                access.setPosition(position);
+                access.get();
+            }));
+        }
+        return futures;
+    }
+
+    static boolean contains(RandomAccessibleInterval<?> image, long[] sample, int z) {
+        return (sample[0] >= image.min(0)) && (sample[0] <= image.max(0))
+                && (sample[1] >= image.min(1)) && (sample[1] <= image.max(1))
+                && (z >= image.min(2)) && (z <= image.max(2));
+    }
+
+    static void waitFor(List<Future<?>> futures) throws Exception {
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package ch.epfl.biop.omero.extract;
+
+import ch.epfl.biop.omero.omerosource.OmeroSourceOpener;
+import ch.epfl.biop.omero.omerosource.TileDecoder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads the values of an OMERO image at a batch of points.
+ *
+ * Points are grouped by the tile covering them, and for each group only the bounding box of its points
+ * inside the tile is requested, so that each tile is touched by a single request and no more bytes
+ * than needed are moved. Requests are sent in parallel with the rawPixelsStores of the opener.
+ */
+public class PointSampler {
+
+    final OmeroSourceOpener opener;
+    int nThreads = 4;
+
+    public PointSampler(OmeroSourceOpener opener) {
+        this.opener = opener;
+    }
+
+    public PointSampler nThreads(int nThreads) {
+        this.nThreads = nThreads;
+        return this;
+    }
+
+    /**
+     * Samples points of a single plane, for instance the centroids of detected cells
+     * @param level resolution level
+     * @param x x coordinates, in pixels of the resolution level
+     * @param y y coordinates, in pixels of the resolution level
+     * @return value at each point, NaN for the points outside of the image
+     */
+    public double[] sample(int level, long[] x, long[] y, int z, int c, int t) throws Exception {
+        int n = x.length;
+        int[] zs = new int[n];
+        int[] cs = new int[n];
+        int[] ts = new int[n];
+        int[] levels = new int[n];
+        Arrays.fill(zs, z);
+        Arrays.fill(cs, c);
+        Arrays.fill(ts, t);
+        Arrays.fill(levels, level);
+        return sample(x, y, zs, cs, ts, levels);
+    }
+
+    /**
+     * @param x x coordinates, in pixels of the resolution level of each point
+     * @param y y coordinates, in pixels of the resolution level of each point
+     * @param z plane of each point
+     * @param c channel of each point
+     * @param t timepoint of each point
+     * @param level resolution level of each point
+     * @return value at each point, NaN for the points outside of the image
+     * @throws IllegalArgumentException if a resolution level, channel or timepoint does not exist in the image,
+     * before any tile is fetched
+     */
+    public double[] sample(long[] x, long[] y, int[] z, int[] c, int[] t, int[] level) throws Exception {
+        int n = x.length;
+        for (int i = 0; i < n; i++) {
+            checkIndex("Resolution level", level[i], opener.getNLevels());
+            checkIndex("Channel", c[i], opener.getSizeC());
+            checkIndex("Timepoint", t[i], opener.getSizeT());
+        }
+        double[] values = new double[n];
+        Arrays.fill(values, Double.NaN);
+
+        // indices of the points covered by each tile
+        Map<TileKey, List<Integer>> groups = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            int l = level[i];
+            if ((x[i] < 0) || (y[i] < 0) || (x[i] >= opener.getSizeX(l)) || (y[i] >= opener.getSizeY(l))
+                    || (z[i] < 0) || (z[i] >= opener.getSizeZ(l))) continue;
+            TileKey key = new TileKey(l, z[i], c[i], t[i],
+                    (int) (x[i] / opener.getTileSizeX(l)), (int) (y[i] / opener.getTileSizeY(l)));
+            groups.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+        }
+
+        String pixelType = opener.getPixelType();
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Map.Entry<TileKey, List<Integer>> group : groups.entrySet()) {
+                TileKey key = group.getKey();
+                List<Integer> points = group.getValue();
+                futures.add(executor.submit(() -> {
+                    // bounding box of the points in this tile
+                    long minX = Long.MAX_VALUE, minY = Long.MAX_VALUE, maxX = Long.MIN_VALUE, maxY = Long.MIN_VALUE;
+                    for (int i : points) {
+                        minX = Math.min(minX, x[i]);
+                        minY = Math.min(minY, y[i]);
+                        maxX = Math.max(maxX, x[i]);
+                        maxY = Math.max(maxY, y[i]);
+                    }
+                    int w = (int) (maxX - minX + 1);
+                    int h = (int) (maxY - minY + 1);
+                    byte[] bytes = opener.getTile(key.level, key.z, key.c, key.t, (int) minX, (int) minY, w, h);
+                    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                    for (int i : points) {
+                        // each point is written by a single thread
+                        values[i] = TileDecoder.getValue(buffer, pixelType, (int) ((x[i] - minX) + w * (y[i] - minY)));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return values;
+    }
+
+    static void checkIndex(String name, int index, int size) {
+        if ((index < 0) || (index >= size)) {
+            throw new IllegalArgumentException(name + " " + index + " out of [0, " + size + "[");
+        }
+    }
+
+    static final class TileKey {
+        final int level, z, c, t, tileX, tileY;
+
+        TileKey(int level, int z, int c, int t, int tileX, int tileY) {
+            this.level = level;
+            this.z = z;
+            this.c = c;
+            this.t = t;
+            this.tileX = tileX;
+            this.tileY = tileY;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TileKey)) return false;
+            TileKey other = (TileKey) o;
+            return (level == other.level) && (z == other.z) && (c == other.c) && (t == other.t)
+                    && (tileX == other.tileX) && (tileY == other.tileY);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(new int[]{level, z, c, t, tileX, tileY});
+        }
+    }
+}
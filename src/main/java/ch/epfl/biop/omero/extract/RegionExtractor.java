@@ -0,0 +1,143 @@
+package ch.epfl.biop.omero.extract;
+
+import ch.epfl.biop.omero.omerosource.OmeroSourceOpener;
+import ch.epfl.biop.omero.omerosource.TileDecoder;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RealInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Extracts a bounding box of an OMERO image, at one resolution level, for a set of channels and timepoints,
+ * into a contiguous image of dimensions XYZCT.
+ *
+ * Only the parts of the tiles intersecting the bounding box are requested, in parallel, and each received
+ * row of pixels is copied directly at its place in the preallocated primitive array of the output image.
+ */
+public class RegionExtractor {
+
+    final OmeroSourceOpener opener;
+    int nThreads = 4;
+
+    public RegionExtractor(OmeroSourceOpener opener) {
+        this.opener = opener;
+    }
+
+    public RegionExtractor nThreads(int nThreads) {
+        this.nThreads = nThreads;
+        return this;
+    }
+
+    /**
+     * @param level resolution level
+     * @param region bounding box (x, y, z) in physical coordinates, it is converted to pixel coordinates
+     *               with the transform of the resolution level
+     * @param channels channels to extract
+     * @param timepoints timepoints to extract
+     * @return image of dimensions XYZCT
+     */
+    public <T extends RealType<T> & NativeType<T>> ArrayImg<T, ?> extract(int level, RealInterval region, int[] channels, int[] timepoints) throws Exception {
+        PointSampler.checkIndex("Resolution level", level, opener.getNLevels());
+        return extract(level, toPixelInterval(level, region), channels, timepoints);
+    }
+
+    /**
+     * @param level resolution level
+     * @param region bounding box (x, y, z) in pixel coordinates of the resolution level,
+     *               it is clipped to the image
+     * @param channels channels to extract
+     * @param timepoints timepoints to extract
+     * @return image of dimensions XYZCT
+     * @throws IllegalArgumentException if the level, a channel or a timepoint does not exist, before any tile is fetched
+     */
+    public <T extends RealType<T> & NativeType<T>> ArrayImg<T, ?> extract(int level, Interval region, int[] channels, int[] timepoints) throws Exception {
+        PointSampler.checkIndex("Resolution level", level, opener.getNLevels());
+        for (int c : channels) PointSampler.checkIndex("Channel", c, opener.getSizeC());
+        for (int t : timepoints) PointSampler.checkIndex("Timepoint", t, opener.getSizeT());
+        Interval image = new FinalInterval(opener.getSizeX(level), opener.getSizeY(level), opener.getSizeZ(level));
+        Interval box = Intervals.intersect(region, image);
+        if (Intervals.isEmpty(box)) {
+            throw new IllegalArgumentException("Region " + Util.printInterval(region) + " is outside of the image");
+        }
+        long sx = box.dimension(0);
+        long sy = box.dimension(1);
+        long sz = box.dimension(2);
+        if (sx * sy * sz * channels.length * timepoints.length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Region " + Util.printInterval(box) + " is too large for a single array");
+        }
+
+        String pixelType = opener.getPixelType();
+        ArrayImg<T, ?> output = TileDecoder.createImg(pixelType, sx, sy, sz, channels.length, timepoints.length);
+        Object array = TileDecoder.getStorageArray(output);
+
+        int tileSizeX = opener.getTileSizeX(level);
+        int tileSizeY = opener.getTileSizeY(level);
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int it = 0; it < timepoints.length; it++) {
+                for (int ic = 0; ic < channels.length; ic++) {
+                    for (long z = box.min(2); z <= box.max(2); z++) {
+                        // first tiles touching the box, tiles are aligned on the tile grid
+                        for (long y0 = (box.min(1) / tileSizeY) * tileSizeY; y0 <= box.max(1); y0 += tileSizeY) {
+                            for (long x0 = (box.min(0) / tileSizeX) * tileSizeX; x0 <= box.max(0); x0 += tileSizeX) {
+                                // part of the tile inside the box
+                                int x = (int) Math.max(x0, box.min(0));
+                                int y = (int) Math.max(y0, box.min(1));
+                                int w = (int) (Math.min(x0 + tileSizeX - 1, box.max(0)) - x + 1);
+                                int h = (int) (Math.min(y0 + tileSizeY - 1, box.max(1)) - y + 1);
+                                int c = channels[ic];
+                                int t = timepoints[it];
+                                int zi = (int) z;
+                                // index of the first pixel of the tile part in the output image
+                                long offset = (x - box.min(0)) + sx * ((y - box.min(1))
+                                        + sy * ((z - box.min(2)) + sz * (ic + (long) channels.length * it)));
+                                futures.add(executor.submit(() -> {
+                                    byte[] bytes = opener.getTile(level, zi, c, t, x, y, w, h);
+                                    for (int row = 0; row < h; row++) {
+                                        TileDecoder.copy(bytes, row * w, array, (int) (offset + row * sx), w, pixelType);
+                                    }
+                                    return null;
+                                }));
+                            }
+                        }
+                    }
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return output;
+    }
+
+    /**
+     * Converts a bounding box in physical coordinates to the smallest pixel bounding box containing it
+     */
+    public Interval toPixelInterval(int level, RealInterval region) {
+        AffineTransform3D transform = new AffineTransform3D();
+        opener.getSourceTransform(level, transform);
+        RealInterval pixels = transform.inverse().estimateBounds(region);
+        long[] min = new long[3];
+        long[] max = new long[3];
+        for (int d = 0; d < 3; d++) {
+            min[d] = (long) Math.floor(pixels.realMin(d));
+            max[d] = (long) Math.ceil(pixels.realMax(d));
+        }
+        return new FinalInterval(min, max);
+    }
+
+}
@@ -0,0 +1,455 @@
+package ch.epfl.biop.omero.extract;
+
+import ch.epfl.biop.omero.omerosource.OmeroSourceOpener;
+import ch.epfl.biop.omero.scene.SpatialGridIndex;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
+import omero.gateway.Gateway;
+import omero.gateway.SecurityContext;
+import omero.gateway.facility.ROIFacility;
+import omero.gateway.model.EllipseData;
+import omero.gateway.model.LineData;
+import omero.gateway.model.MaskData;
+import omero.gateway.model.PointData;
+import omero.gateway.model.PolygonData;
+import omero.gateway.model.PolylineData;
+import omero.gateway.model.ROIData;
+import omero.gateway.model.ROIResult;
+import omero.gateway.model.RectangleData;
+import omero.gateway.model.ShapeData;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Restricts the access to an OMERO image to the pixels inside its ROIs.
+ *
+ * The shapes of the ROIs are indexed on a grid of the size of a tile of the highest resolution, so that
+ * finding the shapes covering a tile or a pixel does not look at all the shapes. From this index,
+ * the tiles covered by the shapes are listed at any resolution level, and a masked lazy image only
+ * requests these tiles: the pixels outside of the shapes are zero and the tiles outside are never fetched.
+ *
+ * Shapes are in pixel coordinates of the highest resolution. Text shapes are ignored, lines and points
+ * cover the pixels they cross, and the transform of a shape, if any, is not applied.
+ * A pixel is inside a shape if its center is: the shapes covering a cell are rasterized once each,
+ * over the part of their bounding box inside the cell, instead of testing each pixel against the shapes.
+ */
+public class RoiMask {
+
+    final OmeroSourceOpener opener;
+    final List<Region> regions = new ArrayList<>();
+    final SpatialGridIndex<Region> index;
+    int nThreads = 4;
+
+    /**
+     * A shape of a ROI, -1 for z or t means all planes or all timepoints
+     */
+    static class Region {
+        final long roiID;
+        // bounding rectangle of a mask
+        final Shape shape;
+        final int z, t;
+        // bits of a mask, row by row, most significant bit first, null for the other shapes
+        byte[] mask;
+
+        Region(long roiID, Shape shape, int z, int t) {
+            this.roiID = roiID;
+            this.shape = shape;
+            this.z = z;
+            this.t = t;
+        }
+
+        boolean isIn(int z, int t) {
+            return ((this.z < 0) || (this.z == z)) && ((this.t < 0) || (this.t == t));
+        }
+
+        boolean contains(double x, double y) {
+            if (mask == null) return shape.contains(x, y);
+            Rectangle2D bounds = shape.getBounds2D();
+            long i = (long) Math.floor(x - bounds.getX());
+            long j = (long) Math.floor(y - bounds.getY());
+            long w = (long) bounds.getWidth();
+            if ((i < 0) || (j < 0) || (i >= w) || (j >= (long) bounds.getHeight())) return false;
+            return isSet(mask, j * w + i);
+        }
+    }
+
+    static boolean isSet(byte[] bits, long bit) {
+        return ((bit >> 3) < bits.length) && (((bits[(int) (bit >> 3)] >> (7 - (bit & 7))) & 1) != 0);
+    }
+
+    public RoiMask(OmeroSourceOpener opener, Collection<ROIData> rois) {
+        this.opener = opener;
+        this.index = new SpatialGridIndex<>(Math.max(opener.getTileSizeX(0), opener.getTileSizeY(0)));
+        for (ROIData roi : rois) {
+            Iterator<List<ShapeData>> planes = roi.getIterator();
+            while (planes.hasNext()) {
+                for (ShapeData shapeData : planes.next()) {
+                    Shape shape = toShape(shapeData);
+                    if (shape == null) continue;
+                    Region region = new Region(roi.getId(), shape, shapeData.getZ(), shapeData.getT());
+                    if (shapeData instanceof MaskData) region.mask = ((MaskData) shapeData).getMask();
+                    Rectangle2D bounds = shape.getBounds2D();
+                    regions.add(region);
+                    index.add(new FinalRealInterval(
+                            new double[]{bounds.getMinX(), bounds.getMinY()},
+                            new double[]{bounds.getMaxX(), bounds.getMaxY()}), region);
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads all the ROIs of the image of the opener
+     */
+    public static RoiMask load(Gateway gateway, SecurityContext ctx, OmeroSourceOpener opener) throws Exception {
+        List<ROIData> rois = new ArrayList<>();
+        for (ROIResult result : gateway.getFacility(ROIFacility.class).loadROIs(ctx, opener.getImageID())) {
+            rois.addAll(result.getROIs());
+        }
+        return new RoiMask(opener, rois);
+    }
+
+    public RoiMask nThreads(int nThreads) {
+        this.nThreads = nThreads;
+        return this;
+    }
+
+    public int getNShapes() {
+        return regions.size();
+    }
+
+    static Shape toShape(ShapeData shape) {
+        if (shape instanceof RectangleData) {
+            RectangleData r = (RectangleData) shape;
+            return new Rectangle2D.Double(r.getX(), r.getY(), r.getWidth(), r.getHeight());
+        } else if (shape instanceof MaskData) {
+            // the pixels of the mask are read from its bits, see Region#contains
+            MaskData m = (MaskData) shape;
+            return new Rectangle2D.Double(m.getX(), m.getY(), m.getWidth(), m.getHeight());
+        } else if (shape instanceof EllipseData) {
+            EllipseData e = (EllipseData) shape;
+            return new Ellipse2D.Double(e.getX() - e.getRadiusX(), e.getY() - e.getRadiusY(),
+                    2 * e.getRadiusX(), 2 * e.getRadiusY());
+        } else if (shape instanceof PolygonData) {
+            return toPath(((PolygonData) shape).getPoints(), true);
+        } else if (shape instanceof PolylineData) {
+            return new BasicStroke(1).createStrokedShape(toPath(((PolylineData) shape).getPoints(), false));
+        } else if (shape instanceof LineData) {
+            LineData l = (LineData) shape;
+            return new BasicStroke(1).createStrokedShape(new Line2D.Double(l.getX1(), l.getY1(), l.getX2(), l.getY2()));
+        } else if (shape instanceof PointData) {
+            PointData p = (PointData) shape;
+            return new Rectangle2D.Double(Math.floor(p.getX()), Math.floor(p.getY()), 1, 1);
+        }
+        return null;
+    }
+
+    static Path2D toPath(List<Point2D.Double> points, boolean closed) {
+        Path2D path = new Path2D.Double();
+        for (int i = 0; i < points.size(); i++) {
+            if (i == 0) path.moveTo(points.get(i).x, points.get(i).y);
+            else path.lineTo(points.get(i).x, points.get(i).y);
+        }
+        if (closed) path.closePath();
+        return path;
+    }
+
+    double getScaleX(int level) {
+        return opener.getSizeX(0) / (double) opener.getSizeX(level);
+    }
+
+    double getScaleY(int level) {
+        return opener.getSizeY(0) / (double) opener.getSizeY(level);
+    }
+
+    int getZ0(int level, int z) {
+        return (int) (z * opener.getSizeZ(0) / (long) opener.getSizeZ(level));
+    }
+
+    /**
+     * @return true if the center of the pixel is inside a shape
+     */
+    public boolean contains(int level, long x, long y, int z, int t) {
+        double x0 = (x + 0.5) * getScaleX(level);
+        double y0 = (y + 0.5) * getScaleY(level);
+        int z0 = getZ0(level, z);
+        for (Region region : index.query(new FinalRealInterval(new double[]{x0, y0}, new double[]{x0, y0}))) {
+            if (region.isIn(z0, t) && region.contains(x0, y0)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param level resolution level
+     * @param minX first column, in pixels of the resolution level
+     * @param minY first row, in pixels of the resolution level
+     * @param z plane, in pixels of the resolution level
+     * @return for each pixel of the rectangle, row by row, true if its center is inside a shape
+     */
+    public boolean[] rasterize(int level, long minX, long minY, int w, int h, int z, int t) {
+        double sx = getScaleX(level);
+        double sy = getScaleY(level);
+        int z0 = getZ0(level, z);
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_BINARY);
+        Graphics2D graphics = image.createGraphics();
+        try {
+            for (Region region : index.query(new FinalRealInterval(
+                    new double[]{minX * sx, minY * sy}, new double[]{(minX + w) * sx, (minY + h) * sy}))) {
+                if (region.isIn(z0, t)) rasterize(region, graphics, image.getRaster(), sx, sy, minX, minY);
+            }
+        } finally {
+            graphics.dispose();
+        }
+        return toArray(image.getRaster());
+    }
+
+    /**
+     * Sets to 1 the pixels of the raster whose center is inside the region
+     * @param sx pixel size of the raster, in pixels of the highest resolution
+     * @param minX position of the first column of the raster, in pixels of the raster
+     */
+    static void rasterize(Region region, Graphics2D graphics, WritableRaster raster, double sx, double sy, long minX, long minY) {
+        if (region.mask == null) {
+            // without antialiasing, java2d fills the pixels whose center is inside the shape
+            graphics.setColor(Color.WHITE);
+            graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+            graphics.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+            AffineTransform transform = AffineTransform.getScaleInstance(1 / sx, 1 / sy);
+            transform.translate(-minX * sx, -minY * sy);
+            graphics.setTransform(transform);
+            graphics.fill(region.shape);
+            return;
+        }
+        // only the part of the mask inside the raster is read
+        Rectangle2D bounds = region.shape.getBounds2D();
+        int minI = (int) Math.max(0, Math.floor(bounds.getMinX() / sx) - minX);
+        int minJ = (int) Math.max(0, Math.floor(bounds.getMinY() / sy) - minY);
+        int maxI = (int) Math.min(raster.getWidth() - 1, Math.ceil(bounds.getMaxX() / sx) - minX);
+        int maxJ = (int) Math.min(raster.getHeight() - 1, Math.ceil(bounds.getMaxY() / sy) - minY);
+        for (int j = minJ; j <= maxJ; j++) {
+            for (int i = minI; i <= maxI; i++) {
+                if (region.contains((minX + i + 0.5) * sx, (minY + j + 0.5) * sy)) raster.setSample(i, j, 0, 1);
+            }
+        }
+    }
+
+    static boolean[] toArray(Raster raster) {
+        int w = raster.getWidth();
+        int h = raster.getHeight();
+        boolean[] inside = new boolean[w * h];
+        int[] row = new int[w];
+        for (int j = 0; j < h; j++) {
+            raster.getSamples(0, j, w, 1, 0, row);
+            for (int i = 0; i < w; i++) inside[i + w * j] = (row[i] != 0);
+        }
+        return inside;
+    }
+
+    /**
+     * @return true if a shape intersects the tile
+     */
+    public boolean isTileCovered(int level, int tileX, int tileY, int z, int t) {
+        Rectangle2D tile = getTileBounds(level, tileX, tileY);
+        int z0 = getZ0(level, z);
+        for (Region region : index.query(new FinalRealInterval(
+                new double[]{tile.getMinX(), tile.getMinY()}, new double[]{tile.getMaxX(), tile.getMaxY()}))) {
+            if (region.isIn(z0, t) && region.shape.intersects(tile)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return bounds of a tile, in pixel coordinates of the highest resolution
+     */
+    Rectangle2D getTileBounds(int level, int tileX, int tileY) {
+        int w = opener.getTileSizeX(level);
+        int h = opener.getTileSizeY(level);
+        double x = tileX * (double) w;
+        double y = tileY * (double) h;
+        w = (int) Math.min(w, opener.getSizeX(level) - x);
+        h = (int) Math.min(h, opener.getSizeY(level) - y);
+        return new Rectangle2D.Double(x * getScaleX(level), y * getScaleY(level), w * getScaleX(level), h * getScaleY(level));
+    }
+
+    /**
+     * @param level resolution level
+     * @param z plane, in pixels of the resolution level
+     * @param t timepoint
+     * @return intervals (x, y, z) of the tiles covered by the shapes, in pixels of the resolution level
+     */
+    public List<Interval> getTiles(int level, int z, int t) {
+        int tw = opener.getTileSizeX(level);
+        int th = opener.getTileSizeY(level);
+        int z0 = getZ0(level, z);
+        Map<Long, Interval> tiles = new LinkedHashMap<>();
+        for (Region region : regions) {
+            if (!region.isIn(z0, t)) continue;
+            Rectangle2D bounds = region.shape.getBounds2D();
+            int minTileX = (int) Math.max(0, Math.floor(bounds.getMinX() / getScaleX(level) / tw));
+            int minTileY = (int) Math.max(0, Math.floor(bounds.getMinY() / getScaleY(level) / th));
+            int maxTileX = (int) Math.min((opener.getSizeX(level) - 1) / tw, Math.floor(bounds.getMaxX() / getScaleX(level) / tw));
+            int maxTileY = (int) Math.min((opener.getSizeY(level) - 1) / th, Math.floor(bounds.getMaxY() / getScaleY(level) / th));
+            for (int tileY = minTileY; tileY <= maxTileY; tileY++) {
+                for (int tileX = minTileX; tileX <= maxTileX; tileX++) {
+                    long key = ((long) tileX << 32) ^ tileY;
+                    if (tiles.containsKey(key) || !region.shape.intersects(getTileBounds(level, tileX, tileY))) continue;
+                    long x = (long) tileX * tw;
+                    long y = (long) tileY * th;
+                    tiles.put(key, new FinalInterval(
+                            new long[]{x, y, z},
+                            new long[]{Math.min(x + tw, opener.getSizeX(level)) - 1, Math.min(y + th, opener.getSizeY(level)) - 1, z}));
+                }
+            }
+        }
+        return new ArrayList<>(tiles.values());
+    }
+
+    /**
+     * Lazy image whose pixels outside of the shapes are zero. Its cells are the tiles of the server:
+     * a cell is only fetched, through the cache of the opener, if a shape intersects it.
+     * @param c channel
+     * @param t timepoint
+     * @param level resolution level
+     * @return image of dimensions XYZ
+     */
+    public <T extends RealType<T> & NativeType<T>> RandomAccessibleInterval<T> getMaskedImage(int c, int t, int level) throws Exception {
+        final RandomAccessibleInterval<T> image = opener.getCachedImage(c, t, level);
+        int tw = opener.getTileSizeX(level);
+        int th = opener.getTileSizeY(level);
+
+        final CellLoader<T> loader = cell -> {
+            int z = (int) cell.min(2);
+            // cells are initialized to zero
+            if (!isTileCovered(level, (int) (cell.min(0) / tw), (int) (cell.min(1) / th), z, t)) return;
+            int w = (int) cell.dimension(0);
+            boolean[] inside = rasterize(level, cell.min(0), cell.min(1), w, (int) cell.dimension(1), z, t);
+            RandomAccess<T> access = image.randomAccess();
+            Cursor<T> cursor = cell.localizingCursor();
+            while (cursor.hasNext()) {
+                cursor.fwd();
+                if (inside[(int) ((cursor.getLongPosition(0) - cell.min(0)) + w * (cursor.getLongPosition(1) - cell.min(1)))]) {
+                    access.setPosition(cursor);
+                    cursor.get().set(access.get());
+                }
+            }
+        };
+
+        ReadOnlyCachedCellImgOptions options = new ReadOnlyCachedCellImgOptions().cellDimensions(tw, th, 1);
+        return new ReadOnlyCachedCellImgFactory(options).create(
+                new long[]{opener.getSizeX(level), opener.getSizeY(level), opener.getSizeZ(level)},
+                Util.getTypeFromInterval(image).createVariable(), loader);
+    }
+
+    /**
+     * Intensity statistics of the pixels of a ROI
+     */
+    public static class Measurement {
+        public final long roiID;
+        public long count;
+        public double mean;
+        public double min = Double.POSITIVE_INFINITY;
+        public double max = Double.NEGATIVE_INFINITY;
+
+        Measurement(long roiID) {
+            this.roiID = roiID;
+        }
+    }
+
+    /**
+     * Measures each shape of the ROIs in parallel, only the tiles covered by the shapes are fetched.
+     * Shapes without z are measured on the first plane.
+     * @param c channel
+     * @param t timepoint, shapes of other timepoints are skipped
+     * @param level resolution level
+     * @return one measurement per shape, in the order of the shapes
+     */
+    public <T extends RealType<T> & NativeType<T>> List<Measurement> measure(int c, int t, int level) throws Exception {
+        final RandomAccessibleInterval<T> image = opener.getCachedImage(c, t, level);
+        double sx = getScaleX(level);
+        double sy = getScaleY(level);
+        List<Future<Measurement>> futures = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try {
+            for (Region region : regions) {
+                if ((region.t >= 0) && (region.t != t)) continue;
+                futures.add(executor.submit(() -> {
+                    Measurement measurement = new Measurement(region.roiID);
+                    int z = (int) (Math.max(0, region.z) * (long) opener.getSizeZ(level) / opener.getSizeZ(0));
+                    Rectangle2D bounds = region.shape.getBounds2D();
+                    long minX = Math.max(0, (long) Math.floor(bounds.getMinX() / sx));
+                    long minY = Math.max(0, (long) Math.floor(bounds.getMinY() / sy));
+                    long maxX = Math.min(image.max(0), (long) Math.ceil(bounds.getMaxX() / sx));
+                    long maxY = Math.min(image.max(1), (long) Math.ceil(bounds.getMaxY() / sy));
+                    RandomAccess<T> access = image.randomAccess();
+                    double sum = 0;
+                    int w = (int) (maxX - minX + 1);
+                    // the shape is rasterized once, by bands of rows to bound the memory for large shapes
+                    int band = Math.max(1, opener.getTileSizeY(level));
+                    for (long bandY = minY; (w > 0) && (bandY <= maxY); bandY += band) {
+                        int h = (int) Math.min(band, maxY - bandY + 1);
+                        BufferedImage mask = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_BINARY);
+                        Graphics2D graphics = mask.createGraphics();
+                        try {
+                            rasterize(region, graphics, mask.getRaster(), sx, sy, minX, bandY);
+                        } finally {
+                            graphics.dispose();
+                        }
+                        boolean[] inside = toArray(mask.getRaster());
+                        for (int j = 0; j < h; j++) {
+                            for (int i = 0; i < w; i++) {
+                                if (!inside[i + w * j]) continue;
+                                access.setPosition(new long[]{minX + i, bandY + j, z});
+                                double value = access.get().getRealDouble();
+                                sum += value;
+                                measurement.count++;
+                                measurement.min = Math.min(measurement.min, value);
+                                measurement.max = Math.max(measurement.max, value);
+                            }
+                        }
+                    }
+                    measurement.mean = (measurement.count == 0) ? Double.NaN : sum / measurement.count;
+                    return measurement;
+                }));
+            }
+            List<Measurement> measurements = new ArrayList<>();
+            for (Future<Measurement> future : futures) {
+                measurements.add(future.get());
+            }
+            return measurements;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
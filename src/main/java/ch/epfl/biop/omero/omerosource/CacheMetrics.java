@@ -0,0 +1,65 @@
+package ch.epfl.biop.omero.omerosource;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing how the cells of the sources of an {@link OmeroSourceOpener} were obtained.
+ * One instance is shared by all the sources created from the same opener.
+ */
+public class CacheMetrics {
+
+    // tiles requested to the server with RawPixelsStore.getTile
+    final AtomicLong fetchedTiles = new AtomicLong();
+    final AtomicLong fetchedBytes = new AtomicLong();
+    // coarse tiles computed locally by downsampling finer tiles already present in the cache
+    final AtomicLong derivedTiles = new AtomicLong();
+    // tiles filled locally because they are known to be constant, see ConstantTileRegistry
+    final AtomicLong constantTiles = new AtomicLong();
+    // loaded cells sharing the array of an identical constant cell
+    final AtomicLong sharedTiles = new AtomicLong();
+
+    public long getFetchedTiles() {
+        return fetchedTiles.get();
+    }
+
+    public long getFetchedBytes() {
+        return fetchedBytes.get();
+    }
+
+    public long getDerivedTiles() {
+        return derivedTiles.get();
+    }
+
+    public long getConstantTiles() {
+        return constantTiles.get();
+    }
+
+    public long getSharedTiles() {
+        return sharedTiles.get();
+    }
+
+    /**
+     * @return fraction of the loaded tiles which did not require a request to the server
+     */
+    public double getHitRate() {
+        long hits = getDerivedTiles() + getConstantTiles();
+        long total = hits + getFetchedTiles();
+        return total == 0 ? 0 : (double) hits / (double) total;
+    }
+
+    public void reset() {
+        fetchedTiles.set(0);
+        fetchedBytes.set(0);
+        derivedTiles.set(0);
+        constantTiles.set(0);
+        sharedTiles.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "fetched tiles: " + getFetchedTiles() + " (" + getFetchedBytes() + " bytes)"
+                + "; derived tiles: " + getDerivedTiles()
+                + "; constant tiles: " + getConstantTiles() + " (" + getSharedTiles() + " sharing their array)"
+                + "; hit rate: " + String.format("%.1f", 100 * getHitRate()) + " %";
+    }
+}
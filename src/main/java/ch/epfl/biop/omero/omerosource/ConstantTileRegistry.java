@@ -0,0 +1,111 @@
+package ch.epfl.biop.omero.omerosource;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tiles of an OMERO image known to contain a single value, like the padding at the borders of the
+ * resolution levels or empty background. A tile found here is filled locally instead of being fetched.
+ *
+ * The registry can be persisted in a text file, one line "level z c t x y value" per tile, so that these
+ * tiles are not fetched again in later sessions. The file is specific to one pixels ID of one server.
+ */
+public class ConstantTileRegistry {
+
+    final Map<String, Double> values = new ConcurrentHashMap<>();
+    // null: the registry is kept in memory only
+    final File file;
+    // the last line of the file was cut by an interrupted session
+    boolean unterminated = false;
+
+    public ConstantTileRegistry() {
+        this.file = null;
+    }
+
+    /**
+     * @param file registry file, loaded if it exists and appended to when new constant tiles are found
+     */
+    public ConstantTileRegistry(File file) {
+        this.file = file;
+        if (!file.exists()) return;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            unterminated = !isTerminated(file);
+            List<String> lines = new ArrayList<>();
+            String read;
+            while ((read = reader.readLine()) != null) lines.add(read);
+            // a line cut by an interrupted session can have all its fields and a truncated value
+            if (unterminated && !lines.isEmpty()) lines.remove(lines.size() - 1);
+            for (String line : lines) {
+                String[] fields = line.trim().split(" ");
+                if (fields.length != 7) continue;
+                try {
+                    values.put(key(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]), Integer.parseInt(fields[2]),
+                            Integer.parseInt(fields[3]), Integer.parseInt(fields[4]), Integer.parseInt(fields[5])),
+                            Double.parseDouble(fields[6]));
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid line in " + file + " : " + line);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return true if the file is empty or ends with a line separator
+     */
+    static boolean isTerminated(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            if (in.length() == 0) return true;
+            in.seek(in.length() - 1);
+            int last = in.read();
+            return (last == '\n') || (last == '\r');
+        }
+    }
+
+    static String key(int level, int z, int c, int t, int x, int y) {
+        return level + " " + z + " " + c + " " + t + " " + x + " " + y;
+    }
+
+    /**
+     * @param x first pixel of the tile, in pixels of the resolution level
+     * @param y first pixel of the tile, in pixels of the resolution level
+     * @return the value of all pixels of the tile, or null if the tile is not known to be constant
+     */
+    public Double get(int level, int z, int c, int t, int x, int y) {
+        return values.get(key(level, z, c, t, x, y));
+    }
+
+    public void record(int level, int z, int c, int t, int x, int y, double value) {
+        String key = key(level, z, c, t, x, y);
+        if ((values.putIfAbsent(key, value) == null) && (file != null)) {
+            append(key + " " + value);
+        }
+    }
+
+    synchronized void append(String line) {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if ((parent != null) && !parent.exists()) parent.mkdirs();
+        try (Writer writer = new FileWriter(file, true)) {
+            // the cut line is not read again, it must not be merged with the new one
+            if (unterminated) writer.write(System.lineSeparator());
+            unterminated = false;
+            writer.write(line + System.lineSeparator());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public int size() {
+        return values.size();
+    }
+}
@@ -0,0 +1,47 @@
+package ch.epfl.biop.omero.omerosource;
+
+import net.imglib2.Cursor;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.view.Views;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Display only source of the preview levels of an image, see {@link OmeroSourceOpener#previewLevels(int, float)}:
+ * its cells are JPEG tiles rendered by the server with the OMERO rendering settings of the image (active channels,
+ * colors and display windows), composited in ARGB. The finer levels of this source are transparent: they are
+ * displayed by the sources of the channels, whose preview levels are in turn transparent in the display.
+ */
+public class OmeroPreviewSource extends OmeroSourceRGB {
+
+    public OmeroPreviewSource(OmeroSourceOpener opener) {
+        super(opener);
+    }
+
+    @Override
+    protected void loadCell(SingleCellArrayImg<ARGBType, ?> cell, int t, int level) throws Exception {
+        if (level == opener.getNLevels()) {
+            // thumbnail level, also rendered by the server
+            super.loadCell(cell, t, level);
+            return;
+        }
+        // cells are initialized transparent
+        if (!opener.isPreviewLevel(level)) return;
+
+        BufferedImage image = opener.getRenderedTile(level, (int) cell.min(2), t,
+                (int) cell.min(0), (int) cell.min(1), (int) cell.dimension(0), (int) cell.dimension(1));
+        Cursor<ARGBType> out = Views.flatIterable(cell).localizingCursor();
+        while (out.hasNext()) {
+            out.fwd();
+            int x = (int) (out.getLongPosition(0) - cell.min(0));
+            int y = (int) (out.getLongPosition(1) - cell.min(1));
+            out.get().set(image.getRGB(Math.min(x, image.getWidth() - 1), Math.min(y, image.getHeight() - 1)) | 0xff000000);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "OMERO ID: " + imageID + "; Preview";
+    }
+}
@@ -9,12 +9,34 @@ import ch.epfl.biop.bdv.bioformats.bioformatssource.BioFormatsBdvSourceUnsignedS
 import ch.epfl.biop.ij2command.OmeroTools;
 import ch.epfl.biop.omero.omerosource.OmeroSourceOpener;
 import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccessible;
+import net.imglib2.cache.Cache;
+import net.imglib2.converter.Converters;
+import net.imglib2.cache.CacheLoader;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.LoadedCellCacheLoader;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.cache.ref.SoftRefLoaderCache;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.img.basictypeaccess.ArrayDataAccessFactory;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
 import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.NativeTypeFactory;
+import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.view.ExtendedRandomAccessibleInterval;
+import net.imglib2.util.IntervalIndexer;
 import net.imglib2.view.Views;
 import ome.model.units.BigResult;
 import omero.api.IMetadataPrx;
@@ -24,16 +46,20 @@ import omero.gateway.facility.RawDataFacility;
 import omero.gateway.model.PixelsData;
 import omero.model.enums.UnitsLength;
 
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 
-public abstract class OmeroSource<T extends NumericType< T >> implements Source<T>{
+public abstract class OmeroSource<T extends NumericType< T > & NativeType< T >> implements Source<T>{
 
     protected final DefaultInterpolators< T > interpolators = new DefaultInterpolators<>();
 
@@ -61,11 +87,19 @@ public abstract class OmeroSource<T extends NumericType< T >> implements Source<
         this.pSizeY = opener.getPixelSizeY();
         this.pSizeZ = opener.getPixelSizeZ();
         this.sizeT = opener.getSizeT();
-        this.nLevels = opener.getNLevels();
+        this.nLevels = opener.getNLevels() + (opener.hasThumbnailLevel() ? 1 : 0);
         this.channel_index = c;
         this.opener = opener;
     }
 
+    public OmeroSourceOpener getOpener() {
+        return opener;
+    }
+
+    public int getChannel() {
+        return channel_index;
+    }
+
     @Override
     public boolean isPresent(int t) {
         return t<sizeT;
@@ -85,31 +119,419 @@ public abstract class OmeroSource<T extends NumericType< T >> implements Source<
 
 
     /**
-     * The core function of the source which is implemented in subclasses
-     * @see BioFormatsBdvSourceRGB24bits
-     * @see BioFormatsBdvSourceUnsignedByte
-     * @see BioFormatsBdvSourceUnsignedShort
+     * Maximal number of finer tiles which are downsampled to compute one coarser tile,
+     * beyond that it is cheaper to fetch the coarser tile from the server
+     */
+    static final int MAX_DERIVATION_TILES = 256;
+
+    /**
+     * Creates the lazy cached image of requested timepoint and resolution level, see {@link #getSource(int, int)}
+     * Cells are filled by {@link #loadCell(SingleCellArrayImg, int, int)}
      * @param t // timepoint
      * @param level // resolution level
      * @return
      */
-    abstract public RandomAccessibleInterval<T> createSource(int t, int level);
+    public RandomAccessibleInterval<T> createSource(int t, int level) {
+        return createSource(t, level, isQuantized(level));
+    }
+
+    /**
+     * @param quantized true to cache the cells with reduced precision, see {@link #createQuantizedSource(CellGrid, int, int)}
+     */
+    RandomAccessibleInterval<T> createSource(int t, int level, boolean quantized) {
+        try {
+            // Set cell dimensions according to resolution level
+            int xc = this.opener.getTileSizeX(level);
+            int yc = this.opener.getTileSizeY(level);
+            int zc = 1;
+            CellGrid grid = new CellGrid(getDimensions(level), new int[]{xc, yc, zc});
+
+            if (quantized) return createQuantizedSource(grid, t, level);
+
+            // Creates image, with cell Consumer method, which creates the image
+            final CellLoader<T> loader = cell -> loadCell(cell, t, level);
+            return createCachedImg(grid, loader, getType(), cell -> recordConstantCell(cell, t, level));
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Same as a read only cached cell image of ReadOnlyCachedCellImgFactory, except that the loaded cells
+     * whose pixels all have the same value share their array with the other constant cells of the same
+     * value and size, see {@link #shareIfConstant(Cell, Consumer)}
+     * @param onConstantCell called with each loaded cell whose pixels all have the same value
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    <U extends NativeType<U>> CachedCellImg<U, ?> createCachedImg(CellGrid grid, CellLoader<U> loader, U type, Consumer<Cell<?>> onConstantCell) {
+        // volatile accesses, so that the display wraps the same cache, see OmeroVolatileSource
+        Set<AccessFlags> flags = AccessFlags.setOf(AccessFlags.VOLATILE);
+        final CacheLoader<Long, Cell> cellLoader = (CacheLoader) LoadedCellCacheLoader.get(grid, loader, type, flags);
+        final Cache<Long, Cell> cache = new SoftRefLoaderCache<Long, Cell>()
+                .withLoader(key -> shareIfConstant(cellLoader.get(key), onConstantCell));
+        CachedCellImg img = new CachedCellImg(grid, type.getEntitiesPerPixel(), (Cache) cache,
+                ArrayDataAccessFactory.get(type, flags));
+        img.setLinkedType(((NativeTypeFactory) type.getNativeTypeFactory()).createLinkedType(img));
+        return img;
+    }
+
+    /**
+     * Compact images of the quantized levels, 1st key: time point // 2nd key: resolution level
+     */
+    final Map<Integer, Map<Integer, CachedCellImg<?, ?>>> quantizedMap = new ConcurrentHashMap<>();
+
+    /**
+     * The cells of a quantized level are stored with the reduced precision type of the {@link Quantizer}
+     * of the channel, the returned image converts them back to the type of the source on the fly
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    RandomAccessibleInterval<T> createQuantizedSource(CellGrid grid, int t, int level) throws Exception {
+        Quantizer quantizer = opener.getQuantizer(channel_index);
+        IntegerType storageType = quantizer.getStorageType();
+        CellLoader loader = cell -> loadQuantizedCell((SingleCellArrayImg) cell, t, level, quantizer);
+        // quantized values are not the values of the image, they are not recorded
+        CachedCellImg<?, ?> stored = createCachedImg(grid, loader, (NativeType) storageType, cell -> {});
+        quantizedMap.computeIfAbsent(t, k -> new ConcurrentHashMap<>()).put(level, stored);
+        return Converters.convert((RandomAccessibleInterval<IntegerType>) (RandomAccessibleInterval) stored,
+                (in, out) -> ((RealType<?>) out).setReal(quantizer.toValue(in.getInteger())), getType());
+    }
+
+    void loadQuantizedCell(SingleCellArrayImg<? extends IntegerType<?>, ?> cell, int t, int level, Quantizer quantizer) throws Exception {
+        byte[] bytes = opener.getTile(level, (int) cell.min(2), channel_index, t,
+                (int) cell.min(0), (int) cell.min(1), (int) cell.dimension(0), (int) cell.dimension(1));
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        String pixelType = opener.getPixelType();
+        Cursor<? extends IntegerType<?>> out = Views.flatIterable(cell).cursor();
+        int idxPx = 0;
+        while (out.hasNext()) {
+            out.next().setInteger(quantizer.quantize(TileDecoder.getValue(buffer, pixelType, idxPx)));
+            idxPx++;
+        }
+    }
+
+    /**
+     * @return true if the cells of the level are cached with reduced precision. Only the tiles read from the server
+     * are quantized: the cells of sources computed from other sources are not decoded from tiles
+     */
+    boolean isQuantized(int level) {
+        return hasServerTiles() && opener.isQuantized(level) && (getType() instanceof RealType);
+    }
+
+    /**
+     * Full precision images of the quantized levels, 1st key: time point // 2nd key: resolution level
+     */
+    final Map<Integer, Map<Integer, RandomAccessibleInterval<T>>> fullPrecisionMap = new ConcurrentHashMap<>();
+
+    /**
+     * Same as {@link #getSource(int, int)}, except at the quantized levels where the values are read with the precision
+     * of the image, in a separate cache. Sources computed from this one read it, so that their values do not depend
+     * on the quantized levels
+     */
+    public RandomAccessibleInterval<T> getFullPrecisionSource(int t, int level) {
+        if (!isQuantized(level)) return getSource(t, level);
+        return fullPrecisionMap.computeIfAbsent(t, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(level, l -> createSource(t, l, false));
+    }
+
+    /**
+     * @return the compact image of a quantized level, null if the level is stored with full precision
+     */
+    public CachedCellImg<?, ?> getQuantizedImage(int t, int level) {
+        getSource(t, level);
+        return quantizedMap.getOrDefault(t, Collections.emptyMap()).get(level);
+    }
+
+    static int maxConstantArrays = 16;
+
+    /**
+     * Arrays of the constant cells, by primitive type, length and value. Only the {@link #maxConstantArrays}
+     * most recently used are kept: an evicted array stays valid for the cells using it, until they are
+     * released by the cache of their image, but is no longer shared with new cells
+     */
+    static final Map<String, ArrayDataAccess<?>> constantArrays = new LinkedHashMap<String, ArrayDataAccess<?>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ArrayDataAccess<?>> eldest) {
+            return size() > maxConstantArrays;
+        }
+    };
 
     /**
-     * Returns stored RAI of requested timepoint and resolution level
+     * The values of the cell are scanned once, here, also for {@link #recordConstantCell(Cell, int, int)}
+     * @return the cell, or a cell of the same position backed by the shared array of the same constant value
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    Cell shareIfConstant(Cell cell, Consumer<Cell<?>> onConstantCell) {
+        ArrayDataAccess<?> data = (ArrayDataAccess<?>) cell.getData();
+        String key = getConstantKey(data.getCurrentStorageArray());
+        if (key == null) return cell;
+        onConstantCell.accept(cell);
+        ArrayDataAccess<?> shared;
+        synchronized (constantArrays) {
+            shared = constantArrays.computeIfAbsent(key, k -> data);
+        }
+        if (shared == data) return cell;
+        opener.metrics.sharedTiles.incrementAndGet();
+        int[] dimensions = new int[cell.numDimensions()];
+        cell.dimensions(dimensions);
+        long[] min = new long[cell.numDimensions()];
+        cell.min(min);
+        return new Cell(dimensions, min, shared);
+    }
+
+    /**
+     * @return null if the values of the primitive array are not all the same,
+     * otherwise a key identifying the type, length and value of the array
+     */
+    static String getConstantKey(Object array) {
+        if (array instanceof byte[]) {
+            byte[] a = (byte[]) array;
+            if (a.length == 0) return null;
+            for (byte v : a) if (v != a[0]) return null;
+            return "byte " + a.length + " " + a[0];
+        } else if (array instanceof short[]) {
+            short[] a = (short[]) array;
+            if (a.length == 0) return null;
+            for (short v : a) if (v != a[0]) return null;
+            return "short " + a.length + " " + a[0];
+        } else if (array instanceof int[]) {
+            int[] a = (int[]) array;
+            if (a.length == 0) return null;
+            for (int v : a) if (v != a[0]) return null;
+            return "int " + a.length + " " + a[0];
+        } else if (array instanceof long[]) {
+            long[] a = (long[]) array;
+            if (a.length == 0) return null;
+            for (long v : a) if (v != a[0]) return null;
+            return "long " + a.length + " " + a[0];
+        } else if (array instanceof float[]) {
+            float[] a = (float[]) array;
+            if (a.length == 0) return null;
+            // compares the bits: NaN cells are constant too
+            int first = Float.floatToRawIntBits(a[0]);
+            for (float v : a) if (Float.floatToRawIntBits(v) != first) return null;
+            return "float " + a.length + " " + first;
+        } else if (array instanceof double[]) {
+            double[] a = (double[]) array;
+            if (a.length == 0) return null;
+            long first = Double.doubleToRawLongBits(a[0]);
+            for (double v : a) if (Double.doubleToRawLongBits(v) != first) return null;
+            return "double " + a.length + " " + first;
+        }
+        return null;
+    }
+
+    /**
+     * @param level resolution level
+     * @return image sizes (number of pixels) at this resolution level
+     */
+    protected long[] getDimensions(int level) {
+        return new long[]{opener.getSizeX(level), opener.getSizeY(level), opener.getSizeZ(level)};
+    }
+
+    /**
+     * Fills a cell: the cell is computed from finer tiles if they are all in the cache and the opener
+     * derives coarse levels (see {@link OmeroSourceOpener#deriveCoarseLevels()}),
+     * otherwise the tile is fetched from the server and decoded
+     * @param cell cell to fill, it knows its position in the image at this resolution level
+     * @param t timepoint
+     * @param level resolution level
+     * @throws Exception
+     */
+    protected void loadCell(SingleCellArrayImg<T, ?> cell, int t, int level) throws Exception {
+        if (level == opener.getNLevels()) {
+            loadThumbnail(cell);
+            return;
+        }
+        if (deriveFromFinerLevel(cell, t, level)) {
+            opener.metrics.derivedTiles.incrementAndGet();
+            return;
+        }
+
+        int minX = (int) cell.min(0);
+        int minY = (int) cell.min(1);
+        int z = (int) cell.min(2);
+        int w = (int) cell.dimension(0);
+        int h = (int) cell.dimension(1);
+
+        Double constant = opener.constantTiles.get(level, z, channel_index, t, minX, minY);
+        if ((constant != null) && (getType() instanceof RealType)) {
+            for (T value : Views.flatIterable(cell)) ((RealType<?>) value).setReal(constant);
+            opener.metrics.constantTiles.incrementAndGet();
+            return;
+        }
+
+        byte[] bytes = opener.getTile(level, z, channel_index, t, minX, minY, w, h);
+        // constant tiles are recorded once the cell is loaded, see recordConstantCell
+        decode(bytes, Views.flatIterable(cell).cursor());
+    }
+
+    /**
+     * @return false for the sources whose cells are computed from other sources instead of being tiles of the image:
+     * their constant cells are not recorded in the {@link ConstantTileRegistry} of the opener and their levels are
+     * never quantized
+     */
+    protected boolean hasServerTiles() {
+        return true;
+    }
+
+    /**
+     * Records a loaded constant cell of the image in the registry of the opener,
+     * so that it is filled locally instead of being fetched the next time
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    void recordConstantCell(Cell<?> cell, int t, int level) {
+        // the thumbnail level is rendered, not read from the server
+        if (!hasServerTiles() || (level >= opener.getNLevels()) || !(getType() instanceof RealType)) return;
+        // reads the value of the first pixel with the type of the source
+        T type = getType();
+        ArrayImg img = new ArrayImg((ArrayDataAccess) cell.getData(), new long[]{1}, type.getEntitiesPerPixel());
+        img.setLinkedType(((NativeTypeFactory) type.getNativeTypeFactory()).createLinkedType(img));
+        double value = ((RealType<?>) img.firstElement()).getRealDouble();
+        opener.constantTiles.record(level, (int) cell.min(2), channel_index, t, (int) cell.min(0), (int) cell.min(1), value);
+    }
+
+    /**
+     * Fills the cell of the thumbnail level, which is made of a single cell. The level is meant for the display:
+     * its values are approximate, and the level is left empty for multi-channel images, whose thumbnail
+     * mixes the channels and is displayed by the preview source instead
+     */
+    void loadThumbnail(SingleCellArrayImg<T, ?> cell) throws Exception {
+        // cells are initialized to zero
+        if (opener.hasCompositeThumbnailLevel()) return;
+        double[] values = opener.getThumbnail(channel_index);
+        Cursor<T> out = Views.flatIterable(cell).cursor();
+        int i = 0;
+        while (out.hasNext()) {
+            T value = out.next();
+            if (value instanceof RealType) ((RealType<?>) value).setReal(values[i]);
+            i++;
+        }
+    }
+
+    /**
+     * Converts the raw bytes (big endian) returned by the server into pixel values.
+     * The sources of the pixel types override it with a faster typed decoding, sources computed from
+     * other sources override {@link #loadCell(SingleCellArrayImg, int, int)} and never reach it.
+     * @param bytes raw bytes of a tile
+     * @param out cursor over the cell, in flat iteration order
+     */
+    protected void decode(byte[] bytes, Cursor<T> out) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        String pixelType = opener.getPixelType();
+        int nPixels = bytes.length / TileDecoder.getBytesPerPixel(pixelType);
+        int idxPx = 0;
+        while ((out.hasNext()) && (idxPx < nPixels)) {
+            T value = out.next();
+            if (value instanceof RealType) ((RealType<?>) value).setReal(TileDecoder.getValue(buffer, pixelType, idxPx));
+            idxPx++;
+        }
+    }
+
+    /**
+     * Looks for a finer resolution level for which all tiles covering the cell are in the cache.
+     * If one is found, the cell is computed by averaging the finer pixels and no request is sent to the server.
+     * Only done for the openers which derive coarse levels, the cells then depend on the content of the cache.
+     * @return true if the cell has been filled
+     */
+    boolean deriveFromFinerLevel(SingleCellArrayImg<T, ?> cell, int t, int level) {
+        if (!opener.deriveCoarseLevels || (level == 0) || !(getType() instanceof RealType) || !raiMap.containsKey(t)) return false;
+
+        for (int finerLevel = level - 1; finerLevel >= 0; finerLevel--) {
+            if (opener.getSizeZ(finerLevel) != opener.getSizeZ(level)) return false;
+            // downsampling factors between the two levels
+            int fx = Math.round((float) opener.getSizeX(finerLevel) / (float) opener.getSizeX(level));
+            int fy = Math.round((float) opener.getSizeY(finerLevel) / (float) opener.getSizeY(level));
+            if ((fx < 1) || (fy < 1)) return false;
+
+            RandomAccessibleInterval<T> finer = raiMap.get(t).get(finerLevel);
+            if (!(finer instanceof CachedCellImg)) continue;
+
+            long[] min = new long[]{cell.min(0) * fx, cell.min(1) * fy, cell.min(2)};
+            long[] max = new long[]{
+                    Math.min((cell.max(0) + 1) * fx, finer.dimension(0)) - 1,
+                    Math.min((cell.max(1) + 1) * fy, finer.dimension(1)) - 1,
+                    cell.max(2)};
+            if ((max[0] < min[0]) || (max[1] < min[1])) return false;
+
+            CellGrid grid = ((CachedCellImg<T, ?>) finer).getCellGrid();
+            long[] gridDimensions = grid.getGridDimensions();
+            long[] gridMin = new long[3];
+            long[] gridMax = new long[3];
+            for (int d = 0; d < 3; d++) {
+                gridMin[d] = min[d] / grid.cellDimension(d);
+                gridMax[d] = max[d] / grid.cellDimension(d);
+            }
+            long nTiles = (gridMax[0] - gridMin[0] + 1) * (gridMax[1] - gridMin[1] + 1) * (gridMax[2] - gridMin[2] + 1);
+            // finer levels only need more tiles
+            if (nTiles > MAX_DERIVATION_TILES) return false;
+
+            if (allCellsPresent((CachedCellImg<T, ?>) finer, gridDimensions, gridMin, gridMax)) {
+                downsample(finer, cell, fx, fy);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean allCellsPresent(CachedCellImg<?, ?> img, long[] gridDimensions, long[] gridMin, long[] gridMax) {
+        long[] gridPosition = new long[3];
+        for (gridPosition[2] = gridMin[2]; gridPosition[2] <= gridMax[2]; gridPosition[2]++) {
+            for (gridPosition[1] = gridMin[1]; gridPosition[1] <= gridMax[1]; gridPosition[1]++) {
+                for (gridPosition[0] = gridMin[0]; gridPosition[0] <= gridMax[0]; gridPosition[0]++) {
+                    long index = IntervalIndexer.positionToIndex(gridPosition, gridDimensions);
+                    if (img.getCache().getIfPresent(index) == null) return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Block average of fx * fy finer pixels for each pixel of the cell
+     */
+    private void downsample(RandomAccessibleInterval<T> finer, SingleCellArrayImg<T, ?> cell, int fx, int fy) {
+        RandomAccess<T> in = finer.randomAccess();
+        Cursor<T> out = Views.flatIterable(cell).localizingCursor();
+        long[] position = new long[3];
+        while (out.hasNext()) {
+            out.fwd();
+            out.localize(position);
+            long x0 = position[0] * fx;
+            long y0 = position[1] * fy;
+            long x1 = Math.min(x0 + fx, finer.dimension(0));
+            long y1 = Math.min(y0 + fy, finer.dimension(1));
+            double sum = 0;
+            int n = 0;
+            in.setPosition(position[2], 2);
+            for (long y = y0; y < y1; y++) {
+                in.setPosition(y, 1);
+                for (long x = x0; x < x1; x++) {
+                    in.setPosition(x, 0);
+                    sum += ((RealType<?>) in.get()).getRealDouble();
+                    n++;
+                }
+            }
+            if (n > 0) {
+                double value = sum / n;
+                if (out.get() instanceof IntegerType) value = Math.round(value);
+                ((RealType<?>) out.get()).setReal(value);
+            }
+        }
+    }
+
+    /**
+     * Returns stored RAI of requested timepoint and resolution level,
+     * created only once even if requested concurrently, so that all threads share the same cache
      * @param t
      * @param level
      * @return
      */
     @Override
     public RandomAccessibleInterval<T> getSource(int t, int level) {
-        //TODO: check if synchronized is required
-        if (raiMap.containsKey(t)) {
-            if (raiMap.get(t).containsKey(level)) {
-                return raiMap.get(t).get(level);
-            }
-        }
-        return createSource(t,level);
+        return raiMap.computeIfAbsent(t, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(level, l -> createSource(t, l));
     }
 
     @Override
@@ -124,10 +546,7 @@ public abstract class OmeroSource<T extends NumericType< T >> implements Source<
 
     @Override
     public void getSourceTransform(int t, int level, AffineTransform3D transform) {
-        transform.identity();
-        transform.scale(pSizeX*(double)opener.imageSize.get(0)[0]/(double)opener.imageSize.get(level)[0],
-                pSizeY*(double)opener.imageSize.get(0)[1]/(double)opener.imageSize.get(level)[1],
-                pSizeZ*(double)opener.imageSize.get(0)[2]/(double)opener.imageSize.get(level)[2]);
+        opener.getSourceTransform(level, transform);
     }
 
     @Override
@@ -0,0 +1,27 @@
+package ch.epfl.biop.omero.omerosource;
+
+import net.imglib2.Cursor;
+import net.imglib2.type.numeric.integer.ByteType;
+
+import java.nio.ByteBuffer;
+
+public class OmeroSourceByte extends OmeroSource<ByteType> {
+    public OmeroSourceByte(OmeroSourceOpener opener, int c) throws Exception {
+        super(opener, c);
+    }
+
+    @Override
+    protected void decode(byte[] bytes, Cursor<ByteType> out) {
+        // bytes are sent in big endian order by the server
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while ((out.hasNext()) && (buffer.remaining() >= 1)) {
+            out.next().set(buffer.get());
+        }
+    }
+
+    @Override
+    public ByteType getType() {
+        return new ByteType();
+    }
+
+}
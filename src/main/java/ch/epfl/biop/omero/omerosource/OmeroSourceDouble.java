@@ -0,0 +1,27 @@
+package ch.epfl.biop.omero.omerosource;
+
+import net.imglib2.Cursor;
+import net.imglib2.type.numeric.real.DoubleType;
+
+import java.nio.ByteBuffer;
+
+public class OmeroSourceDouble extends OmeroSource<DoubleType> {
+    public OmeroSourceDouble(OmeroSourceOpener opener, int c) throws Exception {
+        super(opener, c);
+    }
+
+    @Override
+    protected void decode(byte[] bytes, Cursor<DoubleType> out) {
+        // bytes are sent in big endian order by the server
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while ((out.hasNext()) && (buffer.remaining() >= 8)) {
+            out.next().set(buffer.getDouble());
+        }
+    }
+
+    @Override
+    public DoubleType getType() {
+        return new DoubleType();
+    }
+
+}
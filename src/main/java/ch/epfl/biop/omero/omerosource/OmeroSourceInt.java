@@ -0,0 +1,27 @@
+package ch.epfl.biop.omero.omerosource;
+
+import net.imglib2.Cursor;
+import net.imglib2.type.numeric.integer.IntType;
+
+import java.nio.ByteBuffer;
+
+public class OmeroSourceInt extends OmeroSource<IntType> {
+    public OmeroSourceInt(OmeroSourceOpener opener, int c) throws Exception {
+        super(opener, c);
+    }
+
+    @Override
+    protected void decode(byte[] bytes, Cursor<IntType> out) {
+        // bytes are sent in big endian order by the server
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while ((out.hasNext()) && (buffer.remaining() >= 4)) {
+            out.next().set(buffer.getInt());
+        }
+    }
+
+    @Override
+    public IntType getType() {
+        return new IntType();
+    }
+
+}
@@ -5,16 +5,16 @@ import bdv.util.volatiles.SharedQueue;
 import bdv.viewer.SourceAndConverter;
 import ch.epfl.biop.bdv.bioformats.BioFormatsMetaDataHelper;
 import ch.epfl.biop.bdv.bioformats.bioformatssource.BioFormatsBdvOpener;
-import ch.epfl.biop.bdv.bioformats.bioformatssource.BioFormatsBdvSource;
 import ch.epfl.biop.bdv.bioformats.bioformatssource.ReaderPool;
-import ch.epfl.biop.bdv.bioformats.bioformatssource.VolatileBdvSource;
 import ch.epfl.biop.ij2command.OmeroTools;
 
 import loci.formats.*;
 import loci.formats.meta.IMetadata;
 import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.converter.Converter;
 import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.NumericType;
 import ome.formats.model.ChannelData;
 import ome.formats.model.IObjectContainerStore;
@@ -23,6 +23,7 @@ import ome.units.unit.Unit;
 import omero.ServerError;
 import omero.api.IMetadataPrx;
 import omero.api.RawPixelsStorePrx;
+import omero.api.RenderingEnginePrx;
 import omero.api.ResolutionDescription;
 import omero.gateway.SecurityContext;
 import omero.gateway.Gateway;
@@ -32,15 +33,25 @@ import omero.gateway.facility.MetadataFacility;
 import omero.gateway.model.ImageData;
 import omero.gateway.model.PixelsData;
 import omero.model.Length;
+import omero.model.ChannelBinding;
 import omero.model.LogicalChannel;
+import omero.model.RenderingDef;
 import omero.model.enums.UnitsLength;
+import omero.romio.PlaneDef;
+import omero.romio.RegionDef;
+import omero.romio.XY;
 import sc.fiji.bdvpg.sourceandconverter.SourceAndConverterHelper;
 
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static omero.gateway.model.PixelsData.*;
 
@@ -64,13 +75,42 @@ public class OmeroSourceOpener {
     // Bioformats location fix
     public double[] positionPreTransformMatrixArray;
     public double[] positionPostTransformMatrixArray;
+    // Maximal number of rawPixelsStores opened for this image
+    int poolSize = 10;
+    // Folder of the registries of constant tiles, null to keep them in memory only
+    String constantTilesDirectory;
+    // Resolution levels cached with reduced precision
+    int[] quantizedLevels = new int[0];
+    // Number of coarsest levels displayed from JPEG tiles rendered by the server, and their JPEG quality
+    int nPreviewLevels = 0;
+    float previewQuality = 0.8f;
+    // Coarse tiles computed from cached finer tiles instead of being fetched, for display only
+    boolean deriveCoarseLevels = false;
 
 
     // All non-serializable fields
-    transient SharedQueue cc = new SharedQueue(2, 4);
+    transient SharedQueue cc;
     transient Gateway gateway;
     transient SecurityContext securityContext;
-    transient RawPixelsStorePool pool = new RawPixelsStorePool(10, true, this::getNewStore);
+    transient ImageData imageData;
+    transient volatile RawPixelsStorePool pool;
+    transient ThumbnailBatchLoader thumbnails;
+    // sources of the channels, see getSource
+    transient final Map<Integer, OmeroSource<?>> sources = new ConcurrentHashMap<>();
+    transient OmeroSourceRGB rgbSource;
+    transient OmeroPreviewSource previewSource;
+    // a rendering engine keeps its resolution level between calls: used by one thread at a time.
+    // Owned by the opener, other users of the gateway have their own engines
+    transient RenderingEnginePrx renderingEngine;
+    transient final Object renderingLock = new Object();
+    // display window (start, end) of each channel, used to convert the thumbnail back to intensities
+    transient double[][] thumbnailWindows;
+    // display window of each channel, mapped to 8 bits in the quantized levels of 16 bits images
+    transient double[][] quantizationWindows;
+    transient CacheMetrics metrics = new CacheMetrics();
+    transient ConstantTileRegistry constantTiles = new ConstantTileRegistry();
+    // true if the 3 channels are rendered red, green and blue, see isRGB
+    transient boolean rgbChannelColors;
     transient int sizeT;
     transient int sizeC;
     transient int nLevels;
@@ -80,6 +120,7 @@ public class OmeroSourceOpener {
     transient Map<Integer,int[]> imageSize;
     transient Map<Integer,int[]> tileSize;
     transient long pixelsID;
+    transient String pixelType;
 
     // All get methods
     public int getSizeX(int level) { return this.imageSize.get(level)[0]; }
@@ -100,9 +141,87 @@ public class OmeroSourceOpener {
     public int getNLevels() {
         return this.nLevels;
     }
+    public long getImageID() {
+        return this.omeroImageID;
+    }
+    public Gateway getGateway() {
+        return this.gateway;
+    }
     public long getPixelsID() {
         return this.pixelsID;
     }
+    public String getPixelType() {
+        return this.pixelType;
+    }
+
+    /**
+     * @return true if the image is displayed as a single ARGB source: uint8 images with 3 channels rendered
+     * in red, green and blue by their OMERO rendering settings, like brightfield slides,
+     * unless {@link #splitRGBChannels()} is set. Other uint8 images with 3 channels keep one source per channel.
+     */
+    public boolean isRGB() {
+        return !splitRGBChannels && UINT8_TYPE.equals(pixelType) && (sizeC == 3) && rgbChannelColors;
+    }
+
+    /**
+     * @return true if the level is displayed from rendered tiles, see {@link #previewLevels(int, float)}.
+     * The thumbnail level of a multi-channel image is always a preview level, see {@link #hasCompositeThumbnailLevel()}
+     */
+    public boolean isPreviewLevel(int level) {
+        int nAllLevels = nLevels + (hasThumbnailLevel() ? 1 : 0);
+        int n = getNPreviewLevels();
+        return (n > 0) && (level >= nAllLevels - n) && (level < nAllLevels);
+    }
+
+    int getNPreviewLevels() {
+        return hasCompositeThumbnailLevel() ? Math.max(1, nPreviewLevels) : nPreviewLevels;
+    }
+
+    /**
+     * @return true if the level is cached with reduced precision, see {@link #quantizedLevels(int...)}
+     */
+    public boolean isQuantized(int level) {
+        if (level >= nLevels) return false;
+        switch (pixelType) {
+            case UINT16_TYPE: case INT16_TYPE: case FLOAT_TYPE: case DOUBLE_TYPE: break;
+            default: return false;
+        }
+        for (int quantizedLevel : quantizedLevels) {
+            if (quantizedLevel == level) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the mapping of the values of a channel in its quantized levels
+     */
+    public synchronized Quantizer getQuantizer(int c) throws Exception {
+        if (FLOAT_TYPE.equals(pixelType) || DOUBLE_TYPE.equals(pixelType)) return Quantizer.toHalfPrecision();
+        // full range of the type without rendering settings
+        double[] typeRange = INT16_TYPE.equals(pixelType) ? new double[]{-32768, 32767} : new double[]{0, 65535};
+        if (quantizationWindows == null) quantizationWindows = getRenderingWindows(sizeC, typeRange);
+        double[] window = (quantizationWindows[c][1] > quantizationWindows[c][0]) ? quantizationWindows[c] : typeRange;
+        return Quantizer.toByte(window[0], window[1]);
+    }
+
+    public CacheMetrics getCacheMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * @return true if sources have an extra coarsest level, of index {@link #getNLevels()}, backed by the thumbnail
+     */
+    public boolean hasThumbnailLevel() {
+        return this.thumbnailWindows != null;
+    }
+
+    /**
+     * @return true if the thumbnail level composites several channels: it is then only displayed by the ARGB
+     * preview source, the thumbnail level of the channel sources is empty
+     */
+    public boolean hasCompositeThumbnailLevel() {
+        return hasThumbnailLevel() && !isRGB() && (sizeC > 1);
+    }
 
     public double getPixelSizeX() {
         return this.psizeX;
@@ -120,6 +239,10 @@ public class OmeroSourceOpener {
         return this;
     }
 
+    /**
+     * Opens the 3 channels of RGB images as separate uint8 sources instead of a single ARGB source,
+     * see {@link #isRGB()}
+     */
     public OmeroSourceOpener splitRGBChannels() {
         splitRGBChannels = true;
         return this;
@@ -158,6 +281,94 @@ public class OmeroSourceOpener {
         return this;
     }
 
+    /**
+     * Image already fetched from the server (for instance when listing a dataset),
+     * avoids a round trip to the server in {@link #create()}
+     */
+    public OmeroSourceOpener imageData(ImageData imageData) {
+        this.imageData = imageData;
+        this.omeroImageID = imageData.getId();
+        return this;
+    }
+
+    /**
+     * Fetching queue shared by several openers, so that opening many images
+     * does not start fetching threads for each of them
+     */
+    public OmeroSourceOpener sharedQueue(SharedQueue cc) {
+        this.cc = cc;
+        return this;
+    }
+
+    /**
+     * Adds an extra coarsest level to the sources, backed by the server thumbnail fetched in batch with
+     * the thumbnails of other images. The level is only added if the thumbnail is smaller than the coarsest level.
+     * It is a display level: the rendered thumbnail of multi-channel images is only shown by the preview source.
+     */
+    public OmeroSourceOpener thumbnailLevel(ThumbnailBatchLoader thumbnails) {
+        this.thumbnails = thumbnails;
+        return this;
+    }
+
+    // define the maximal number of rawPixelsStores, they are only opened when needed
+    public OmeroSourceOpener poolSize(int poolSize) {
+        this.poolSize = poolSize;
+        return this;
+    }
+
+    /**
+     * Persists the tiles found to be constant in a folder, one file per image, so that they are not
+     * fetched again in later sessions. Use one folder per OMERO server.
+     */
+    public OmeroSourceOpener constantTilesDirectory(String directory) {
+        this.constantTilesDirectory = directory;
+        return this;
+    }
+
+    /**
+     * Caches some levels, typically the coarse levels used for browsing, with reduced precision:
+     * 16 bits images are mapped to 8 bits with the display window of the OMERO rendering settings,
+     * float and double images are stored as half precision floats. Other levels keep the full precision,
+     * and other pixel types are not affected.
+     */
+    public OmeroSourceOpener quantizedLevels(int... levels) {
+        this.quantizedLevels = levels;
+        return this;
+    }
+
+    /**
+     * Displays the coarsest levels from compressed tiles rendered by the server instead of raw tiles,
+     * in a single ARGB source composited with the OMERO rendering settings, see {@link OmeroPreviewSource}.
+     * Raw tiles are still used for the finer levels and for any headless access to the pixels.
+     * @param nPreviewLevels number of coarsest levels, the thumbnail level included if any
+     * @param quality JPEG quality, between 0 and 1
+     */
+    public OmeroSourceOpener previewLevels(int nPreviewLevels, float quality) {
+        this.nPreviewLevels = nPreviewLevels;
+        this.previewQuality = quality;
+        return this;
+    }
+
+    /**
+     * Computes the tiles of coarse levels by averaging finer tiles when they are all in the cache, instead of
+     * fetching them. Meant for openers used for the display: the pixels of a coarse level then depend on what
+     * was cached before (block means instead of the pyramid of the server), so the same read can give different
+     * values. Openers used for analysis should keep it off, which is the default.
+     */
+    public OmeroSourceOpener deriveCoarseLevels() {
+        this.deriveCoarseLevels = true;
+        return this;
+    }
+
+    /**
+     * Places the image in a global coordinate system, for instance in a mosaic of several images
+     * @param transform applied after the pixel to physical coordinates transform
+     */
+    public OmeroSourceOpener positionTransform(AffineTransform3D transform) {
+        this.positionPostTransformMatrixArray = transform.getRowPackedCopy();
+        return this;
+    }
+
     // define size fields based on omero image ID, gateway and security context
 
     /**
@@ -167,27 +378,48 @@ public class OmeroSourceOpener {
      * @throws Exception
      */
     public OmeroSourceOpener create() throws Exception {
-        //TODO move it to omerosourceopener
-        PixelsData pixels = OmeroTools.getPixelsDataFromOmeroID(omeroImageID, gateway, securityContext);
+        PixelsData pixels = (imageData != null && imageData.getDefaultPixels() != null) ?
+                imageData.getDefaultPixels() :
+                OmeroTools.getPixelsDataFromOmeroID(omeroImageID, gateway, securityContext);
         RawPixelsStorePrx rawPixStore = gateway.getPixelsStore(securityContext);
         this.pixelsID = pixels.getId();
+        this.pixelType = pixels.getPixelType();
+        if (constantTilesDirectory != null) {
+            constantTiles = new ConstantTileRegistry(new File(constantTilesDirectory, "constant_tiles_" + pixelsID + ".txt"));
+        }
         rawPixStore.setPixelsId(this.pixelsID, false);
         this.nLevels = rawPixStore.getResolutionLevels();
+        // each call is a round trip to the server : fetched once for all levels
+        ResolutionDescription[] descriptions = rawPixStore.getResolutionDescriptions();
+        int[] serverTileSize = rawPixStore.getTileSize();
         this.imageSize = new HashMap<>();
         this.tileSize = new HashMap<>();
         for (int level = 0; level<this.nLevels; level++){
             int[] sizes = new int[3];
-            sizes[0] = rawPixStore.getResolutionDescriptions()[level].sizeX;
-            sizes[1] = rawPixStore.getResolutionDescriptions()[level].sizeY;
+            sizes[0] = descriptions[level].sizeX;
+            sizes[1] = descriptions[level].sizeY;
             sizes[2] = pixels.getSizeZ();
             int[] tileSizes = new int[2];
-            tileSizes[0] = Math.min(rawPixStore.getTileSize()[0],rawPixStore.getResolutionDescriptions()[rawPixStore.getResolutionLevels()-1].sizeX);
-            tileSizes[1] = Math.min(rawPixStore.getTileSize()[1],rawPixStore.getResolutionDescriptions()[rawPixStore.getResolutionLevels()-1].sizeY);
+            tileSizes[0] = Math.min(serverTileSize[0],descriptions[this.nLevels-1].sizeX);
+            tileSizes[1] = Math.min(serverTileSize[1],descriptions[this.nLevels-1].sizeY);
             imageSize.put(level,sizes);
             tileSize.put(level,tileSizes);
         }
         this.sizeT = pixels.getSizeT();
         this.sizeC = pixels.getSizeC();
+        if (!splitRGBChannels && UINT8_TYPE.equals(pixelType) && (sizeC == 3)) {
+            rgbChannelColors = hasRGBChannelColors();
+        }
+
+        if ((thumbnails != null) && (thumbnails.getLongestSide() <
+                Math.max(descriptions[this.nLevels-1].sizeX, descriptions[this.nLevels-1].sizeY))) {
+            // the thumbnail is a single rendered plane, stored after the coarsest level
+            int[] thumbnailSize = thumbnails.getThumbnailSize(descriptions[0].sizeX, descriptions[0].sizeY);
+            imageSize.put(this.nLevels, new int[]{thumbnailSize[0], thumbnailSize[1], 1});
+            tileSize.put(this.nLevels, thumbnailSize);
+            thumbnailWindows = getRenderingWindows(pixels.getSizeC());
+            thumbnails.register(this.pixelsID);
+        }
 
         //psizes are expressed in the unit given in the builder
         this.psizeX = pixels.getPixelSizeX(this.u).getValue();
@@ -201,10 +433,97 @@ public class OmeroSourceOpener {
 
         // must close the rawPixStore to free up resources
         rawPixStore.close();
+
+        // rawPixelsStores are created on demand by the pool
+        this.pool = new RawPixelsStorePool(poolSize, true, this::getNewStore);
         return this;
     }
 
 
+    /**
+     * @return display window (start, end) of each channel from the rendering settings,
+     * (0, 255) if the image has no rendering settings
+     */
+    double[][] getRenderingWindows(int nChannels) throws Exception {
+        return getRenderingWindows(nChannels, new double[]{0, 255});
+    }
+
+    /**
+     * @return true if the rendering settings display the channels in red, green and blue, in this order
+     */
+    boolean hasRGBChannelColors() throws Exception {
+        RenderingDef rdef = gateway.getPixelsService(securityContext).retrieveRndSettings(this.pixelsID);
+        if ((rdef == null) || (rdef.sizeOfWaveRendering() < 3)) return false;
+        for (int c = 0; c < 3; c++) {
+            ChannelBinding binding = rdef.getWaveRendering(c);
+            int[] color = new int[]{binding.getRed().getValue(), binding.getGreen().getValue(), binding.getBlue().getValue()};
+            for (int i = 0; i < 3; i++) {
+                if (color[i] != ((i == c) ? 255 : 0)) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param defaultWindow window of the channels without rendering settings
+     */
+    double[][] getRenderingWindows(int nChannels, double[] defaultWindow) throws Exception {
+        double[][] windows = new double[nChannels][];
+        RenderingDef rdef = gateway.getPixelsService(securityContext).retrieveRndSettings(this.pixelsID);
+        for (int c = 0; c < nChannels; c++) {
+            if ((rdef != null) && (c < rdef.sizeOfWaveRendering())) {
+                ChannelBinding binding = rdef.getWaveRendering(c);
+                windows[c] = new double[]{binding.getInputStart().getValue(), binding.getInputEnd().getValue()};
+            } else {
+                windows[c] = defaultWindow.clone();
+            }
+        }
+        return windows;
+    }
+
+    /**
+     * Thumbnail of the image converted back to the intensities of a channel, approximately, for the display only:
+     * the thumbnail is a single rendered plane, used for all timepoints. Multi-channel images do not use it,
+     * see {@link #hasCompositeThumbnailLevel()}
+     * @param c channel
+     * @return intensities, in the order of the pixels of the thumbnail level
+     */
+    public double[] getThumbnail(int c) throws Exception {
+        BufferedImage image = thumbnails.get(this.pixelsID);
+        int w = getSizeX(nLevels);
+        int h = getSizeY(nLevels);
+        double start = thumbnailWindows[c][0];
+        double end = thumbnailWindows[c][1];
+        double[] values = new double[w * h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                // the server size may differ by one pixel from the expected size
+                int rgb = image.getRGB(Math.min(x, image.getWidth() - 1), Math.min(y, image.getHeight() - 1));
+                int v = Math.max((rgb >> 16) & 0xff, Math.max((rgb >> 8) & 0xff, rgb & 0xff));
+                values[x + w * y] = start + (end - start) * v / 255.0;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Transform from the pixel coordinates of a resolution level to physical coordinates,
+     * followed by the position transform if any
+     * @param level resolution level
+     * @param transform transform to set
+     */
+    public void getSourceTransform(int level, AffineTransform3D transform) {
+        transform.identity();
+        transform.scale(psizeX*(double)imageSize.get(0)[0]/(double)imageSize.get(level)[0],
+                psizeY*(double)imageSize.get(0)[1]/(double)imageSize.get(level)[1],
+                psizeZ*(double)imageSize.get(0)[2]/(double)imageSize.get(level)[2]);
+        if (positionPostTransformMatrixArray != null) {
+            AffineTransform3D position = new AffineTransform3D();
+            position.set(positionPostTransformMatrixArray);
+            transform.preConcatenate(position);
+        }
+    }
+
     // All space transformation methods
     public OmeroSourceOpener flipPositionXYZ() {
         if (this.positionPreTransformMatrixArray == null) {
@@ -251,10 +570,8 @@ public class OmeroSourceOpener {
     }
 
     public OmeroSource<?> createOmeroSource(int channel) throws Exception {
-        PixelsData pixels = getPixelsDataFromOmeroID(omeroImageID, gateway, securityContext);
         OmeroSource source;
-        //TODO : get pixel type as a field in omerosourceopener
-        switch(pixels.getPixelType()){
+        switch(pixelType){
             case FLOAT_TYPE: source = new OmeroSourceFloat(this, channel);
                 break;
             case UINT16_TYPE: source = new OmeroSourceUnsignedShort(this, channel);
@@ -263,12 +580,55 @@ public class OmeroSourceOpener {
                 break;
             case UINT32_TYPE: source = new OmeroSourceUnsignedInt(this, channel);
                 break;
+            case INT8_TYPE: source = new OmeroSourceByte(this, channel);
+                break;
+            case INT16_TYPE: source = new OmeroSourceShort(this, channel);
+                break;
+            case INT32_TYPE: source = new OmeroSourceInt(this, channel);
+                break;
+            case DOUBLE_TYPE: source = new OmeroSourceDouble(this, channel);
+                break;
             default:
-                throw new IllegalStateException("Unsupported pixel type : " + pixels.getPixelType());
+                throw new IllegalStateException("Unsupported pixel type : " + pixelType);
         }
         return source;
     }
 
+    /**
+     * @return the source of a channel, created once and shared by all callers so that
+     * its cells are cached only once
+     */
+    public OmeroSource<?> getSource(int channel) throws Exception {
+        try {
+            return sources.computeIfAbsent(channel, c -> {
+                try {
+                    return createOmeroSource(c);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            // the exception of createOmeroSource
+            if ((e.getClass() == RuntimeException.class) && (e.getCause() instanceof Exception)) throw (Exception) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Headless access to the pixels, without BDV: lazy cached cell image of a channel, timepoint
+     * and resolution level, with the ImgLib2 type matching the pixel type.
+     * Cells are loaded on demand, in parallel if accessed from several threads, with the rawPixelsStores
+     * of this opener, or computed from finer cached cells if {@link #deriveCoarseLevels()} is set.
+     * @param c channel
+     * @param t timepoint
+     * @param level resolution level, 0 being the highest resolution
+     * @return image of dimensions XYZ
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends NumericType<T> & NativeType<T>> RandomAccessibleInterval<T> getCachedImage(int c, int t, int level) throws Exception {
+        return ((OmeroSource<T>) getSource(c)).getSource(t, level);
+    }
+
     public static PixelsData getPixelsDataFromOmeroID(long imageID, Gateway gateway, SecurityContext ctx) throws Exception{
 
         BrowseFacility browse = gateway.getFacility(BrowseFacility.class);
@@ -278,13 +638,63 @@ public class OmeroSourceOpener {
 
     }
 
+    /**
+     * @return the ARGB source of an RGB image, created once, see {@link #isRGB()}
+     */
+    public synchronized OmeroSourceRGB getRGBSource() {
+        if (rgbSource == null) rgbSource = new OmeroSourceRGB(this);
+        return rgbSource;
+    }
+
+    /**
+     * @return the display only source of the preview levels, created once, see {@link #previewLevels(int, float)}
+     */
+    public synchronized OmeroPreviewSource getPreviewSource() {
+        if (previewSource == null) previewSource = new OmeroPreviewSource(this);
+        return previewSource;
+    }
+
+    /**
+     * @return the sources and converters to display: a single ARGB one for RGB images, one per channel otherwise,
+     * followed by the ARGB source of the preview levels if any, including the thumbnail level of multi-channel images
+     */
+    public SourceAndConverter[] getSourceAndConvertors() throws Exception {
+        List<SourceAndConverter> sacs = new ArrayList<>();
+        if (isRGB()) {
+            sacs.add(getSourceAndConvertor(getRGBSource(), true));
+        } else {
+            for (int c = 0; c < getSizeC(); c++) {
+                sacs.add(getSourceAndConvertor(c));
+            }
+        }
+        if (getNPreviewLevels() > 0) sacs.add(getSourceAndConvertor(getPreviewSource(), false));
+        return sacs.toArray(new SourceAndConverter[0]);
+    }
+
     public SourceAndConverter getSourceAndConvertor(int c) throws Exception {
-        // create the right concrete source depending on the image type
-        OmeroSource concreteSource = createOmeroSource(c);
-        // create the volatile source based on the concrete source
-        VolatileBdvSource volatileSource = new VolatileBdvSource(concreteSource,
-                BioFormatsBdvSource.getVolatileOf(concreteSource.getType()),
-                cc);
+        // the concrete source of the channel, shared with the headless accesses
+        return getSourceAndConvertor(getSource(c), true);
+    }
+
+    /**
+     * Creates the source and converter of a source built on this opener, for instance a processed source
+     * @param concreteSource non volatile source
+     */
+    public SourceAndConverter getSourceAndConvertor(OmeroSource concreteSource) {
+        return getSourceAndConvertor(concreteSource, false);
+    }
+
+    /**
+     * @param hidePreviewLevels true for the sources of the raw pixels, whose preview levels are displayed
+     *                          by the preview source instead
+     */
+    SourceAndConverter getSourceAndConvertor(OmeroSource concreteSource, boolean hidePreviewLevels) {
+        synchronized (this) {
+            // the fetching threads are only started when the image is displayed
+            if (cc == null) cc = new SharedQueue(2, 4);
+        }
+        // create the volatile source based on the concrete source, sharing its cache
+        OmeroVolatileSource volatileSource = new OmeroVolatileSource(concreteSource, cc, hidePreviewLevels);
 
         Converter concreteConverter = SourceAndConverterHelper.createConverter(concreteSource);
         Converter volatileConverter = SourceAndConverterHelper.createConverter(volatileSource);
@@ -294,6 +704,111 @@ public class OmeroSourceOpener {
 
     }
 
+    /**
+     * Renders a tile on the server with the rendering settings of the image, all active channels composited
+     * @param level resolution level, 0 being the highest resolution
+     * @return decoded JPEG tile
+     */
+    public BufferedImage getRenderedTile(int level, int z, int t, int x, int y, int w, int h) throws Exception {
+        PlaneDef plane = new PlaneDef();
+        plane.slice = XY.value;
+        plane.z = z;
+        plane.t = t;
+        plane.region = new RegionDef(x, y, w, h);
+        byte[] jpeg;
+        synchronized (renderingLock) {
+            if (renderingEngine == null) {
+                // not the engine cached by the gateway for this pixels ID, which is shared with other users
+                renderingEngine = gateway.createRenderingEngine(securityContext, pixelsID);
+                renderingEngine.lookupPixels(pixelsID);
+                if (!renderingEngine.lookupRenderingDef(pixelsID)) {
+                    // default settings in memory only: displaying an image never writes its settings
+                    renderingEngine.resetDefaultSettings(false);
+                }
+                renderingEngine.load();
+                renderingEngine.setCompressionLevel(previewQuality);
+            }
+            // same reversed order of the levels as for the rawPixelsStore
+            renderingEngine.setResolutionLevel(nLevels - 1 - level);
+            jpeg = renderingEngine.renderCompressed(plane);
+        }
+        metrics.fetchedTiles.incrementAndGet();
+        metrics.fetchedBytes.addAndGet(jpeg.length);
+        return ImageIO.read(new ByteArrayInputStream(jpeg));
+    }
+
+    /**
+     * Fetches the same tile of several channels with a single rawPixelsStore of the pool
+     * @return raw bytes of the tile of each channel, big endian
+     */
+    public byte[][] getTiles(int level, int z, int[] channels, int t, int x, int y, int w, int h) throws Exception {
+        RawPixelsStorePool pool = this.pool;
+        RawPixelsStorePrx rawPixStore = pool.acquire();
+        try {
+            rawPixStore.setResolutionLevel(nLevels - 1 - level);
+            byte[][] bytes = new byte[channels.length][];
+            for (int i = 0; i < channels.length; i++) {
+                bytes[i] = rawPixStore.getTile(z, channels[i], t, x, y, w, h);
+                metrics.fetchedBytes.addAndGet(bytes[i].length);
+            }
+            metrics.fetchedTiles.incrementAndGet();
+            return bytes;
+        } finally {
+            pool.recycle(rawPixStore);
+        }
+    }
+
+    /**
+     * Fetches a tile from the server with a rawPixelsStore of the pool
+     * @param level resolution level, 0 being the highest resolution
+     * @return raw bytes of the tile, big endian
+     * @throws Exception
+     */
+    public byte[] getTile(int level, int z, int c, int t, int x, int y, int w, int h) throws Exception {
+        // get a rawPixelsStore from the rawPixelsStorePool to avoid creating a new instance of rawPixelsStore in each thread.
+        RawPixelsStorePool pool = this.pool;
+        RawPixelsStorePrx rawPixStore = pool.acquire();
+        try {
+            //setResolutionLevels indexes are in reverse order compared to the other methods
+            //here index 0 is the lowest resolution and n-1 is the highest
+            rawPixStore.setResolutionLevel(nLevels - 1 - level);
+            byte[] bytes = rawPixStore.getTile(z, c, t, x, y, w, h);
+            metrics.fetchedTiles.incrementAndGet();
+            metrics.fetchedBytes.addAndGet(bytes.length);
+            return bytes;
+        } finally {
+            //recycle the rawPixelsStore so that it can be used by another thread.
+            pool.recycle(rawPixStore);
+        }
+    }
+
+    /**
+     * Closes the rawPixelsStores and the rendering engine opened for this image, to free resources on the server
+     * when the image is not displayed anymore. New stores are opened if tiles are requested again.
+     */
+    public void closeStores() {
+        RawPixelsStorePool previous = pool;
+        pool = new RawPixelsStorePool(poolSize, true, this::getNewStore);
+        previous.close();
+        synchronized (renderingLock) {
+            if (renderingEngine != null) {
+                try {
+                    renderingEngine.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                renderingEngine = null;
+            }
+        }
+    }
+
+    /**
+     * @return number of rawPixelsStores currently opened for this image
+     */
+    public int getNOpenStores() {
+        return pool.getNOpenStores();
+    }
+
     /**
      * RawPixelStore supplier method for the RawPixelsStorePool.
      */
@@ -0,0 +1,67 @@
+package ch.epfl.biop.omero.omerosource;
+
+import net.imglib2.Cursor;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.view.Views;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Single source of a uint8 image with 3 channels, like brightfield slides, whose pixels are the 3 channels
+ * packed into ARGBType: the 3 channels of a tile are fetched together and stored in one cell,
+ * see {@link OmeroSourceOpener#isRGB()}.
+ */
+public class OmeroSourceRGB extends OmeroSource<ARGBType> {
+
+    public OmeroSourceRGB(OmeroSourceOpener opener) {
+        super(opener, 0);
+    }
+
+    @Override
+    protected void loadCell(SingleCellArrayImg<ARGBType, ?> cell, int t, int level) throws Exception {
+        if (level == opener.getNLevels()) {
+            // the thumbnail is already an RGB image
+            BufferedImage image = opener.thumbnails.get(opener.getPixelsID());
+            Cursor<ARGBType> out = Views.flatIterable(cell).localizingCursor();
+            while (out.hasNext()) {
+                out.fwd();
+                out.get().set(image.getRGB(Math.min(out.getIntPosition(0), image.getWidth() - 1),
+                        Math.min(out.getIntPosition(1), image.getHeight() - 1)) | 0xff000000);
+            }
+            return;
+        }
+
+        byte[][] bytes = opener.getTiles(level, (int) cell.min(2), new int[]{0, 1, 2}, t,
+                (int) cell.min(0), (int) cell.min(1), (int) cell.dimension(0), (int) cell.dimension(1));
+        Cursor<ARGBType> out = Views.flatIterable(cell).cursor();
+        int idxPx = 0;
+        while ((out.hasNext()) && (idxPx < bytes[0].length)) {
+            out.next().set(ARGBType.rgba(bytes[0][idxPx] & 0xff, bytes[1][idxPx] & 0xff, bytes[2][idxPx] & 0xff, 255));
+            idxPx++;
+        }
+    }
+
+    /**
+     * Single channel bytes, displayed in grey
+     */
+    @Override
+    protected void decode(byte[] bytes, Cursor<ARGBType> out) {
+        int idxPx = 0;
+        while ((out.hasNext()) && (idxPx < bytes.length)) {
+            int v = bytes[idxPx] & 0xff;
+            out.next().set(ARGBType.rgba(v, v, v, 255));
+            idxPx++;
+        }
+    }
+
+    @Override
+    public ARGBType getType() {
+        return new ARGBType();
+    }
+
+    @Override
+    public String getName() {
+        return "OMERO ID: " + imageID + "; RGB";
+    }
+}
@@ -0,0 +1,27 @@
+package ch.epfl.biop.omero.omerosource;
+
+import net.imglib2.Cursor;
+import net.imglib2.type.numeric.integer.ShortType;
+
+import java.nio.ByteBuffer;
+
+public class OmeroSourceShort extends OmeroSource<ShortType> {
+    public OmeroSourceShort(OmeroSourceOpener opener, int c) throws Exception {
+        super(opener, c);
+    }
+
+    @Override
+    protected void decode(byte[] bytes, Cursor<ShortType> out) {
+        // bytes are sent in big endian order by the server
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while ((out.hasNext()) && (buffer.remaining() >= 2)) {
+            out.next().set(buffer.getShort());
+        }
+    }
+
+    @Override
+    public ShortType getType() {
+        return new ShortType();
+    }
+
+}
@@ -1,16 +1,7 @@
 package ch.epfl.biop.omero.omerosource;
 
-import ch.epfl.biop.ij2command.OmeroTools;
 import net.imglib2.Cursor;
-import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
-import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
-import net.imglib2.img.Img;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
-import net.imglib2.view.Views;
-import omero.api.RawPixelsStorePrx;
-
-import java.util.concurrent.ConcurrentHashMap;
 
 public class OmeroSourceUnsignedByte extends OmeroSource<UnsignedByteType> {
     public OmeroSourceUnsignedByte(OmeroSourceOpener opener, int c) throws Exception {
@@ -18,70 +9,11 @@ public class OmeroSourceUnsignedByte extends OmeroSource<UnsignedByteType> {
     }
 
     @Override
-    public RandomAccessibleInterval<UnsignedByteType> createSource(int t, int level) {
-
-        try {
-            if (!raiMap.containsKey(t)) {
-                raiMap.put(t, new ConcurrentHashMap<>());
-            }
-
-            // Create cached image factory of Type Byte
-            ReadOnlyCachedCellImgOptions options = new ReadOnlyCachedCellImgOptions();
-
-            int sx = this.opener.getSizeX(level);
-            int sy = this.opener.getSizeY(level);
-            int sz = this.opener.getSizeZ(level);
-
-            // Set cell dimensions according to level
-            int xc = this.opener.getTileSizeX(level);
-            int yc = this.opener.getTileSizeY(level);
-            int zc = 1;
-
-            // Creates cached image factory of Type Byte
-            options = options.cellDimensions(xc,yc,zc);
-            final ReadOnlyCachedCellImgFactory factory = new ReadOnlyCachedCellImgFactory(options);
-
-            // Creates image, with cell Consumer method, which creates the image
-            final Img<UnsignedByteType> rai = factory.create(new long[]{sx, sy, sz}, new UnsignedByteType(),
-                    cell -> {
-                        // get a rawPixelsStore from the rawPixelsStorePool to avoid creating a new instance of rawPixelsStore in each thread.
-                        RawPixelsStorePrx rawPixStore = opener.pool.acquire();
-
-                        //setResolutionLevels indexes are in reverse order compared to the other methods
-                        //here index 0 is the lowest resolution and n-1 is the highest
-                        rawPixStore.setResolutionLevel(this.opener.getNLevels()-1-level);
-
-                        Cursor<UnsignedByteType> out = Views.flatIterable(cell).cursor();
-
-                        //cell connait sa position dans l'espace (dans la grande image)
-                        int minX = (int) cell.min(0);
-                        int maxX = Math.min(minX + xc, sx);
-
-                        int minY = (int) cell.min(1);
-                        int maxY = Math.min(minY + yc, sy);
-
-                        int w = maxX - minX;
-                        int h = maxY - minY;
-
-                        byte[] bytes = rawPixStore.getTile((int) cell.min(2), channel_index, t, minX, minY, w, h);
-
-                        int idxPx = 0;
-                        int totBytes = (w * h);
-
-                        while ((out.hasNext()) && (idxPx < totBytes)) {
-                            out.next().set(bytes[idxPx]);
-                            idxPx++;
-                        }
-                        //recycle the rawPixelsStore so that it can be used by another thread.
-                        opener.pool.recycle(rawPixStore);
-                    });
-
-            raiMap.get(t).put(level, rai);
-            return raiMap.get(t).get(level);
-
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
+    protected void decode(byte[] bytes, Cursor<UnsignedByteType> out) {
+        int idxPx = 0;
+        while ((out.hasNext()) && (idxPx < bytes.length)) {
+            out.next().set(bytes[idxPx] & 0xff);
+            idxPx++;
         }
     }
 
@@ -0,0 +1,242 @@
+package ch.epfl.biop.omero.omerosource;
+
+import ij.CompositeImage;
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+import omero.model.enums.UnitsLength;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import static omero.gateway.model.PixelsData.UINT16_TYPE;
+import static omero.gateway.model.PixelsData.UINT8_TYPE;
+
+/**
+ * ImageJ1 virtual stack of one resolution level of an OMERO image, whose planes are read from the lazy
+ * cached images of the sources of an {@link OmeroSourceOpener}: only the tiles of the displayed planes are fetched.
+ *
+ * The last planes read are kept in a small cache, and the planes around the last one read (previous and next z,
+ * same channel and timepoint) are loaded in the background, so that scrolling through z does not wait for the server.
+ *
+ * uint8 and uint16 images give 8 and 16 bits planes, other pixel types give 32 bits planes.
+ * The stack is closed with the image returned by {@link #createImagePlus()}.
+ */
+public class OmeroVirtualStack extends VirtualStack {
+
+    final OmeroSourceOpener opener;
+    final int level;
+    final int sizeX, sizeY, sizeZ, sizeC, sizeT;
+    // number of planes read before and after the current one
+    int prefetch = 2;
+    int maxCachedPlanes = 32;
+
+    // planes being loaded or loaded, least recently used first
+    final Map<Integer, Future<Object>> planes = new LinkedHashMap<Integer, Future<Object>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Future<Object>> eldest) {
+            return size() > maxCachedPlanes;
+        }
+    };
+
+    final ExecutorService executor = Executors.newFixedThreadPool(2, r -> {
+        Thread thread = new Thread(r, "OMERO virtual stack");
+        thread.setDaemon(true);
+        return thread;
+    });
+    volatile boolean closed = false;
+
+    public OmeroVirtualStack(OmeroSourceOpener opener, int level) {
+        super(opener.getSizeX(level), opener.getSizeY(level), null, null);
+        this.opener = opener;
+        this.level = level;
+        this.sizeX = opener.getSizeX(level);
+        this.sizeY = opener.getSizeY(level);
+        this.sizeZ = opener.getSizeZ(level);
+        this.sizeC = opener.getSizeC();
+        this.sizeT = opener.getSizeT();
+    }
+
+    public OmeroVirtualStack prefetch(int prefetch) {
+        this.prefetch = prefetch;
+        return this;
+    }
+
+    public OmeroVirtualStack maxCachedPlanes(int maxCachedPlanes) {
+        this.maxCachedPlanes = maxCachedPlanes;
+        return this;
+    }
+
+    /**
+     * @return hyperstack of the level, with its calibration and one composite channel per OMERO channel
+     */
+    public ImagePlus createImagePlus() {
+        ImagePlus imp = new ImagePlus("OMERO image " + opener.getImageID() + " - level " + level, this);
+        imp.setDimensions(sizeC, sizeZ, sizeT);
+        imp.setOpenAsHyperStack(true);
+
+        Calibration calibration = imp.getCalibration();
+        calibration.pixelWidth = opener.getPixelSizeX() * opener.getSizeX(0) / sizeX;
+        calibration.pixelHeight = opener.getPixelSizeY() * opener.getSizeY(0) / sizeY;
+        calibration.pixelDepth = opener.getPixelSizeZ() * opener.getSizeZ(0) / sizeZ;
+        if (opener.u != null) {
+            calibration.setUnit(opener.u == UnitsLength.MICROMETER ? "micron" : opener.u.name().toLowerCase());
+        }
+
+        if (sizeC > 1) imp = new CompositeImage(imp, CompositeImage.COMPOSITE);
+        try {
+            // display ranges of the OMERO rendering settings
+            double[][] windows = opener.getRenderingWindows(sizeC);
+            for (int c = 0; c < sizeC; c++) {
+                imp.setPosition(c + 1, 1, 1);
+                imp.setDisplayRange(windows[c][0], windows[c][1]);
+            }
+            imp.setPosition(1, 1, 1);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        final ImagePlus image = imp;
+        ImagePlus.addImageListener(new ImageListener() {
+            @Override
+            public void imageOpened(ImagePlus imp) {}
+
+            @Override
+            public void imageClosed(ImagePlus imp) {
+                if (imp != image) return;
+                close();
+                ImagePlus.removeImageListener(this);
+            }
+
+            @Override
+            public void imageUpdated(ImagePlus imp) {}
+        });
+        return imp;
+    }
+
+    @Override
+    public int getSize() {
+        return sizeC * sizeZ * sizeT;
+    }
+
+    @Override
+    public int getBitDepth() {
+        switch (opener.getPixelType()) {
+            case UINT8_TYPE: return 8;
+            case UINT16_TYPE: return 16;
+            default: return 32;
+        }
+    }
+
+    @Override
+    public String getSliceLabel(int n) {
+        int i = n - 1;
+        return "c:" + (i % sizeC + 1) + "/" + sizeC
+                + " z:" + ((i / sizeC) % sizeZ + 1) + "/" + sizeZ
+                + " t:" + (i / (sizeC * sizeZ) + 1) + "/" + sizeT;
+    }
+
+    /**
+     * @param n plane index, from 1, in czt order
+     */
+    @Override
+    public ImageProcessor getProcessor(int n) {
+        Future<Object> plane = load(n);
+        // planes in z around this one, same channel and timepoint
+        int z = ((n - 1) / sizeC) % sizeZ;
+        for (int dz = 1; (dz <= prefetch) && !closed; dz++) {
+            if (z + dz < sizeZ) load(n + dz * sizeC);
+            if (z - dz >= 0) load(n - dz * sizeC);
+        }
+        try {
+            Object pixels = plane.get();
+            switch (getBitDepth()) {
+                case 8: return new ByteProcessor(sizeX, sizeY, (byte[]) pixels);
+                case 16: return new ShortProcessor(sizeX, sizeY, (short[]) pixels, null);
+                default: return new FloatProcessor(sizeX, sizeY, (float[]) pixels);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            // an empty plane rather than an exception in the ImageJ event thread
+            synchronized (planes) {
+                planes.remove(n);
+            }
+            switch (getBitDepth()) {
+                case 8: return new ByteProcessor(sizeX, sizeY);
+                case 16: return new ShortProcessor(sizeX, sizeY);
+                default: return new FloatProcessor(sizeX, sizeY);
+            }
+        }
+    }
+
+    Future<Object> load(int n) {
+        synchronized (planes) {
+            if (!closed) {
+                Future<Object> plane = planes.get(n);
+                if (plane == null) {
+                    plane = executor.submit(() -> readPlane(n));
+                    planes.put(n, plane);
+                }
+                return plane;
+            }
+        }
+        // closed: read in the calling thread, without caching
+        FutureTask<Object> plane = new FutureTask<>(() -> readPlane(n));
+        plane.run();
+        return plane;
+    }
+
+    /**
+     * @return pixels of the plane, as a byte[], short[] or float[] array depending on the bit depth
+     */
+    @SuppressWarnings("unchecked")
+    Object readPlane(int n) throws Exception {
+        int i = n - 1;
+        int c = i % sizeC;
+        int z = (i / sizeC) % sizeZ;
+        int t = i / (sizeC * sizeZ);
+        RandomAccessibleInterval<? extends RealType<?>> image =
+                (RandomAccessibleInterval<? extends RealType<?>>) (RandomAccessibleInterval<?>) opener.getSource(c).getSource(t, level);
+        Cursor<? extends RealType<?>> cursor = Views.flatIterable(Views.hyperSlice(image, 2, z)).cursor();
+        int bitDepth = getBitDepth();
+        int size = sizeX * sizeY;
+        if (bitDepth == 8) {
+            byte[] pixels = new byte[size];
+            for (int p = 0; p < size; p++) pixels[p] = (byte) cursor.next().getRealDouble();
+            return pixels;
+        } else if (bitDepth == 16) {
+            short[] pixels = new short[size];
+            for (int p = 0; p < size; p++) pixels[p] = (short) cursor.next().getRealDouble();
+            return pixels;
+        } else {
+            float[] pixels = new float[size];
+            for (int p = 0; p < size; p++) pixels[p] = cursor.next().getRealFloat();
+            return pixels;
+        }
+    }
+
+    /**
+     * Stops the background loading and empties the cache of planes, called when the image is closed.
+     * Planes requested afterwards are read without cache.
+     */
+    public void close() {
+        synchronized (planes) {
+            closed = true;
+            executor.shutdownNow();
+            planes.clear();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package ch.epfl.biop.omero.omerosource;
+
+import bdv.util.DefaultInterpolators;
+import bdv.util.volatiles.SharedQueue;
+import bdv.util.volatiles.VolatileTypeMatcher;
+import bdv.util.volatiles.VolatileViews;
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.Volatile;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.converter.Converters;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.ConstantUtils;
+import net.imglib2.view.Views;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Volatile view of an {@link OmeroSource}, for the display in BDV.
+ *
+ * The volatile images wrap the cached cell images of the source with {@link VolatileViews}: they share the
+ * cache of the source and only hold weak references to its cells, so each tile is stored once, whether it
+ * is loaded by the display or by a headless access. Missing cells are fetched by the threads of the shared queue.
+ */
+public class OmeroVolatileSource<T extends NumericType<T> & NativeType<T>, V extends Volatile<T> & NumericType<V>> implements Source<V> {
+
+    protected final DefaultInterpolators<V> interpolators = new DefaultInterpolators<>();
+
+    final OmeroSource<T> source;
+    final SharedQueue queue;
+    final V type;
+    //1st key: time point // 2nd key: resolution level
+    final Map<Integer, Map<Integer, RandomAccessibleInterval<V>>> raiMap = new ConcurrentHashMap<>();
+
+    // the preview levels are displayed by the OmeroPreviewSource of the opener
+    final boolean hidePreviewLevels;
+
+    public OmeroVolatileSource(OmeroSource<T> source, SharedQueue queue) {
+        this(source, queue, false);
+    }
+
+    /**
+     * @param hidePreviewLevels if true, the preview levels of the opener are transparent and never fetched
+     */
+    @SuppressWarnings("unchecked")
+    public OmeroVolatileSource(OmeroSource<T> source, SharedQueue queue, boolean hidePreviewLevels) {
+        this.source = source;
+        this.queue = queue;
+        this.type = (V) VolatileTypeMatcher.getVolatileTypeForType(source.getType());
+        this.hidePreviewLevels = hidePreviewLevels;
+    }
+
+    public OmeroSource<T> getSource() {
+        return source;
+    }
+
+    @Override
+    public boolean isPresent(int t) {
+        return source.isPresent(t);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public RandomAccessibleInterval<V> getSource(int t, int level) {
+        return raiMap.computeIfAbsent(t, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(level, l -> {
+                    if (hidePreviewLevels && source.getOpener().isPreviewLevel(l)) {
+                        V zero = type.createVariable();
+                        zero.setZero();
+                        zero.setValid(true);
+                        return ConstantUtils.constantRandomAccessibleInterval(zero, source.getDimensions(l));
+                    }
+                    CachedCellImg<?, ?> quantized = source.getQuantizedImage(t, l);
+                    if (quantized == null) {
+                        return (RandomAccessibleInterval<V>) VolatileViews.wrapAsVolatile(source.getSource(t, l), queue);
+                    }
+                    return wrapQuantized(quantized);
+                });
+    }
+
+    /**
+     * Volatile view of the compact image of a quantized level, converted back to the type of the source
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    RandomAccessibleInterval<V> wrapQuantized(CachedCellImg<?, ?> quantized) {
+        try {
+            Quantizer quantizer = source.getOpener().getQuantizer(source.getChannel());
+            RandomAccessibleInterval<Volatile<IntegerType>> stored =
+                    (RandomAccessibleInterval) VolatileViews.wrapAsVolatile((RandomAccessibleInterval) quantized, queue);
+            return Converters.convert(stored, (in, out) -> {
+                out.setValid(in.isValid());
+                if (in.isValid()) ((RealType<?>) out.get()).setReal(quantizer.toValue(in.get().getInteger()));
+            }, type.createVariable());
+        } catch (Exception e) {
+            throw new RuntimeException("Could not get the quantizer of " + getName(), e);
+        }
+    }
+
+    @Override
+    public RealRandomAccessible<V> getInterpolatedSource(int t, int level, Interpolation method) {
+        // outside of the image: a valid zero, so that BDV does not wait for it
+        V zero = type.createVariable();
+        zero.setZero();
+        zero.setValid(true);
+        return Views.interpolate(Views.extendValue(getSource(t, level), zero), interpolators.get(method));
+    }
+
+    @Override
+    public void getSourceTransform(int t, int level, AffineTransform3D transform) {
+        source.getSourceTransform(t, level, transform);
+    }
+
+    @Override
+    public V getType() {
+        return type;
+    }
+
+    @Override
+    public String getName() {
+        return source.getName();
+    }
+
+    @Override
+    public VoxelDimensions getVoxelDimensions() {
+        return source.getVoxelDimensions();
+    }
+
+    @Override
+    public int getNumMipmapLevels() {
+        return source.getNumMipmapLevels();
+    }
+}
@@ -0,0 +1,101 @@
+package ch.epfl.biop.omero.omerosource;
+
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Reduced precision storage of pixel values, for the levels cached quantized, see
+ * {@link OmeroSourceOpener#quantizedLevels(int...)}:
+ * <ul>
+ *     <li>16 bits values mapped linearly to 8 bits between a min and a max, values outside are clamped</li>
+ *     <li>float or double values stored as half precision floats (bits in an unsigned short)</li>
+ * </ul>
+ */
+public class Quantizer {
+
+    final boolean halfPrecision;
+    final double min;
+    final double max;
+
+    Quantizer(boolean halfPrecision, double min, double max) {
+        this.halfPrecision = halfPrecision;
+        this.min = min;
+        this.max = max;
+    }
+
+    public static Quantizer toByte(double min, double max) {
+        return new Quantizer(false, min, max);
+    }
+
+    public static Quantizer toHalfPrecision() {
+        return new Quantizer(true, 0, 0);
+    }
+
+    /**
+     * @return type of the stored values
+     */
+    @SuppressWarnings("unchecked")
+    public <U extends IntegerType<U> & NativeType<U>> U getStorageType() {
+        return halfPrecision ? (U) new UnsignedShortType() : (U) new UnsignedByteType();
+    }
+
+    public int quantize(double value) {
+        if (halfPrecision) return floatToHalf((float) value);
+        if (max <= min) return 0;
+        long q = Math.round(255 * (value - min) / (max - min));
+        return (int) Math.max(0, Math.min(255, q));
+    }
+
+    public double toValue(int quantized) {
+        if (halfPrecision) return halfToFloat(quantized);
+        return min + quantized * (max - min) / 255;
+    }
+
+    /**
+     * IEEE 754 binary16 bits of a float, rounded to the nearest
+     */
+    static int floatToHalf(float value) {
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = ((bits >>> 23) & 0xff) - 127 + 15;
+        int mantissa = bits & 0x7fffff;
+        if (((bits >>> 23) & 0xff) == 0xff) {
+            // infinity or NaN
+            return sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0);
+        }
+        if (exponent >= 0x1f) return sign | 0x7c00;
+        if (exponent <= 0) {
+            // subnormal half, or zero
+            if (exponent < -10) return sign;
+            mantissa |= 0x800000;
+            int shift = 14 - exponent;
+            int half = mantissa >> shift;
+            if (((mantissa >> (shift - 1)) & 1) != 0) half++;
+            return sign | half;
+        }
+        int half = sign | (exponent << 10) | (mantissa >> 13);
+        // rounding may carry into the exponent, which is still the nearest value
+        if ((mantissa & 0x1000) != 0) half++;
+        return half;
+    }
+
+    static float halfToFloat(int half) {
+        int sign = (half & 0x8000) << 16;
+        int exponent = (half >>> 10) & 0x1f;
+        int mantissa = half & 0x3ff;
+        if (exponent == 0x1f) return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+        if (exponent == 0) {
+            if (mantissa == 0) return Float.intBitsToFloat(sign);
+            // subnormal half: normalized as a float
+            while ((mantissa & 0x400) == 0) {
+                mantissa <<= 1;
+                exponent--;
+            }
+            exponent++;
+            mantissa &= 0x3ff;
+        }
+        return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+    }
+}
@@ -3,12 +3,20 @@ package ch.epfl.biop.omero.omerosource;
 import ch.epfl.biop.bdv.bioformats.bioformatssource.ResourcePool;
 import omero.api.RawPixelsStorePrx;
 
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
 import java.util.function.Supplier;
 
 public class RawPixelsStorePool extends ResourcePool<RawPixelsStorePrx> {
 
     Supplier<RawPixelsStorePrx> rpsSupplier;
 
+    // stores created by this pool and not closed yet, and the ones currently used by a thread
+    final Set<RawPixelsStorePrx> created = new HashSet<>();
+    final Set<RawPixelsStorePrx> inUse = new HashSet<>();
+    boolean closed = false;
+
     public RawPixelsStorePool(int size, Boolean dynamicCreation, Supplier<RawPixelsStorePrx> rawPixelStoreSupplier) {
         super(size, dynamicCreation);
         createPool();
@@ -17,6 +25,64 @@ public class RawPixelsStorePool extends ResourcePool<RawPixelsStorePrx> {
 
     @Override
     protected RawPixelsStorePrx createObject() {
-        return rpsSupplier.get();
+        RawPixelsStorePrx store = rpsSupplier.get();
+        synchronized (this) {
+            if (store != null) created.add(store);
+        }
+        return store;
+    }
+
+    @Override
+    public RawPixelsStorePrx acquire() throws Exception {
+        RawPixelsStorePrx store = super.acquire();
+        synchronized (this) {
+            inUse.add(store);
+        }
+        return store;
+    }
+
+    @Override
+    public void recycle(RawPixelsStorePrx store) throws Exception {
+        synchronized (this) {
+            inUse.remove(store);
+            if (closed) {
+                // the pool is not used anymore
+                created.remove(store);
+                close(store);
+                return;
+            }
+        }
+        super.recycle(store);
+    }
+
+    /**
+     * Closes the idle stores on the server, the stores still in use are closed when they are recycled.
+     * The pool should not be used anymore afterwards.
+     */
+    public synchronized void close() {
+        closed = true;
+        Iterator<RawPixelsStorePrx> iterator = created.iterator();
+        while (iterator.hasNext()) {
+            RawPixelsStorePrx store = iterator.next();
+            if (!inUse.contains(store)) {
+                close(store);
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return number of stores created by this pool and not closed
+     */
+    public synchronized int getNOpenStores() {
+        return created.size();
+    }
+
+    static void close(RawPixelsStorePrx store) {
+        try {
+            store.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
     }
 }
@@ -0,0 +1,110 @@
+package ch.epfl.biop.omero.omerosource;
+
+import omero.api.ThumbnailStorePrx;
+import omero.gateway.Gateway;
+import omero.gateway.SecurityContext;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static omero.rtypes.rint;
+
+/**
+ * Fetches the thumbnails of many images with one request per batch of images.
+ *
+ * All images which may be displayed are registered first. When the thumbnail of an image is requested,
+ * the thumbnails of up to {@link #batchSize} registered images are fetched with a single call to
+ * the thumbnail store. Thumbnails are kept as compressed bytes and decoded on demand.
+ */
+public class ThumbnailBatchLoader {
+
+    final Gateway gateway;
+    final SecurityContext ctx;
+    final int longestSide;
+    int batchSize = 200;
+
+    // registered pixels IDs whose thumbnail is not fetched yet, in registration order
+    final Set<Long> pending = new LinkedHashSet<>();
+    final Map<Long, byte[]> thumbnails = new ConcurrentHashMap<>();
+
+    /**
+     * @param longestSide size in pixels of the longest side of the thumbnails
+     */
+    public ThumbnailBatchLoader(Gateway gateway, SecurityContext ctx, int longestSide) {
+        this.gateway = gateway;
+        this.ctx = ctx;
+        this.longestSide = longestSide;
+    }
+
+    public ThumbnailBatchLoader batchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    public int getLongestSide() {
+        return longestSide;
+    }
+
+    public synchronized void register(long pixelsID) {
+        if (!thumbnails.containsKey(pixelsID)) pending.add(pixelsID);
+    }
+
+    public synchronized void register(Collection<Long> pixelsIDs) {
+        for (Long pixelsID : pixelsIDs) register(pixelsID);
+    }
+
+    /**
+     * @return expected size (x, y) of the thumbnail of an image, the server may differ by one pixel
+     */
+    public int[] getThumbnailSize(int sizeX, int sizeY) {
+        if (sizeX >= sizeY) {
+            return new int[]{longestSide, Math.max(1, (int) ((long) sizeY * longestSide / sizeX))};
+        } else {
+            return new int[]{Math.max(1, (int) ((long) sizeX * longestSide / sizeY)), longestSide};
+        }
+    }
+
+    /**
+     * @return the thumbnail of an image, fetched along with the thumbnails of other registered images if needed
+     */
+    public BufferedImage get(long pixelsID) throws Exception {
+        byte[] bytes = thumbnails.get(pixelsID);
+        if (bytes == null) {
+            synchronized (this) {
+                bytes = thumbnails.get(pixelsID);
+                if (bytes == null) {
+                    fetchBatch(pixelsID);
+                    bytes = thumbnails.get(pixelsID);
+                }
+            }
+        }
+        if (bytes == null) throw new IllegalStateException("No thumbnail returned for pixels " + pixelsID);
+        return ImageIO.read(new ByteArrayInputStream(bytes));
+    }
+
+    void fetchBatch(long pixelsID) throws Exception {
+        List<Long> batch = new ArrayList<>();
+        batch.add(pixelsID);
+        for (Long id : pending) {
+            if (batch.size() >= batchSize) break;
+            if (id != pixelsID) batch.add(id);
+        }
+
+        ThumbnailStorePrx store = gateway.getThumbnailService(ctx);
+        try {
+            Map<Long, byte[]> fetched = store.getThumbnailByLongestSideSet(rint(longestSide), batch);
+            thumbnails.putAll(fetched);
+            pending.removeAll(batch);
+        } finally {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package ch.epfl.biop.omero.omerosource;
+
+/**
+ * Position and size of a tile of an OMERO image, as requested with RawPixelsStore.getTile
+ */
+public class Tile {
+
+    public final int level;
+    public final int z;
+    public final int c;
+    public final int t;
+    public final int x;
+    public final int y;
+    public final int w;
+    public final int h;
+
+    public Tile(int level, int z, int c, int t, int x, int y, int w, int h) {
+        this.level = level;
+        this.z = z;
+        this.c = c;
+        this.t = t;
+        this.x = x;
+        this.y = y;
+        this.w = w;
+        this.h = h;
+    }
+
+    /**
+     * Fetches the tile through the rawPixelsStore pool of the opener
+     * @return raw bytes, big endian
+     */
+    public byte[] fetch(OmeroSourceOpener opener) throws Exception {
+        return opener.getTile(level, z, c, t, x, y, w, h);
+    }
+
+    @Override
+    public String toString() {
+        return "Tile [level=" + level + ", z=" + z + ", c=" + c + ", t=" + t
+                + ", x=" + x + ", y=" + y + ", w=" + w + ", h=" + h + "]";
+    }
+}
@@ -0,0 +1,185 @@
+package ch.epfl.biop.omero.omerosource;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import java.nio.ByteBuffer;
+
+import static omero.gateway.model.PixelsData.*;
+
+/**
+ * Converts the raw bytes sent by the server (big endian) into primitive arrays and ImgLib2 images,
+ * without going through the double[][] of Plane2D
+ */
+public class TileDecoder {
+
+    public static int getBytesPerPixel(String pixelType) {
+        switch (pixelType) {
+            case INT8_TYPE:
+            case UINT8_TYPE: return 1;
+            case INT16_TYPE:
+            case UINT16_TYPE: return 2;
+            case INT32_TYPE:
+            case UINT32_TYPE:
+            case FLOAT_TYPE: return 4;
+            case DOUBLE_TYPE: return 8;
+            default:
+                throw new IllegalStateException("Unsupported pixel type : " + pixelType);
+        }
+    }
+
+    /**
+     * @return the ImgLib2 type matching an OMERO pixel type
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends RealType<T> & NativeType<T>> T createType(String pixelType) {
+        switch (pixelType) {
+            case INT8_TYPE: return (T) new ByteType();
+            case UINT8_TYPE: return (T) new UnsignedByteType();
+            case INT16_TYPE: return (T) new ShortType();
+            case UINT16_TYPE: return (T) new UnsignedShortType();
+            case INT32_TYPE: return (T) new IntType();
+            case UINT32_TYPE: return (T) new UnsignedIntType();
+            case FLOAT_TYPE: return (T) new FloatType();
+            case DOUBLE_TYPE: return (T) new DoubleType();
+            default:
+                throw new IllegalStateException("Unsupported pixel type : " + pixelType);
+        }
+    }
+
+    /**
+     * Wraps raw bytes into an image of the matching type, 8 bits data are not copied
+     * @param bytes raw bytes, big endian
+     * @param pixelType OMERO pixel type
+     * @param dimensions dimensions of the image, flat iteration order of the bytes
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends RealType<T> & NativeType<T>> ArrayImg<T, ?> toImg(byte[] bytes, String pixelType, long... dimensions) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int n = bytes.length / getBytesPerPixel(pixelType);
+        switch (pixelType) {
+            case INT8_TYPE: return (ArrayImg<T, ?>) (Object) ArrayImgs.bytes(bytes, dimensions);
+            case UINT8_TYPE: return (ArrayImg<T, ?>) (Object) ArrayImgs.unsignedBytes(bytes, dimensions);
+            case INT16_TYPE: {
+                short[] data = new short[n];
+                buffer.asShortBuffer().get(data);
+                return (ArrayImg<T, ?>) (Object) ArrayImgs.shorts(data, dimensions);
+            }
+            case UINT16_TYPE: {
+                short[] data = new short[n];
+                buffer.asShortBuffer().get(data);
+                return (ArrayImg<T, ?>) (Object) ArrayImgs.unsignedShorts(data, dimensions);
+            }
+            case INT32_TYPE: {
+                int[] data = new int[n];
+                buffer.asIntBuffer().get(data);
+                return (ArrayImg<T, ?>) (Object) ArrayImgs.ints(data, dimensions);
+            }
+            case UINT32_TYPE: {
+                int[] data = new int[n];
+                buffer.asIntBuffer().get(data);
+                return (ArrayImg<T, ?>) (Object) ArrayImgs.unsignedInts(data, dimensions);
+            }
+            case FLOAT_TYPE: {
+                float[] data = new float[n];
+                buffer.asFloatBuffer().get(data);
+                return (ArrayImg<T, ?>) (Object) ArrayImgs.floats(data, dimensions);
+            }
+            case DOUBLE_TYPE: {
+                double[] data = new double[n];
+                buffer.asDoubleBuffer().get(data);
+                return (ArrayImg<T, ?>) (Object) ArrayImgs.doubles(data, dimensions);
+            }
+            default:
+                throw new IllegalStateException("Unsupported pixel type : " + pixelType);
+        }
+    }
+
+    /**
+     * Allocates an empty image of the type matching an OMERO pixel type
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends RealType<T> & NativeType<T>> ArrayImg<T, ?> createImg(String pixelType, long... dimensions) {
+        switch (pixelType) {
+            case INT8_TYPE: return (ArrayImg<T, ?>) (Object) ArrayImgs.bytes(dimensions);
+            case UINT8_TYPE: return (ArrayImg<T, ?>) (Object) ArrayImgs.unsignedBytes(dimensions);
+            case INT16_TYPE: return (ArrayImg<T, ?>) (Object) ArrayImgs.shorts(dimensions);
+            case UINT16_TYPE: return (ArrayImg<T, ?>) (Object) ArrayImgs.unsignedShorts(dimensions);
+            case INT32_TYPE: return (ArrayImg<T, ?>) (Object) ArrayImgs.ints(dimensions);
+            case UINT32_TYPE: return (ArrayImg<T, ?>) (Object) ArrayImgs.unsignedInts(dimensions);
+            case FLOAT_TYPE: return (ArrayImg<T, ?>) (Object) ArrayImgs.floats(dimensions);
+            case DOUBLE_TYPE: return (ArrayImg<T, ?>) (Object) ArrayImgs.doubles(dimensions);
+            default:
+                throw new IllegalStateException("Unsupported pixel type : " + pixelType);
+        }
+    }
+
+    /**
+     * @return the primitive array (byte[], short[], int[], float[] or double[]) backing an ArrayImg
+     */
+    public static Object getStorageArray(ArrayImg<?, ?> img) {
+        return ((ArrayDataAccess<?>) img.update(null)).getCurrentStorageArray();
+    }
+
+    /**
+     * Copies consecutive pixels from raw bytes into a primitive array, without intermediate copy
+     * @param bytes raw bytes, big endian
+     * @param srcIndex index of the first pixel to copy in the raw bytes
+     * @param dst primitive array matching the pixel type, see {@link #getStorageArray(ArrayImg)}
+     * @param dstIndex index of the first pixel to write in the array
+     * @param length number of pixels to copy
+     */
+    public static void copy(byte[] bytes, int srcIndex, Object dst, int dstIndex, int length, String pixelType) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.position(srcIndex * getBytesPerPixel(pixelType));
+        switch (pixelType) {
+            case INT8_TYPE:
+            case UINT8_TYPE: System.arraycopy(bytes, srcIndex, dst, dstIndex, length);
+                break;
+            case INT16_TYPE:
+            case UINT16_TYPE: buffer.asShortBuffer().get((short[]) dst, dstIndex, length);
+                break;
+            case INT32_TYPE:
+            case UINT32_TYPE: buffer.asIntBuffer().get((int[]) dst, dstIndex, length);
+                break;
+            case FLOAT_TYPE: buffer.asFloatBuffer().get((float[]) dst, dstIndex, length);
+                break;
+            case DOUBLE_TYPE: buffer.asDoubleBuffer().get((double[]) dst, dstIndex, length);
+                break;
+            default:
+                throw new IllegalStateException("Unsupported pixel type : " + pixelType);
+        }
+    }
+
+    /**
+     * Reads the value of a single pixel
+     * @param buffer raw bytes, big endian
+     * @param index index of the pixel
+     */
+    public static double getValue(ByteBuffer buffer, String pixelType, int index) {
+        switch (pixelType) {
+            case INT8_TYPE: return buffer.get(index);
+            case UINT8_TYPE: return buffer.get(index) & 0xff;
+            case INT16_TYPE: return buffer.getShort(2 * index);
+            case UINT16_TYPE: return buffer.getShort(2 * index) & 0xffff;
+            case INT32_TYPE: return buffer.getInt(4 * index);
+            case UINT32_TYPE: return buffer.getInt(4 * index) & 0xffffffffL;
+            case FLOAT_TYPE: return buffer.getFloat(4 * index);
+            case DOUBLE_TYPE: return buffer.getDouble(8 * index);
+            default:
+                throw new IllegalStateException("Unsupported pixel type : " + pixelType);
+        }
+    }
+
+}
@@ -0,0 +1,57 @@
+package ch.epfl.biop.omero.omerosource;
+
+/**
+ * Tiles of one resolution level of an OMERO image, for a given channel and timepoint.
+ * Tiles are indexed in x, then y, then z order, so that a range of indexes can be split
+ * without listing the tiles.
+ */
+public class TileGrid {
+
+    final int level;
+    final int sizeX;
+    final int sizeY;
+    final int sizeZ;
+    final int tileSizeX;
+    final int tileSizeY;
+    final int nTilesX;
+    final int nTilesY;
+
+    public TileGrid(OmeroSourceOpener opener, int level) {
+        this.level = level;
+        this.sizeX = opener.getSizeX(level);
+        this.sizeY = opener.getSizeY(level);
+        this.sizeZ = opener.getSizeZ(level);
+        this.tileSizeX = opener.getTileSizeX(level);
+        this.tileSizeY = opener.getTileSizeY(level);
+        this.nTilesX = (sizeX + tileSizeX - 1) / tileSizeX;
+        this.nTilesY = (sizeY + tileSizeY - 1) / tileSizeY;
+    }
+
+    public int getNTilesX() {
+        return nTilesX;
+    }
+
+    public int getNTilesY() {
+        return nTilesY;
+    }
+
+    /**
+     * @return number of tiles of one channel and timepoint
+     */
+    public long size() {
+        return (long) nTilesX * nTilesY * sizeZ;
+    }
+
+    public Tile get(long index, int c, int t) {
+        int tx = (int) (index % nTilesX);
+        int ty = (int) ((index / nTilesX) % nTilesY);
+        int z = (int) (index / ((long) nTilesX * nTilesY));
+        return get(tx, ty, z, c, t);
+    }
+
+    public Tile get(int tx, int ty, int z, int c, int t) {
+        int x = tx * tileSizeX;
+        int y = ty * tileSizeY;
+        return new Tile(level, z, c, t, x, y, Math.min(tileSizeX, sizeX - x), Math.min(tileSizeY, sizeY - y));
+    }
+}
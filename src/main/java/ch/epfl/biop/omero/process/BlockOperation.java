@@ -0,0 +1,27 @@
+package ch.epfl.biop.omero.process;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Operation computing an output cell from an input block made of the cell and of its halo.
+ * Implementations must be thread safe: several cells are computed at the same time.
+ */
+public interface BlockOperation {
+
+    /**
+     * @param downsampling downsampling factors (x, y, z) of the resolution level compared to the highest resolution
+     * @return number of pixels (x, y, z) needed on each side of the output cell
+     */
+    long[] getHalo(double[] downsampling);
+
+    /**
+     * @param input input pixels over the output interval expanded by the halo,
+     *              out of bounds pixels are mirrored
+     * @param output cell to fill
+     * @param downsampling downsampling factors (x, y, z) of the resolution level compared to the highest resolution
+     */
+    void compute(RandomAccessibleInterval<FloatType> input, RandomAccessibleInterval<FloatType> output, double[] downsampling) throws Exception;
+
+    String getName();
+}
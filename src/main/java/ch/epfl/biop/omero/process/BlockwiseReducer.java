@@ -0,0 +1,126 @@
+package ch.epfl.biop.omero.process;
+
+import ch.epfl.biop.omero.omerosource.OmeroSourceOpener;
+import ch.epfl.biop.omero.omerosource.Tile;
+import ch.epfl.biop.omero.omerosource.TileDecoder;
+import ch.epfl.biop.omero.omerosource.TileGrid;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Computes a {@link TileReduction} over all tiles of one resolution level of an OMERO image.
+ *
+ * The range of tiles is split recursively in a fork join pool. Each tile is fetched, decoded, accumulated
+ * and dropped: tiles are not cached, so the memory used only depends on the number of threads.
+ *
+ * Example, histogram of the first channel at the highest resolution:
+ * <pre>
+ *     long[] histogram = new BlockwiseReducer(opener).reduce(0, 0, new HistogramReduction(256, 0, 4096));
+ * </pre>
+ */
+public class BlockwiseReducer {
+
+    final OmeroSourceOpener opener;
+    int nThreads = Runtime.getRuntime().availableProcessors();
+    ForegroundMask foreground;
+
+    public BlockwiseReducer(OmeroSourceOpener opener) {
+        this.opener = opener;
+    }
+
+    public BlockwiseReducer nThreads(int nThreads) {
+        this.nThreads = nThreads;
+        return this;
+    }
+
+    /**
+     * Background tiles, according to a mask computed on a coarse level, are not fetched nor accumulated
+     */
+    public BlockwiseReducer skipBackground(ForegroundMask foreground) {
+        this.foreground = foreground;
+        return this;
+    }
+
+    /**
+     * Reduction over all z and timepoints of a channel
+     */
+    public <A> A reduce(int level, int c, TileReduction<A> reduction) throws Exception {
+        return reduce(level, c, 0, opener.getSizeT(), reduction);
+    }
+
+    /**
+     * Reduction over all z of a channel and timepoint
+     */
+    public <A> A reduce(int level, int c, int t, TileReduction<A> reduction) throws Exception {
+        return reduce(level, c, t, t + 1, reduction);
+    }
+
+    /**
+     * One reduction per channel, over all z and timepoints
+     */
+    public <A> List<A> reducePerChannel(int level, TileReduction<A> reduction) throws Exception {
+        List<A> results = new ArrayList<>();
+        for (int c = 0; c < opener.getSizeC(); c++) {
+            results.add(reduce(level, c, reduction));
+        }
+        return results;
+    }
+
+    <A> A reduce(int level, int c, int tMin, int tMax, TileReduction<A> reduction) throws Exception {
+        TileGrid grid = new TileGrid(opener, level);
+        ForkJoinPool pool = new ForkJoinPool(nThreads);
+        try {
+            return pool.submit(new ReductionTask<>(grid, c, tMin, reduction, 0, grid.size() * (tMax - tMin))).get();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    class ReductionTask<A> extends RecursiveTask<A> {
+
+        final TileGrid grid;
+        final int c;
+        final int tMin;
+        final TileReduction<A> reduction;
+        // range of tile indexes, timepoints included
+        final long from;
+        final long to;
+
+        ReductionTask(TileGrid grid, int c, int tMin, TileReduction<A> reduction, long from, long to) {
+            this.grid = grid;
+            this.c = c;
+            this.tMin = tMin;
+            this.reduction = reduction;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected A compute() {
+            if (to - from <= 1) {
+                A accumulator = reduction.create();
+                if (to > from) {
+                    Tile tile = grid.get(from % grid.size(), c, tMin + (int) (from / grid.size()));
+                    if ((foreground != null) && !foreground.isForeground(tile)) return accumulator;
+                    try {
+                        byte[] bytes = tile.fetch(opener);
+                        reduction.accumulate(accumulator, TileDecoder.toImg(bytes, opener.getPixelType(), tile.w, tile.h));
+                    } catch (Exception e) {
+                        throw new RuntimeException("Could not reduce " + tile, e);
+                    }
+                }
+                return accumulator;
+            }
+            long middle = (from + to) / 2;
+            ReductionTask<A> left = new ReductionTask<>(grid, c, tMin, reduction, from, middle);
+            ReductionTask<A> right = new ReductionTask<>(grid, c, tMin, reduction, middle, to);
+            left.fork();
+            A rightResult = right.compute();
+            return reduction.merge(left.join(), rightResult);
+        }
+    }
+
+}
@@ -0,0 +1,49 @@
+package ch.epfl.biop.omero.process;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Difference of two gaussian blurs, sigmas are expressed in pixels of the highest resolution level
+ */
+public class DifferenceOfGaussianOperation implements BlockOperation {
+
+    final GaussianOperation small;
+    final GaussianOperation large;
+
+    public DifferenceOfGaussianOperation(double sigmaSmall, double sigmaLarge) {
+        this.small = new GaussianOperation(sigmaSmall);
+        this.large = new GaussianOperation(sigmaLarge);
+    }
+
+    @Override
+    public long[] getHalo(double[] downsampling) {
+        long[] haloSmall = small.getHalo(downsampling);
+        long[] haloLarge = large.getHalo(downsampling);
+        long[] halo = new long[3];
+        for (int d = 0; d < 3; d++) halo[d] = Math.max(haloSmall[d], haloLarge[d]);
+        return halo;
+    }
+
+    @Override
+    public void compute(RandomAccessibleInterval<FloatType> input, RandomAccessibleInterval<FloatType> output, double[] downsampling) throws Exception {
+        RandomAccessibleInterval<FloatType> blurred = Views.translate(
+                ArrayImgs.floats(Intervals.dimensionsAsLongArray(output)), Intervals.minAsLongArray(output));
+        small.compute(input, output, downsampling);
+        large.compute(input, blurred, downsampling);
+        Cursor<FloatType> out = Views.flatIterable(output).cursor();
+        Cursor<FloatType> in = Views.flatIterable(blurred).cursor();
+        while (out.hasNext()) {
+            out.next().sub(in.next());
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "DoG " + small.sigma + " - " + large.sigma;
+    }
+}
@@ -0,0 +1,304 @@
+package ch.epfl.biop.omero.process;
+
+import ch.epfl.biop.omero.omerosource.OmeroSourceOpener;
+import ch.epfl.biop.omero.omerosource.Tile;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Foreground (tissue) mask of an OMERO image, computed on a coarse resolution level,
+ * in order to skip the tiles of the finer levels which only contain background, like the empty glass of a slide.
+ *
+ * The mask is the projection over z and the selected channels of the first timepoint (maximum, or minimum
+ * for a dark foreground), thresholded
+ * (Otsu threshold if none is given) and dilated by a number of pixels of the mask level, so that the
+ * borders of the tissue are kept. A tile of any level is foreground if enough pixels of the mask
+ * inside the tile are foreground.
+ *
+ * The {@link #maxCachedMasks} last masks are cached per server connection, image and parameters,
+ * so that computing them again is free.
+ *
+ * Example, brightfield slide where the tissue is darker than the glass:
+ * <pre>
+ *     ForegroundMask mask = new ForegroundMask(opener).darkForeground().dilation(2).compute();
+ *     new OmeroN5Exporter(opener).path(path).skipBackground(mask).export();
+ * </pre>
+ */
+public class ForegroundMask {
+
+    static int maxCachedMasks = 16;
+
+    // the least recently used mask first
+    static final Map<List<Object>, boolean[]> cache = new LinkedHashMap<List<Object>, boolean[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<Object>, boolean[]> eldest) {
+            return size() > maxCachedMasks;
+        }
+    };
+
+    final OmeroSourceOpener opener;
+    int level;
+    // -1: all channels
+    int channel = -1;
+    // NaN: Otsu threshold
+    double threshold = Double.NaN;
+    boolean darkForeground = false;
+    int dilation = 1;
+    double minFraction = 0;
+
+    boolean[] mask;
+    int sizeX, sizeY;
+    double thresholdValue = Double.NaN;
+    // mean of the background pixels of each channel, computed when first needed
+    double[] backgroundValues;
+
+    public ForegroundMask(OmeroSourceOpener opener) {
+        this.opener = opener;
+        this.level = opener.getNLevels() - 1;
+    }
+
+    /**
+     * Resolution level on which the mask is computed, the coarsest one by default
+     */
+    public ForegroundMask level(int level) {
+        this.level = level;
+        return this;
+    }
+
+    public ForegroundMask channel(int channel) {
+        this.channel = channel;
+        return this;
+    }
+
+    public ForegroundMask threshold(double threshold) {
+        this.threshold = threshold;
+        return this;
+    }
+
+    /**
+     * Foreground is below the threshold (brightfield), instead of above (fluorescence)
+     */
+    public ForegroundMask darkForeground() {
+        this.darkForeground = true;
+        return this;
+    }
+
+    /**
+     * @param dilation radius of the dilation of the mask, in pixels of the mask level
+     */
+    public ForegroundMask dilation(int dilation) {
+        this.dilation = dilation;
+        return this;
+    }
+
+    /**
+     * @param minFraction fraction of foreground pixels above which a tile is foreground, 0 means any pixel
+     */
+    public ForegroundMask minFraction(double minFraction) {
+        this.minFraction = minFraction;
+        return this;
+    }
+
+    List<Object> getKey() {
+        // image IDs are only unique on a server
+        return Arrays.asList(opener.getGateway(), opener.getImageID(), level, channel, threshold, darkForeground, dilation);
+    }
+
+    public ForegroundMask compute() throws Exception {
+        sizeX = opener.getSizeX(level);
+        sizeY = opener.getSizeY(level);
+        synchronized (cache) {
+            mask = cache.get(getKey());
+        }
+        if (mask != null) return this;
+
+        float[] projection = new float[sizeX * sizeY];
+        Arrays.fill(projection, Float.NEGATIVE_INFINITY);
+        for (int c = 0; c < opener.getSizeC(); c++) {
+            if ((channel >= 0) && (c != channel)) continue;
+            project(opener.getCachedImage(c, 0, level), projection);
+        }
+
+        thresholdValue = Double.isNaN(threshold) ? getOtsuThreshold(projection) : threshold;
+        boolean[] thresholded = new boolean[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            thresholded[i] = darkForeground ? (projection[i] < thresholdValue) : (projection[i] > thresholdValue);
+        }
+        mask = dilate(thresholded, sizeX, sizeY, dilation);
+        synchronized (cache) {
+            cache.put(getKey(), mask);
+        }
+        return this;
+    }
+
+    /**
+     * @return threshold applied by {@link #compute()}, NaN if the mask was found in the cache
+     */
+    public double getThresholdValue() {
+        return thresholdValue;
+    }
+
+    /**
+     * Value written in place of the background tiles, so that they look like the background of the image
+     * (for instance the bright glass of a brightfield slide) instead of being black
+     * @param c channel
+     * @return mean of the pixels of the channel outside of the mask, at the mask level, first timepoint and all
+     * z planes, 0 if there is no background or before {@link #compute()}
+     */
+    public synchronized double getBackgroundValue(int c) throws Exception {
+        if (mask == null) return 0;
+        if (backgroundValues == null) {
+            backgroundValues = new double[opener.getSizeC()];
+            Arrays.fill(backgroundValues, Double.NaN);
+        }
+        if (Double.isNaN(backgroundValues[c])) backgroundValues[c] = getBackgroundMean(opener.getCachedImage(c, 0, level));
+        return backgroundValues[c];
+    }
+
+    <T extends RealType<T> & NativeType<T>> double getBackgroundMean(RandomAccessibleInterval<T> image) {
+        RandomAccess<T> access = image.randomAccess();
+        double sum = 0;
+        long n = 0;
+        for (int z = 0; z < image.dimension(2); z++) {
+            for (int y = 0; y < sizeY; y++) {
+                for (int x = 0; x < sizeX; x++) {
+                    if (mask[x + sizeX * y]) continue;
+                    access.setPosition(new long[]{x, y, z});
+                    sum += access.get().getRealDouble();
+                    n++;
+                }
+            }
+        }
+        return (n > 0) ? sum / n : 0;
+    }
+
+    /**
+     * @return fraction of the pixels of the mask which are foreground, 1 before {@link #compute()}
+     */
+    public double getForegroundFraction() {
+        if (mask == null) return 1;
+        int nForeground = 0;
+        for (boolean b : mask) if (b) nForeground++;
+        return nForeground / (double) Math.max(1, mask.length);
+    }
+
+    <T extends RealType<T> & NativeType<T>> void project(RandomAccessibleInterval<T> image, float[] projection) {
+        RandomAccess<T> access = image.randomAccess();
+        // a dark foreground is projected with the minimum of the channels, a bright one with the maximum
+        for (int z = 0; z < image.dimension(2); z++) {
+            for (int y = 0; y < sizeY; y++) {
+                for (int x = 0; x < sizeX; x++) {
+                    access.setPosition(new long[]{x, y, z});
+                    int i = x + sizeX * y;
+                    float value = access.get().getRealFloat();
+                    if (projection[i] == Float.NEGATIVE_INFINITY) projection[i] = value;
+                    else projection[i] = darkForeground ? Math.min(projection[i], value) : Math.max(projection[i], value);
+                }
+            }
+        }
+    }
+
+    static double getOtsuThreshold(float[] values) {
+        double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        for (float v : values) {
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        if (max <= min) return max;
+        int nBins = 256;
+        HistogramReduction reduction = new HistogramReduction(nBins, min, max);
+        long[] histogram = new long[nBins];
+        double scale = nBins / (max - min);
+        for (float v : values) {
+            histogram[Math.max(0, Math.min(nBins - 1, (int) Math.floor((v - min) * scale)))]++;
+        }
+
+        long total = values.length;
+        double sum = 0;
+        for (int i = 0; i < nBins; i++) sum += i * (double) histogram[i];
+        double sumBackground = 0;
+        long nBackground = 0;
+        double best = -1;
+        int bestBin = 0;
+        for (int i = 0; i < nBins; i++) {
+            nBackground += histogram[i];
+            if (nBackground == 0) continue;
+            long nForeground = total - nBackground;
+            if (nForeground == 0) break;
+            sumBackground += i * (double) histogram[i];
+            double meanBackground = sumBackground / nBackground;
+            double meanForeground = (sum - sumBackground) / nForeground;
+            double between = (double) nBackground * nForeground * (meanBackground - meanForeground) * (meanBackground - meanForeground);
+            if (between > best) {
+                best = between;
+                bestBin = i;
+            }
+        }
+        return reduction.getBinMin(bestBin + 1);
+    }
+
+    /**
+     * Square dilation, separable in x and y
+     */
+    static boolean[] dilate(boolean[] mask, int sizeX, int sizeY, int radius) {
+        if (radius <= 0) return mask;
+        boolean[] dilatedX = new boolean[mask.length];
+        for (int y = 0; y < sizeY; y++) {
+            for (int x = 0; x < sizeX; x++) {
+                if (!mask[x + sizeX * y]) continue;
+                for (int dx = Math.max(0, x - radius); dx <= Math.min(sizeX - 1, x + radius); dx++) {
+                    dilatedX[dx + sizeX * y] = true;
+                }
+            }
+        }
+        boolean[] dilated = new boolean[mask.length];
+        for (int y = 0; y < sizeY; y++) {
+            for (int x = 0; x < sizeX; x++) {
+                if (!dilatedX[x + sizeX * y]) continue;
+                for (int dy = Math.max(0, y - radius); dy <= Math.min(sizeY - 1, y + radius); dy++) {
+                    dilated[x + sizeX * dy] = true;
+                }
+            }
+        }
+        return dilated;
+    }
+
+    /**
+     * @param level resolution level of the region
+     * @param x first pixel of the region, in pixels of its resolution level
+     * @param w width of the region, in pixels of its resolution level
+     * @return true if the region contains foreground, according to the minimal fraction
+     */
+    public boolean isForeground(int level, int x, int y, int w, int h) {
+        if (mask == null) return true;
+        double scaleX = sizeX / (double) opener.getSizeX(level);
+        double scaleY = sizeY / (double) opener.getSizeY(level);
+        int minX = (int) Math.floor(x * scaleX);
+        int minY = (int) Math.floor(y * scaleY);
+        int maxX = Math.min(sizeX - 1, (int) Math.ceil((x + w) * scaleX) - 1);
+        int maxY = Math.min(sizeY - 1, (int) Math.ceil((y + h) * scaleY) - 1);
+        long nForeground = 0;
+        long n = 0;
+        for (int my = minY; my <= maxY; my++) {
+            for (int mx = minX; mx <= maxX; mx++) {
+                n++;
+                if (mask[mx + sizeX * my]) {
+                    if (minFraction <= 0) return true;
+                    nForeground++;
+                }
+            }
+        }
+        return (n > 0) && (nForeground > 0) && (nForeground >= minFraction * n);
+    }
+
+    public boolean isForeground(Tile tile) {
+        return isForeground(tile.level, tile.x, tile.y, tile.w, tile.h);
+    }
+}
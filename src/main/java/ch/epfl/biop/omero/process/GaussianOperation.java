@@ -0,0 +1,53 @@
+package ch.epfl.biop.omero.process;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 2D Gaussian blur of each plane. Sigma is expressed in pixels of the highest resolution level,
+ * so that all resolution levels show the same filtered image.
+ */
+public class GaussianOperation implements BlockOperation {
+
+    // shared by all gaussian operations, cells are already computed in parallel by their callers
+    static final ExecutorService service = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+        Thread thread = new Thread(r, "OMERO gaussian");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    final double sigma;
+
+    public GaussianOperation(double sigma) {
+        this.sigma = sigma;
+    }
+
+    double[] getSigmas(double[] downsampling) {
+        // a blur smaller than a pixel is not visible anymore, but the kernel still needs a positive sigma
+        return new double[]{Math.max(sigma / downsampling[0], 0.01), Math.max(sigma / downsampling[1], 0.01)};
+    }
+
+    @Override
+    public long[] getHalo(double[] downsampling) {
+        int[] halfKernelSizes = Gauss3.halfkernelsizes(getSigmas(downsampling));
+        return new long[]{halfKernelSizes[0] - 1, halfKernelSizes[1] - 1, 0};
+    }
+
+    @Override
+    public void compute(RandomAccessibleInterval<FloatType> input, RandomAccessibleInterval<FloatType> output, double[] downsampling) throws Exception {
+        double[] sigmas = getSigmas(downsampling);
+        for (long z = output.min(2); z <= output.max(2); z++) {
+            Gauss3.gauss(sigmas, Views.hyperSlice(input, 2, z), Views.hyperSlice(output, 2, z), service);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "Gaussian " + sigma;
+    }
+}
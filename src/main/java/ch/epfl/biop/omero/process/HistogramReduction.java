@@ -0,0 +1,51 @@
+package ch.epfl.biop.omero.process;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Histogram of an image with nBins bins of equal width between min (included) and max (excluded).
+ * Values outside of the range are counted in the first or last bin.
+ */
+public class HistogramReduction implements TileReduction<long[]> {
+
+    final int nBins;
+    final double min;
+    final double max;
+
+    public HistogramReduction(int nBins, double min, double max) {
+        this.nBins = nBins;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * @return lower bound of a bin
+     */
+    public double getBinMin(int bin) {
+        return min + bin * (max - min) / nBins;
+    }
+
+    @Override
+    public long[] create() {
+        return new long[nBins];
+    }
+
+    @Override
+    public void accumulate(long[] accumulator, RandomAccessibleInterval<? extends RealType<?>> tile) {
+        double scale = nBins / (max - min);
+        for (RealType<?> v : Views.flatIterable(tile)) {
+            int bin = (int) Math.floor((v.getRealDouble() - min) * scale);
+            accumulator[Math.max(0, Math.min(nBins - 1, bin))]++;
+        }
+    }
+
+    @Override
+    public long[] merge(long[] a, long[] b) {
+        for (int i = 0; i < nBins; i++) {
+            a[i] += b[i];
+        }
+        return a;
+    }
+}
@@ -0,0 +1,45 @@
+package ch.epfl.biop.omero.process;
+
+/**
+ * Count, sum, sum of squares, min and max of pixel values
+ */
+public class Moments {
+
+    public long count = 0;
+    public double sum = 0;
+    public double sumOfSquares = 0;
+    public double min = Double.POSITIVE_INFINITY;
+    public double max = Double.NEGATIVE_INFINITY;
+
+    public void add(double v) {
+        count++;
+        sum += v;
+        sumOfSquares += v * v;
+        if (v < min) min = v;
+        if (v > max) max = v;
+    }
+
+    public void add(Moments other) {
+        count += other.count;
+        sum += other.sum;
+        sumOfSquares += other.sumOfSquares;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public double getMean() {
+        return (count == 0) ? Double.NaN : sum / count;
+    }
+
+    public double getStdDev() {
+        if (count == 0) return Double.NaN;
+        double mean = getMean();
+        return Math.sqrt(Math.max(0, sumOfSquares / count - mean * mean));
+    }
+
+    @Override
+    public String toString() {
+        return "count: " + count + "; min: " + min + "; max: " + max
+                + "; sum: " + sum + "; mean: " + getMean() + "; std: " + getStdDev();
+    }
+}
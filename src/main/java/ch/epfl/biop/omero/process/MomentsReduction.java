@@ -0,0 +1,29 @@
+package ch.epfl.biop.omero.process;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Min, max, sum, mean and standard deviation of an image
+ */
+public class MomentsReduction implements TileReduction<Moments> {
+
+    @Override
+    public Moments create() {
+        return new Moments();
+    }
+
+    @Override
+    public void accumulate(Moments accumulator, RandomAccessibleInterval<? extends RealType<?>> tile) {
+        for (RealType<?> v : Views.flatIterable(tile)) {
+            accumulator.add(v.getRealDouble());
+        }
+    }
+
+    @Override
+    public Moments merge(Moments a, Moments b) {
+        a.add(b);
+        return a;
+    }
+}
@@ -0,0 +1,130 @@
+package ch.epfl.biop.omero.process;
+
+import ch.epfl.biop.omero.omerosource.OmeroSource;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.iterator.LocalizingIntervalIterator;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Lazy source whose cells are the result of a {@link BlockOperation} applied to another source.
+ *
+ * When a cell is requested, the input tiles covering the cell and its halo are loaded in parallel
+ * through the cache of the input source, the operation is applied and the result is cached like any
+ * other OMERO cell. The filtered source can be displayed in BigDataViewer with
+ * {@link ch.epfl.biop.omero.omerosource.OmeroSourceOpener#getSourceAndConvertor(OmeroSource)}, exported,
+ * or used as the input of another filtered source.
+ */
+public class OmeroFilteredSource extends OmeroSource<FloatType> {
+
+    // loads the input tiles covering the halo of a cell
+    static final ExecutorService prefetcher = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+        Thread thread = new PrefetchThread(r);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static class PrefetchThread extends Thread {
+        PrefetchThread(Runnable r) {
+            super(r, "OMERO halo prefetch");
+        }
+    }
+
+    final OmeroSource<?> input;
+    final BlockOperation operation;
+
+    public OmeroFilteredSource(OmeroSource<?> input, BlockOperation operation) {
+        super(input.getOpener(), input.getChannel());
+        this.input = input;
+        this.operation = operation;
+    }
+
+    /**
+     * @return downsampling factors (x, y, z) of a resolution level compared to the highest resolution
+     */
+    double[] getDownsampling(int level) {
+        return new double[]{
+                (double) getOpener().getSizeX(0) / getOpener().getSizeX(level),
+                (double) getOpener().getSizeY(0) / getOpener().getSizeY(level),
+                (double) getOpener().getSizeZ(0) / getOpener().getSizeZ(level)};
+    }
+
+    @Override
+    protected void loadCell(SingleCellArrayImg<FloatType, ?> cell, int t, int level) throws Exception {
+        double[] downsampling = getDownsampling(level);
+        // with the precision of the image, also at the quantized levels of the input
+        RandomAccessibleInterval<?> in = input.getFullPrecisionSource(t, level);
+        Interval withHalo = Intervals.expand(cell, operation.getHalo(downsampling));
+
+        prefetch(in, Intervals.intersect(withHalo, in));
+
+        @SuppressWarnings("unchecked")
+        RandomAccessibleInterval<FloatType> floatInput = Converters.convert(
+                (RandomAccessibleInterval<RealType>) in,
+                (i, o) -> o.setReal(i.getRealDouble()),
+                new FloatType());
+        operation.compute(Views.interval(Views.extendMirrorSingle(floatInput), withHalo), cell, downsampling);
+    }
+
+    /**
+     * Loads in parallel the cells of the input intersecting an interval, so that the operation
+     * does not wait for each tile of the halo in turn. When the input is itself a filtered source, its cells are
+     * loaded by the prefetching threads: they do not prefetch their own halo, so that the bounded pool
+     * never waits for itself.
+     */
+    static void prefetch(RandomAccessibleInterval<?> in, Interval interval) throws Exception {
+        if (!(in instanceof CachedCellImg) || (Thread.currentThread() instanceof PrefetchThread)) return;
+        CellGrid grid = ((CachedCellImg<?, ?>) in).getCellGrid();
+        int n = grid.numDimensions();
+        long[] gridMin = new long[n];
+        long[] gridMax = new long[n];
+        for (int d = 0; d < n; d++) {
+            gridMin[d] = interval.min(d) / grid.cellDimension(d);
+            gridMax[d] = interval.max(d) / grid.cellDimension(d);
+        }
+        List<Future<?>> futures = new ArrayList<>();
+        LocalizingIntervalIterator cells = new LocalizingIntervalIterator(gridMin, gridMax);
+        while (cells.hasNext()) {
+            cells.fwd();
+            long[] position = new long[n];
+            for (int d = 0; d < n; d++) position[d] = cells.getLongPosition(d) * grid.cellDimension(d);
+            futures.add(prefetcher.submit(() -> {
+                RandomAccess<?> access = in.randomAccess();
+                access.setPosition(position);
+                access.get();
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+    @Override
+    protected boolean hasServerTiles() {
+        return false;
+    }
+
+    @Override
+    public FloatType getType() {
+        return new FloatType();
+    }
+
+    @Override
+    public String getName() {
+        return input.getName() + "; " + operation.getName();
+    }
+}
@@ -0,0 +1,128 @@
+package ch.epfl.biop.omero.process;
+
+import ch.epfl.biop.omero.omerosource.OmeroSource;
+import ch.epfl.biop.omero.omerosource.OmeroSourceOpener;
+import ch.epfl.biop.omero.omerosource.TileDecoder;
+import net.imglib2.Cursor;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Lazy projection along z of a channel of an OMERO image, available at all resolution levels.
+ *
+ * For each cell, the tiles of all z planes are fetched in parallel and folded into the cell as soon as
+ * they arrive, at most {@link #maxPlanesInFlight} planes of a cell are held in memory at the same time.
+ * The projection can be exported with {@link ch.epfl.biop.omero.export.OmeroBdvHdf5Exporter#OmeroBdvHdf5Exporter(java.util.List)}.
+ */
+public class OmeroProjectionSource extends OmeroSource<FloatType> {
+
+    public enum Projection {
+        MAX,
+        MEAN,
+        SUM
+    }
+
+    // fetches the planes of the cells, shared by all projections
+    static final ExecutorService fetcher = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+        Thread thread = new Thread(r, "OMERO z projection");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    final Projection projection;
+    int maxPlanesInFlight = 8;
+
+    public OmeroProjectionSource(OmeroSourceOpener opener, int c, Projection projection) {
+        super(opener, c);
+        this.projection = projection;
+    }
+
+    public OmeroProjectionSource maxPlanesInFlight(int maxPlanesInFlight) {
+        this.maxPlanesInFlight = maxPlanesInFlight;
+        return this;
+    }
+
+    @Override
+    protected long[] getDimensions(int level) {
+        return new long[]{getOpener().getSizeX(level), getOpener().getSizeY(level), 1};
+    }
+
+    @Override
+    protected void loadCell(SingleCellArrayImg<FloatType, ?> cell, int t, int level) throws Exception {
+        OmeroSourceOpener opener = getOpener();
+        if (level == opener.getNLevels()) {
+            // the thumbnail level is a single rendered plane
+            super.loadCell(cell, t, level);
+            return;
+        }
+        int x = (int) cell.min(0);
+        int y = (int) cell.min(1);
+        int w = (int) cell.dimension(0);
+        int h = (int) cell.dimension(1);
+        int sizeZ = opener.getSizeZ(level);
+
+        float[] accumulator = new float[w * h];
+        if (projection == Projection.MAX) Arrays.fill(accumulator, Float.NEGATIVE_INFINITY);
+
+        CompletionService<byte[]> planes = new ExecutorCompletionService<>(fetcher);
+        int submitted = 0;
+        for (; (submitted < sizeZ) && (submitted < maxPlanesInFlight); submitted++) {
+            final int z = submitted;
+            planes.submit(() -> opener.getTile(level, z, getChannel(), t, x, y, w, h));
+        }
+        for (int folded = 0; folded < sizeZ; folded++) {
+            byte[] bytes = planes.take().get();
+            if (submitted < sizeZ) {
+                final int z = submitted++;
+                planes.submit(() -> opener.getTile(level, z, getChannel(), t, x, y, w, h));
+            }
+            fold(accumulator, bytes, opener.getPixelType(), w, h);
+        }
+
+        Cursor<FloatType> out = Views.flatIterable(cell).cursor();
+        int i = 0;
+        while (out.hasNext()) {
+            float v = accumulator[i++];
+            out.next().set(projection == Projection.MEAN ? v / sizeZ : v);
+        }
+    }
+
+    void fold(float[] accumulator, byte[] bytes, String pixelType, int w, int h) {
+        Cursor<? extends RealType<?>> in = TileDecoder.toImg(bytes, pixelType, w, h).cursor();
+        int i = 0;
+        if (projection == Projection.MAX) {
+            while (in.hasNext()) {
+                float v = in.next().getRealFloat();
+                if (v > accumulator[i]) accumulator[i] = v;
+                i++;
+            }
+        } else {
+            while (in.hasNext()) {
+                accumulator[i++] += in.next().getRealFloat();
+            }
+        }
+    }
+
+    @Override
+    protected boolean hasServerTiles() {
+        return false;
+    }
+
+    @Override
+    public FloatType getType() {
+        return new FloatType();
+    }
+
+    @Override
+    public String getName() {
+        return super.getName() + "; " + projection + " Z projection";
+    }
+}
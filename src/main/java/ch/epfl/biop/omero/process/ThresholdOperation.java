@@ -0,0 +1,37 @@
+package ch.epfl.biop.omero.process;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Sets pixels above or equal to the threshold to 1, the others to 0
+ */
+public class ThresholdOperation implements BlockOperation {
+
+    final double threshold;
+
+    public ThresholdOperation(double threshold) {
+        this.threshold = threshold;
+    }
+
+    @Override
+    public long[] getHalo(double[] downsampling) {
+        return new long[]{0, 0, 0};
+    }
+
+    @Override
+    public void compute(RandomAccessibleInterval<FloatType> input, RandomAccessibleInterval<FloatType> output, double[] downsampling) {
+        Cursor<FloatType> in = Views.flatIterable(Views.interval(input, output)).cursor();
+        Cursor<FloatType> out = Views.flatIterable(output).cursor();
+        while (out.hasNext()) {
+            out.next().set(in.next().get() >= threshold ? 1 : 0);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "Threshold " + threshold;
+    }
+}
@@ -0,0 +1,28 @@
+package ch.epfl.biop.omero.process;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Reduction of an image computed tile by tile: each tile is accumulated in its own accumulator,
+ * accumulators are then merged two by two.
+ *
+ * @param <A> accumulator type, it does not need to be thread safe
+ */
+public interface TileReduction<A> {
+
+    /**
+     * @return a new empty accumulator
+     */
+    A create();
+
+    /**
+     * Accumulates the pixel values of a tile
+     */
+    void accumulate(A accumulator, RandomAccessibleInterval<? extends RealType<?>> tile);
+
+    /**
+     * Merges two partial results, any of them can be modified and returned
+     */
+    A merge(A a, A b);
+}
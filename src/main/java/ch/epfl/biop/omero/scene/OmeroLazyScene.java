@@ -0,0 +1,317 @@
+package ch.epfl.biop.omero.scene;
+
+import bdv.util.Affine3DHelpers;
+import bdv.util.BdvHandle;
+import bdv.util.volatiles.SharedQueue;
+import bdv.viewer.SourceAndConverter;
+import bdv.viewer.ViewerPanel;
+import ch.epfl.biop.omero.omerosource.OmeroSourceOpener;
+import ch.epfl.biop.omero.omerosource.ThumbnailBatchLoader;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import omero.gateway.Gateway;
+import omero.gateway.SecurityContext;
+import omero.gateway.model.ImageData;
+import omero.gateway.model.PixelsData;
+import omero.model.Length;
+import omero.model.enums.UnitsLength;
+import sc.fiji.bdvpg.services.SourceAndConverterServices;
+
+import javax.swing.SwingUtilities;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+
+/**
+ * Scene made of many OMERO images placed in a common world coordinate system, displayed in BDV.
+ *
+ * The world bounding boxes of the images are computed from the metadata returned when listing
+ * the images, before opening them, and stored in a {@link SpatialGridIndex}. Each time the view changes,
+ * only the images intersecting the view are active in BDV, the others are neither rendered nor fetched.
+ * An image is opened (opener and sources created) the first time it becomes visible and large enough
+ * on screen. The rawPixelsStores of the images which have not been visible recently are closed, so that
+ * the number of open stores does not grow with the number of images browsed.
+ */
+public class OmeroLazyScene {
+
+    public static class Element {
+        final ImageData image;
+        final AffineTransform3D position;
+        final RealInterval bounds;
+        // null until the image has been opened
+        volatile SourceAndConverter[] sacs;
+        volatile OmeroSourceOpener opener;
+        boolean opening = false;
+
+        Element(ImageData image, AffineTransform3D position, RealInterval bounds) {
+            this.image = image;
+            this.position = position;
+            this.bounds = bounds;
+        }
+
+        public ImageData getImage() {
+            return image;
+        }
+
+        public RealInterval getBounds() {
+            return bounds;
+        }
+    }
+
+    final Gateway gateway;
+    final SecurityContext ctx;
+    final List<Element> elements = new ArrayList<>();
+    SharedQueue queue;
+    ThumbnailBatchLoader thumbnails;
+    int nThreads = 4;
+    // images smaller than this on screen (in pixels) are not opened
+    double minScreenSize = 0;
+    // maximal number of images keeping their rawPixelsStores open, on top of the visible ones
+    int maxOpenImages = 64;
+    int poolSize = 4;
+    // called on each newly opened source with its channel index, for instance to set its color
+    BiConsumer<SourceAndConverter, Integer> sourceInitializer = (sac, c) -> {};
+
+    SpatialGridIndex<Element> index;
+    ExecutorService openingExecutor;
+    BdvHandle bdvh;
+    Set<Element> visible = new HashSet<>();
+    // opened images, the least recently visible first
+    final LinkedHashSet<Element> recentlyVisible = new LinkedHashSet<>();
+
+    public OmeroLazyScene(Gateway gateway, SecurityContext ctx) {
+        this.gateway = gateway;
+        this.ctx = ctx;
+    }
+
+    public OmeroLazyScene sharedQueue(SharedQueue queue) {
+        this.queue = queue;
+        return this;
+    }
+
+    /**
+     * Gives all images an extra coarsest level backed by their thumbnail,
+     * the thumbnails of all images of the scene are fetched in batches
+     */
+    public OmeroLazyScene thumbnails(ThumbnailBatchLoader thumbnails) {
+        this.thumbnails = thumbnails;
+        return this;
+    }
+
+    // number of images opened in parallel
+    public OmeroLazyScene nThreads(int nThreads) {
+        this.nThreads = nThreads;
+        return this;
+    }
+
+    public OmeroLazyScene minScreenSize(double minScreenSize) {
+        this.minScreenSize = minScreenSize;
+        return this;
+    }
+
+    public OmeroLazyScene maxOpenImages(int maxOpenImages) {
+        this.maxOpenImages = maxOpenImages;
+        return this;
+    }
+
+    // maximal number of rawPixelsStores of each image
+    public OmeroLazyScene poolSize(int poolSize) {
+        this.poolSize = poolSize;
+        return this;
+    }
+
+    public OmeroLazyScene sourceInitializer(BiConsumer<SourceAndConverter, Integer> sourceInitializer) {
+        this.sourceInitializer = sourceInitializer;
+        return this;
+    }
+
+    /**
+     * Adds an image to the scene, without opening it
+     * @param image image with its default pixels loaded, as returned by the BrowseFacility
+     * @param position position of the image in micrometer
+     */
+    public synchronized OmeroLazyScene add(ImageData image, AffineTransform3D position) {
+        elements.add(new Element(image, position, getBounds(image.getDefaultPixels(), position)));
+        return this;
+    }
+
+    public List<Element> getElements() {
+        return elements;
+    }
+
+    /**
+     * @return world bounding box, in micrometer, of the highest resolution of an image
+     */
+    public static RealInterval getBounds(PixelsData pixels, AffineTransform3D position) {
+        double sx = pixels.getSizeX() * getPixelSize(pixels.getPixelSizeX(UnitsLength.MICROMETER));
+        double sy = pixels.getSizeY() * getPixelSize(pixels.getPixelSizeY(UnitsLength.MICROMETER));
+        double sz = pixels.getSizeZ() * getPixelSize(pixels.getPixelSizeZ(UnitsLength.MICROMETER));
+        return position.estimateBounds(new FinalRealInterval(new double[]{0, 0, 0}, new double[]{sx, sy, sz}));
+    }
+
+    static double getPixelSize(Length length) {
+        return (length == null) ? 1 : length.getValue();
+    }
+
+    /**
+     * Builds the index, fits the view on the whole scene and starts following the view of the BDV window
+     */
+    public synchronized void show(BdvHandle bdvh) {
+        this.bdvh = bdvh;
+        if (elements.isEmpty()) return;
+        if (queue == null) queue = new SharedQueue(nThreads, 4);
+        openingExecutor = Executors.newFixedThreadPool(nThreads, r -> {
+            Thread thread = new Thread(r, "OMERO scene opener");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // grid cells of the size of the largest image
+        double cellSize = 0;
+        List<RealInterval> allBounds = new ArrayList<>();
+        for (Element element : elements) {
+            cellSize = Math.max(cellSize, getSize(element.bounds));
+            allBounds.add(element.bounds);
+        }
+        // images reduced to points or lines: any positive cell size works
+        if (!(cellSize > 0)) cellSize = 1;
+        index = new SpatialGridIndex<>(cellSize);
+        for (Element element : elements) {
+            index.add(element.bounds, element);
+            if (thumbnails != null) thumbnails.register(element.image.getDefaultPixels().getId());
+        }
+
+        ViewerPanel viewer = bdvh.getViewerPanel();
+        fitView(viewer, SpatialGridIndex.union(allBounds));
+        viewer.transformListeners().add(transform -> update());
+        update();
+    }
+
+    /**
+     * Activates the sources of the images intersecting the view, deactivates the others
+     * and starts opening the visible images which are not opened yet
+     */
+    public synchronized void update() {
+        if (index == null) return;
+        AffineTransform3D viewerTransform = bdvh.getViewerPanel().state().getViewerTransform();
+        Set<Element> nowVisible = index.query(getViewBounds(bdvh.getViewerPanel()));
+        // screen pixels per world unit
+        double scale = Affine3DHelpers.extractScale(viewerTransform, 0);
+
+        List<SourceAndConverter> hidden = new ArrayList<>();
+        for (Element element : visible) {
+            if (!nowVisible.contains(element) && (element.sacs != null)) hidden.addAll(Arrays.asList(element.sacs));
+        }
+        List<SourceAndConverter> shown = new ArrayList<>();
+        for (Element element : nowVisible) {
+            if (element.sacs != null) {
+                if (!visible.contains(element)) shown.addAll(Arrays.asList(element.sacs));
+            } else if (!element.opening && (getSize(element.bounds) * scale >= minScreenSize)) {
+                element.opening = true;
+                openingExecutor.submit(() -> open(element));
+            }
+        }
+        visible = nowVisible;
+        closeUnusedStores();
+
+        if (!hidden.isEmpty()) bdvh.getViewerPanel().state().setSourcesActive(hidden, false);
+        if (!shown.isEmpty()) bdvh.getViewerPanel().state().setSourcesActive(shown, true);
+    }
+
+    /**
+     * Closes the rawPixelsStores of the least recently visible images, keeping the stores of the visible images
+     * and of at most {@link #maxOpenImages} hidden images
+     */
+    void closeUnusedStores() {
+        int nHidden = 0;
+        for (Element element : recentlyVisible) {
+            if (!visible.contains(element)) nHidden++;
+        }
+        for (Element element : visible) {
+            if (element.opener != null) {
+                recentlyVisible.remove(element);
+                recentlyVisible.add(element);
+            }
+        }
+        Iterator<Element> iterator = recentlyVisible.iterator();
+        while (iterator.hasNext() && (nHidden > maxOpenImages)) {
+            Element element = iterator.next();
+            if (visible.contains(element)) continue;
+            element.opener.closeStores();
+            iterator.remove();
+            nHidden--;
+        }
+    }
+
+    static double getSize(RealInterval bounds) {
+        return Math.max(bounds.realMax(0) - bounds.realMin(0), bounds.realMax(1) - bounds.realMin(1));
+    }
+
+    void open(Element element) {
+        try {
+            OmeroSourceOpener opener = new OmeroSourceOpener()
+                    .imageData(element.image)
+                    .gateway(gateway)
+                    .securityContext(ctx)
+                    .sharedQueue(queue)
+                    .poolSize(poolSize)
+                    .deriveCoarseLevels()
+                    .positionTransform(element.position)
+                    .micrometer();
+            if (thumbnails != null) opener.thumbnailLevel(thumbnails);
+            opener.create();
+            SourceAndConverter[] sacs = opener.getSourceAndConvertors();
+            for (int c = 0; c < sacs.length; c++) {
+                SourceAndConverterServices.getSourceAndConverterService().register(sacs[c]);
+                // RGB images and preview levels are displayed with the colors of their pixels
+                if ((!opener.isRGB()) && (c < opener.getSizeC())) sourceInitializer.accept(sacs[c], c);
+            }
+            SwingUtilities.invokeLater(() -> {
+                SourceAndConverterServices.getBdvDisplayService().show(bdvh, sacs);
+                synchronized (this) {
+                    element.sacs = sacs;
+                    element.opener = opener;
+                    recentlyVisible.add(element);
+                    // the view may have changed while the image was opening
+                    bdvh.getViewerPanel().state().setSourcesActive(Arrays.asList(sacs), visible.contains(element));
+                }
+            });
+        } catch (Exception e) {
+            System.err.println("Could not open image " + element.image.getId() + " : " + e.getMessage());
+            e.printStackTrace();
+            // opened again the next time it becomes visible
+            synchronized (this) {
+                element.opening = false;
+            }
+        }
+    }
+
+    /**
+     * @return region of the world displayed in the viewer, in the XY plane
+     */
+    static RealInterval getViewBounds(ViewerPanel viewer) {
+        AffineTransform3D viewerTransform = viewer.state().getViewerTransform();
+        double w = viewer.getDisplay().getWidth();
+        double h = viewer.getDisplay().getHeight();
+        return viewerTransform.inverse().estimateBounds(new FinalRealInterval(new double[]{0, 0, 0}, new double[]{w, h, 0}));
+    }
+
+    static void fitView(ViewerPanel viewer, RealInterval bounds) {
+        double w = viewer.getDisplay().getWidth();
+        double h = viewer.getDisplay().getHeight();
+        if ((w <= 0) || (h <= 0)) return;
+        double scale = Math.min(w / (bounds.realMax(0) - bounds.realMin(0)), h / (bounds.realMax(1) - bounds.realMin(1)));
+        AffineTransform3D transform = new AffineTransform3D();
+        transform.translate(-bounds.realMin(0), -bounds.realMin(1), -bounds.realMin(2));
+        transform.scale(scale);
+        viewer.state().setViewerTransform(transform);
+    }
+}
@@ -0,0 +1,113 @@
+package ch.epfl.biop.omero.scene;
+
+import net.imglib2.RealInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import omero.gateway.Gateway;
+import omero.gateway.SecurityContext;
+import omero.gateway.facility.BrowseFacility;
+import omero.gateway.model.ImageData;
+import omero.gateway.model.WellData;
+import omero.gateway.model.WellSampleData;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lays out the fields of all wells of an OMERO plate in a {@link OmeroLazyScene}:
+ * wells are placed according to their row and column, and the fields of a well on a small grid inside the well.
+ *
+ * The wells, their fields and the pixels metadata of all fields are fetched in bulk. No image is opened
+ * here: the scene opens the fields when they become visible and large enough on screen.
+ */
+public class OmeroPlateOpener {
+
+    final Gateway gateway;
+    final SecurityContext ctx;
+    final long plateID;
+    // space between two fields and between two wells, relative to the size of a field
+    double fieldSpacing = 0.02;
+    double wellSpacing = 0.2;
+
+    public OmeroPlateOpener(Gateway gateway, SecurityContext ctx, long plateID) {
+        this.gateway = gateway;
+        this.ctx = ctx;
+        this.plateID = plateID;
+    }
+
+    public OmeroPlateOpener fieldSpacing(double fieldSpacing) {
+        this.fieldSpacing = fieldSpacing;
+        return this;
+    }
+
+    public OmeroPlateOpener wellSpacing(double wellSpacing) {
+        this.wellSpacing = wellSpacing;
+        return this;
+    }
+
+    /**
+     * Adds all fields of the plate to a scene
+     * @return number of fields added
+     */
+    public int addTo(OmeroLazyScene scene) throws Exception {
+        BrowseFacility browse = gateway.getFacility(BrowseFacility.class);
+        Collection<WellData> wells = browse.getWells(ctx, plateID);
+
+        // images of the fields, with their pixels
+        Map<Long, ImageData> images = new HashMap<>();
+        List<Long> missingPixels = new ArrayList<>();
+        int nFields = 0;
+        for (WellData well : wells) {
+            nFields = Math.max(nFields, well.getWellSamples().size());
+            for (WellSampleData field : well.getWellSamples()) {
+                ImageData image = field.getImage();
+                if (image.getDefaultPixels() == null) {
+                    missingPixels.add(image.getId());
+                } else {
+                    images.put(image.getId(), image);
+                }
+            }
+        }
+        if (!missingPixels.isEmpty()) {
+            // a single request for all images whose pixels are not loaded with the wells
+            for (ImageData image : browse.getImages(ctx, missingPixels)) {
+                images.put(image.getId(), image);
+            }
+        }
+        if (images.isEmpty()) return 0;
+
+        // all fields have the size of the largest field
+        double fieldX = 0;
+        double fieldY = 0;
+        for (ImageData image : images.values()) {
+            RealInterval bounds = OmeroLazyScene.getBounds(image.getDefaultPixels(), new AffineTransform3D());
+            fieldX = Math.max(fieldX, bounds.realMax(0));
+            fieldY = Math.max(fieldY, bounds.realMax(1));
+        }
+        int nFieldColumns = (int) Math.ceil(Math.sqrt(nFields));
+        int nFieldRows = (nFields + nFieldColumns - 1) / nFieldColumns;
+        double pitchX = fieldX * (1 + fieldSpacing);
+        double pitchY = fieldY * (1 + fieldSpacing);
+        double wellX = nFieldColumns * pitchX + wellSpacing * fieldX;
+        double wellY = nFieldRows * pitchY + wellSpacing * fieldY;
+
+        int nAdded = 0;
+        for (WellData well : wells) {
+            List<WellSampleData> fields = well.getWellSamples();
+            for (int f = 0; f < fields.size(); f++) {
+                ImageData image = images.get(fields.get(f).getImage().getId());
+                if (image == null) continue;
+                AffineTransform3D position = new AffineTransform3D();
+                position.translate(
+                        well.getColumn() * wellX + (f % nFieldColumns) * pitchX,
+                        well.getRow() * wellY + (f / nFieldColumns) * pitchY,
+                        0);
+                scene.add(image, position);
+                nAdded++;
+            }
+        }
+        return nAdded;
+    }
+}
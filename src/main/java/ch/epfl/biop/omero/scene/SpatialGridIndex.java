@@ -0,0 +1,110 @@
+package ch.epfl.biop.omero.scene;
+
+import net.imglib2.RealInterval;
+import net.imglib2.util.Intervals;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Uniform grid over the XY plane indexing items by their bounding box in world coordinates.
+ *
+ * Each item is stored in all grid cells its bounding box intersects, so that a query only looks at
+ * the items of the cells intersecting the queried region instead of all items.
+ * The cell size should be close to the typical size of the items.
+ */
+public class SpatialGridIndex<T> {
+
+    final double cellSize;
+    final Map<Long, List<Entry<T>>> cells = new HashMap<>();
+    int size = 0;
+
+    static class Entry<T> {
+        final RealInterval bounds;
+        final T item;
+
+        Entry(RealInterval bounds, T item) {
+            this.bounds = bounds;
+            this.item = item;
+        }
+    }
+
+    public SpatialGridIndex(double cellSize) {
+        if (!(cellSize > 0)) throw new IllegalArgumentException("Cell size should be positive : " + cellSize);
+        this.cellSize = cellSize;
+    }
+
+    public synchronized void add(RealInterval bounds, T item) {
+        Entry<T> entry = new Entry<>(bounds, item);
+        for (long gy = toCell(bounds.realMin(1)); gy <= toCell(bounds.realMax(1)); gy++) {
+            for (long gx = toCell(bounds.realMin(0)); gx <= toCell(bounds.realMax(0)); gx++) {
+                cells.computeIfAbsent(key(gx, gy), k -> new ArrayList<>()).add(entry);
+            }
+        }
+        size++;
+    }
+
+    /**
+     * @param region region of the XY plane, other dimensions are ignored
+     * @return items whose bounding box intersects the region
+     */
+    public synchronized Set<T> query(RealInterval region) {
+        Set<T> result = new LinkedHashSet<>();
+        long minX = toCell(region.realMin(0));
+        long maxX = toCell(region.realMax(0));
+        long minY = toCell(region.realMin(1));
+        long maxY = toCell(region.realMax(1));
+        // a region larger than the grid: avoid iterating over empty cells
+        if ((maxX - minX + 1) * (maxY - minY + 1) > cells.size()) {
+            for (List<Entry<T>> entries : cells.values()) {
+                collect(entries, region, result);
+            }
+        } else {
+            for (long gy = minY; gy <= maxY; gy++) {
+                for (long gx = minX; gx <= maxX; gx++) {
+                    List<Entry<T>> entries = cells.get(key(gx, gy));
+                    if (entries != null) collect(entries, region, result);
+                }
+            }
+        }
+        return result;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    static <T> void collect(List<Entry<T>> entries, RealInterval region, Set<T> result) {
+        for (Entry<T> entry : entries) {
+            if (intersectsXY(entry.bounds, region)) result.add(entry.item);
+        }
+    }
+
+    static boolean intersectsXY(RealInterval a, RealInterval b) {
+        return (a.realMin(0) <= b.realMax(0)) && (a.realMax(0) >= b.realMin(0))
+                && (a.realMin(1) <= b.realMax(1)) && (a.realMax(1) >= b.realMin(1));
+    }
+
+    long toCell(double position) {
+        return (long) Math.floor(position / cellSize);
+    }
+
+    static long key(long gx, long gy) {
+        return (gx << 32) ^ (gy & 0xffffffffL);
+    }
+
+    /**
+     * @return the smallest interval containing all the given intervals
+     */
+    public static RealInterval union(List<? extends RealInterval> intervals) {
+        RealInterval union = intervals.get(0);
+        for (RealInterval interval : intervals) {
+            union = Intervals.union(union, interval);
+        }
+        return union;
+    }
+}
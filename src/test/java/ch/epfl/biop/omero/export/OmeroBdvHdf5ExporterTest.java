@@ -0,0 +1,57 @@
+package ch.epfl.biop.omero.export;
+
+import ch.epfl.biop.omero.omerosource.OmeroSource;
+import ch.epfl.biop.omero.omerosource.OmeroSourceUnsignedShort;
+import ch.epfl.biop.omero.omerosource.SyntheticOpener;
+import ch.epfl.biop.omero.process.GaussianOperation;
+import ch.epfl.biop.omero.process.OmeroFilteredSource;
+import ch.systemsx.cisd.base.mdarray.MDShortArray;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import net.imglib2.Cursor;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import static omero.gateway.model.PixelsData.UINT16_TYPE;
+
+public class OmeroBdvHdf5ExporterTest {
+
+    @Test
+    public void filteredSourceIsExported() throws Exception {
+        SyntheticOpener opener = new SyntheticOpener(UINT16_TYPE, 80, 70, 2, 1, 1, 32, 2);
+        OmeroFilteredSource filtered = new OmeroFilteredSource(new OmeroSourceUnsignedShort(opener, 0), new GaussianOperation(1.5));
+
+        File folder = Files.createTempDirectory("bdv").toFile();
+        folder.deleteOnExit();
+        OmeroBdvHdf5Exporter exporter = new OmeroBdvHdf5Exporter(Collections.<OmeroSource<?>>singletonList(filtered))
+                .xmlFile(new File(folder, "filtered.xml"))
+                .nThreads(2);
+        exporter.export();
+        exporter.getHdf5File().deleteOnExit();
+        new File(folder, "filtered.xml").deleteOnExit();
+
+        IHDF5Reader reader = HDF5Factory.openForReading(exporter.getHdf5File());
+        try {
+            for (int level = 0; level < opener.getNLevels(); level++) {
+                MDShortArray cells = reader.int16().readMDArray(OmeroBdvHdf5Exporter.getCellsPath(0, 0, level));
+                // ZYX
+                Assert.assertArrayEquals(new int[]{opener.getSizeZ(level), opener.getSizeY(level), opener.getSizeX(level)}, cells.dimensions());
+                Cursor<FloatType> cursor = Views.flatIterable(filtered.getSource(0, level)).localizingCursor();
+                while (cursor.hasNext()) {
+                    cursor.fwd();
+                    int x = cursor.getIntPosition(0), y = cursor.getIntPosition(1), z = cursor.getIntPosition(2);
+                    Assert.assertEquals("level " + level + " pixel " + x + ", " + y + ", " + z,
+                            OmeroBdvHdf5Exporter.toShort(cursor.get().get()), cells.get(z, y, x));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package ch.epfl.biop.omero.export;
+
+import ch.epfl.biop.omero.omerosource.SyntheticOpener;
+import ch.epfl.biop.omero.process.ForegroundMask;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static omero.gateway.model.PixelsData.UINT16_TYPE;
+
+public class OmeroN5ExporterTest {
+
+    static File writeGzipBlock(byte[] data) throws Exception {
+        File file = File.createTempFile("block", ".gz");
+        file.deleteOnExit();
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(file))) {
+            out.write(data);
+        }
+        return file;
+    }
+
+    @Test
+    public void completeBlockIsKept() throws Exception {
+        byte[] data = new byte[256 * 256 * 2];
+        new Random(1).nextBytes(data);
+        File file = writeGzipBlock(data);
+
+        Assert.assertTrue(OmeroN5Exporter.isBlockComplete(file, data.length));
+        // padded border chunk
+        Assert.assertTrue(OmeroN5Exporter.isBlockComplete(file, 512 * 512 * 2, data.length));
+        Assert.assertFalse(OmeroN5Exporter.isBlockComplete(file, 512 * 512 * 2));
+    }
+
+    @Test
+    public void truncatedBlockIsWrittenAgain() throws Exception {
+        byte[] data = new byte[256 * 256 * 2];
+        new Random(2).nextBytes(data);
+        File file = writeGzipBlock(data);
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(file.length() / 2);
+        }
+
+        Assert.assertFalse(OmeroN5Exporter.isBlockComplete(file, data.length));
+    }
+
+    @Test
+    public void missingBlockIsWritten() {
+        Assert.assertFalse(OmeroN5Exporter.isBlockComplete(new File("does_not_exist", "0.0.0.0.0"), 16));
+    }
+
+    @Test
+    public void backgroundBlocksHaveTheBackgroundValue() throws Exception {
+        SyntheticOpener opener = new SyntheticOpener(UINT16_TYPE, 64, 48, 1, 1, 1, 32, 1);
+        // nothing above the threshold: all blocks are background
+        ForegroundMask mask = new ForegroundMask(opener).threshold(1000).compute();
+        long fetched = opener.getCacheMetrics().getFetchedTiles();
+
+        File folder = Files.createTempDirectory("n5").toFile();
+        OmeroN5Exporter exporter = new OmeroN5Exporter(opener).path(folder.getAbsolutePath())
+                .format(OmeroN5Exporter.Format.N5).skipBackground(mask);
+        exporter.export();
+
+        Assert.assertEquals(4, exporter.getBackgroundBlocks());
+        Assert.assertEquals(0, exporter.getWrittenBlocks());
+        Assert.assertEquals(fetched, opener.getCacheMetrics().getFetchedTiles());
+        short expected = (short) Math.round(mask.getBackgroundValue(0));
+        Assert.assertTrue(expected > 0);
+        N5FSReader n5 = new N5FSReader(folder.getAbsolutePath());
+        DatasetAttributes attributes = n5.getDatasetAttributes(OmeroN5Exporter.getDatasetPath(0));
+        // border block
+        short[] data = (short[]) n5.readBlock(OmeroN5Exporter.getDatasetPath(0), attributes, 1, 1, 0, 0, 0).getData();
+        Assert.assertEquals(32 * 16, data.length);
+        for (short value : data) {
+            Assert.assertEquals(expected, value);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package ch.epfl.biop.omero.extract;
+
+import ch.epfl.biop.omero.omerosource.SyntheticOpener;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static omero.gateway.model.PixelsData.UINT16_TYPE;
+
+public class HypercubeReaderTest {
+
+    final SyntheticOpener opener = new SyntheticOpener(UINT16_TYPE, 100, 60, 3, 2, 2, 32, 2);
+
+    static void assertContiguous(List<HypercubeReader.Chunk> chunks, long sizeInBytes, int bytesPerPixel) {
+        long position = 0;
+        for (HypercubeReader.Chunk chunk : chunks) {
+            Assert.assertEquals(position, chunk.offset);
+            position += (long) chunk.w * chunk.h * bytesPerPixel;
+        }
+        Assert.assertEquals(sizeInBytes, position);
+    }
+
+    @Test
+    public void chunksOfRowsCoverTheHypercube() {
+        HypercubeReader reader = new HypercubeReader(opener).maxChunkBytes(100 * 2 * 7);
+        int[] offset = {0, 5, 1, 0, 1};
+        int[] size = {100, 50, 2, 2, 1};
+        List<HypercubeReader.Chunk> chunks = reader.getChunks(offset, size);
+
+        for (HypercubeReader.Chunk chunk : chunks) {
+            Assert.assertEquals(100, chunk.w);
+            Assert.assertTrue(chunk.h <= 7);
+        }
+        // 50 rows in bands of 7 rows: 8 chunks per plane, 4 planes
+        Assert.assertEquals(8 * 4, chunks.size());
+        assertContiguous(chunks, reader.getSizeInBytes(offset, size), 2);
+    }
+
+    @Test
+    public void chunksOfPartsOfRowsForWideHypercubes() {
+        HypercubeReader reader = new HypercubeReader(opener).maxChunkBytes(30 * 2);
+        int[] offset = {10, 0, 0, 1, 0};
+        int[] size = {80, 3, 1, 1, 1};
+        List<HypercubeReader.Chunk> chunks = reader.getChunks(offset, size);
+
+        for (HypercubeReader.Chunk chunk : chunks) {
+            Assert.assertEquals(1, chunk.h);
+            Assert.assertTrue(chunk.w <= 30);
+        }
+        // 80 pixels in parts of 30 pixels: 3 chunks per row
+        Assert.assertEquals(3 * 3, chunks.size());
+        assertContiguous(chunks, reader.getSizeInBytes(offset, size), 2);
+    }
+
+    @Test
+    public void readIntoMatchesTheImage() throws Exception {
+        HypercubeReader reader = new HypercubeReader(opener).maxChunkBytes(1000);
+        int[] offset = {3, 4, 0, 1, 1};
+        int[] size = {40, 20, 3, 1, 1};
+        ByteBuffer buffer = ByteBuffer.allocate((int) reader.getSizeInBytes(offset, size));
+        reader.readInto(0, offset, size, buffer);
+
+        Assert.assertEquals(buffer.capacity(), buffer.position());
+        int i = 0;
+        for (int z = 0; z < size[2]; z++) {
+            for (int y = 0; y < size[1]; y++) {
+                for (int x = 0; x < size[0]; x++) {
+                    double expected = SyntheticOpener.value(0, offset[0] + x, offset[1] + y, z, 1, 1);
+                    Assert.assertEquals(expected, buffer.getShort(2 * i++) & 0xffff, 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void streamMatchesBuffer() throws Exception {
+        HypercubeReader reader = new HypercubeReader(opener).maxChunkBytes(500).nThreads(2);
+        int[] offset = {0, 0, 0, 0, 0};
+        int[] size = {50, 30, 3, 2, 2};
+        ByteBuffer buffer = ByteBuffer.allocate((int) reader.getSizeInBytes(offset, size));
+        reader.readInto(1, offset, size, buffer);
+
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        try (InputStream in = reader.openStream(1, offset, size)) {
+            byte[] b = new byte[777];
+            int n;
+            while ((n = in.read(b)) >= 0) streamed.write(b, 0, n);
+        }
+        Assert.assertArrayEquals(buffer.array(), streamed.toByteArray());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void hypercubeOutsideTheImageIsRejected() throws Exception {
+        HypercubeReader reader = new HypercubeReader(opener);
+        int[] offset = {90, 0, 0, 0, 0};
+        int[] size = {20, 10, 1, 1, 1};
+        reader.readInto(0, offset, size, ByteBuffer.allocate((int) reader.getSizeInBytes(offset, size)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void channelOutsideTheImageIsRejected() {
+        new HypercubeReader(opener).openStream(0, new int[]{0, 0, 0, 2, 0}, new int[]{10, 10, 1, 1, 1});
+    }
+
+    @Test
+    public void nothingIsFetchedForARejectedHypercube() {
+        SyntheticOpener large = new SyntheticOpener(UINT16_TYPE, 50000, 50000, 1, 1, 1, 1024, 1);
+        HypercubeReader reader = new HypercubeReader(large);
+        int[] offset = {0, 0, 0, 0, 0};
+        int[] size = {50000, 50000, 1, 1, 1};
+        try {
+            // 5 GB: beyond the positions of a ByteBuffer
+            reader.readInto(0, offset, size, ByteBuffer.allocate(16));
+            Assert.fail();
+        } catch (Exception e) {
+            Assert.assertTrue(e instanceof IllegalArgumentException);
+        }
+        Assert.assertEquals(0, large.getCacheMetrics().getFetchedTiles());
+    }
+}
@@ -0,0 +1,47 @@
+package ch.epfl.biop.omero.extract;
+
+import ch.epfl.biop.omero.omerosource.SyntheticOpener;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Intervals;
+import org.junit.Assert;
+import org.junit.Test;
+
+import static omero.gateway.model.PixelsData.UINT16_TYPE;
+
+public class RegionExtractorTest {
+
+    final SyntheticOpener opener = new SyntheticOpener(UINT16_TYPE, 100, 60, 2, 2, 2, 32, 2);
+
+    final Interval box = new FinalInterval(new long[]{10, 5, 0}, new long[]{49, 34, 1});
+
+    @Test
+    public void regionMatchesTheImage() throws Exception {
+        ArrayImg<UnsignedShortType, ?> img = new RegionExtractor(opener).extract(0, box, new int[]{1}, new int[]{0, 1});
+        Assert.assertArrayEquals(new long[]{40, 30, 2, 1, 2}, Intervals.dimensionsAsLongArray(img));
+        RandomAccess<UnsignedShortType> access = img.randomAccess();
+        access.setPosition(new long[]{3, 4, 1, 0, 1});
+        Assert.assertEquals(SyntheticOpener.value(0, 13, 9, 1, 1, 1), access.get().get(), 0);
+    }
+
+    void assertRejected(int level, int[] channels, int[] timepoints) {
+        try {
+            new RegionExtractor(opener).extract(level, box, channels, timepoints);
+            Assert.fail();
+        } catch (Exception e) {
+            Assert.assertTrue(e instanceof IllegalArgumentException);
+        }
+    }
+
+    @Test
+    public void indicesOutsideTheImageAreRejected() {
+        assertRejected(2, new int[]{0}, new int[]{0});
+        assertRejected(0, new int[]{0, 2}, new int[]{0});
+        assertRejected(0, new int[]{0}, new int[]{-1});
+        // before any tile is fetched
+        Assert.assertEquals(0, opener.getCacheMetrics().getFetchedTiles());
+    }
+}
@@ -0,0 +1,92 @@
+package ch.epfl.biop.omero.extract;
+
+import ch.epfl.biop.omero.omerosource.SyntheticOpener;
+import omero.gateway.model.MaskData;
+import omero.gateway.model.PolygonData;
+import omero.gateway.model.ROIData;
+import omero.gateway.model.RectangleData;
+import omero.gateway.model.ShapeData;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static omero.gateway.model.PixelsData.UINT16_TYPE;
+
+public class RoiMaskTest {
+
+    final SyntheticOpener opener = new SyntheticOpener(UINT16_TYPE, 64, 64, 1, 1, 1, 32, 2);
+
+    static ROIData roi(ShapeData shape) {
+        ROIData roi = new ROIData();
+        roi.addShapeData(shape);
+        return roi;
+    }
+
+    /**
+     * Mask of 8 x 4 pixels at (10, 20), a checkerboard whose pixel (0, 0) is set
+     */
+    static MaskData checkerboard() {
+        byte[] bits = new byte[4];
+        for (int j = 0; j < 4; j++) {
+            // one byte per row, most significant bit first
+            bits[j] = (byte) ((j % 2 == 0) ? 0xAA : 0x55);
+        }
+        return new MaskData(10, 20, 8, 4, bits);
+    }
+
+    @Test
+    public void maskIsRasterizedFromItsBits() {
+        RoiMask mask = new RoiMask(opener, Arrays.asList(roi(checkerboard())));
+        boolean[] inside = mask.rasterize(0, 0, 0, 64, 64, 0, 0);
+        for (int y = 0; y < 64; y++) {
+            for (int x = 0; x < 64; x++) {
+                boolean expected = (x >= 10) && (x < 18) && (y >= 20) && (y < 24) && ((x - 10 + y - 20) % 2 == 0);
+                Assert.assertEquals("pixel " + x + ", " + y, expected, inside[x + 64 * y]);
+                Assert.assertEquals(expected, mask.contains(0, x, y, 0, 0));
+            }
+        }
+    }
+
+    @Test
+    public void rasterMatchesPixelCenters() {
+        List<Point2D.Double> points = new ArrayList<>();
+        points.add(new Point2D.Double(2.3, 5.1));
+        points.add(new Point2D.Double(50.7, 12.4));
+        points.add(new Point2D.Double(30.2, 60.9));
+        List<ROIData> rois = new ArrayList<>();
+        rois.add(roi(new PolygonData(points)));
+        rois.add(roi(new RectangleData(40.5, 35.2, 20.1, 7.6)));
+        RoiMask mask = new RoiMask(opener, rois);
+        Assert.assertEquals(2, mask.getNShapes());
+
+        for (int level = 0; level < 2; level++) {
+            int sizeX = opener.getSizeX(level);
+            int sizeY = opener.getSizeY(level);
+            // a rectangle across several cells of the index
+            boolean[] inside = mask.rasterize(level, 1, 3, sizeX - 1, sizeY - 3, 0, 0);
+            int nInside = 0;
+            for (int y = 3; y < sizeY; y++) {
+                for (int x = 1; x < sizeX; x++) {
+                    boolean expected = mask.contains(level, x, y, 0, 0);
+                    Assert.assertEquals("level " + level + " pixel " + x + ", " + y,
+                            expected, inside[(x - 1) + (sizeX - 1) * (y - 3)]);
+                    if (expected) nInside++;
+                }
+            }
+            Assert.assertTrue(nInside > 0);
+        }
+    }
+
+    @Test
+    public void nothingOutsideTheShapes() {
+        RoiMask mask = new RoiMask(opener, Arrays.asList(roi(new RectangleData(0, 0, 10, 10))));
+        for (boolean inside : mask.rasterize(0, 32, 32, 32, 32, 0, 0)) {
+            Assert.assertFalse(inside);
+        }
+        Assert.assertEquals(1, mask.getTiles(0, 0, 0).size());
+    }
+}
@@ -0,0 +1,65 @@
+package ch.epfl.biop.omero.omerosource;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.List;
+
+public class ConstantTileRegistryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recordedTilesAreLoadedAgain() throws Exception {
+        File file = new File(folder.getRoot(), "registry/constant_tiles_1.txt");
+        ConstantTileRegistry registry = new ConstantTileRegistry(file);
+        registry.record(2, 0, 1, 0, 512, 1024, 0);
+        registry.record(0, 3, 0, 1, 0, 0, 255.5);
+        // already known: not written twice
+        registry.record(2, 0, 1, 0, 512, 1024, 0);
+        Assert.assertEquals(2, Files.readAllLines(file.toPath()).size());
+
+        ConstantTileRegistry loaded = new ConstantTileRegistry(file);
+        Assert.assertEquals(2, loaded.size());
+        Assert.assertEquals(0, loaded.get(2, 0, 1, 0, 512, 1024), 0);
+        Assert.assertEquals(255.5, loaded.get(0, 3, 0, 1, 0, 0), 0);
+        Assert.assertNull(loaded.get(2, 0, 1, 0, 0, 1024));
+    }
+
+    @Test
+    public void truncatedLineIsIgnored() throws Exception {
+        File file = folder.newFile("constant_tiles_2.txt");
+        try (Writer writer = new FileWriter(file)) {
+            writer.write("0 0 0 0 0 0 12.5" + System.lineSeparator());
+            writer.write("0 0 0 0 512" + System.lineSeparator());
+            // cut while writing 1234.0: all the fields are there but the value is wrong
+            writer.write("1 0 0 0 0 0 12");
+        }
+        ConstantTileRegistry registry = new ConstantTileRegistry(file);
+        Assert.assertEquals(1, registry.size());
+        Assert.assertEquals(12.5, registry.get(0, 0, 0, 0, 0, 0), 0);
+        Assert.assertNull(registry.get(1, 0, 0, 0, 0, 0));
+
+        // the next line is not merged with the cut one
+        registry.record(1, 0, 0, 0, 0, 0, 1234);
+        List<String> lines = Files.readAllLines(file.toPath());
+        Assert.assertEquals("1 0 0 0 0 0 1234.0", lines.get(lines.size() - 1));
+        ConstantTileRegistry loaded = new ConstantTileRegistry(file);
+        Assert.assertEquals(2, loaded.size());
+        Assert.assertEquals(1234, loaded.get(1, 0, 0, 0, 0, 0), 0);
+    }
+
+    @Test
+    public void memoryOnlyRegistry() {
+        ConstantTileRegistry registry = new ConstantTileRegistry();
+        registry.record(0, 0, 0, 0, 0, 0, 7);
+        Assert.assertEquals(7, registry.get(0, 0, 0, 0, 0, 0), 0);
+    }
+}
@@ -0,0 +1,92 @@
+package ch.epfl.biop.omero.omerosource;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+import org.junit.Assert;
+import org.junit.Test;
+
+import static omero.gateway.model.PixelsData.UINT16_TYPE;
+
+public class OmeroSourceTest {
+
+    @Test
+    public void constantArraysHaveAKey() {
+        Assert.assertNotNull(OmeroSource.getConstantKey(new byte[]{3, 3, 3}));
+        Assert.assertNotNull(OmeroSource.getConstantKey(new short[]{-1, -1}));
+        Assert.assertNotNull(OmeroSource.getConstantKey(new int[]{7}));
+        Assert.assertNotNull(OmeroSource.getConstantKey(new long[]{0, 0}));
+        Assert.assertNotNull(OmeroSource.getConstantKey(new double[]{0.5, 0.5}));
+        // NaN cells are constant too
+        Assert.assertNotNull(OmeroSource.getConstantKey(new float[]{Float.NaN, Float.NaN}));
+    }
+
+    @Test
+    public void variableArraysHaveNoKey() {
+        Assert.assertNull(OmeroSource.getConstantKey(new byte[]{3, 3, 4}));
+        Assert.assertNull(OmeroSource.getConstantKey(new short[]{0, 1}));
+        Assert.assertNull(OmeroSource.getConstantKey(new int[]{7, 7, 7, 8}));
+        Assert.assertNull(OmeroSource.getConstantKey(new float[]{1, Float.NaN}));
+        Assert.assertNull(OmeroSource.getConstantKey(new double[]{0.0, -0.0}));
+        Assert.assertNull(OmeroSource.getConstantKey(new byte[0]));
+        Assert.assertNull(OmeroSource.getConstantKey(new Object()));
+    }
+
+    @Test
+    public void keysIdentifyTypeLengthAndValue() {
+        String key = OmeroSource.getConstantKey(new short[]{5, 5, 5});
+        Assert.assertEquals(key, OmeroSource.getConstantKey(new short[]{5, 5, 5}));
+        Assert.assertNotEquals(key, OmeroSource.getConstantKey(new short[]{5, 5}));
+        Assert.assertNotEquals(key, OmeroSource.getConstantKey(new short[]{6, 6, 6}));
+        Assert.assertNotEquals(key, OmeroSource.getConstantKey(new int[]{5, 5, 5}));
+        Assert.assertNotEquals(OmeroSource.getConstantKey(new double[]{0.0}), OmeroSource.getConstantKey(new double[]{-0.0}));
+    }
+
+    static void readAll(RandomAccessibleInterval<UnsignedShortType> img) {
+        for (UnsignedShortType value : Views.flatIterable(img)) value.get();
+    }
+
+    @Test
+    public void coarseLevelIsDerivedFromCachedFinerLevel() throws Exception {
+        SyntheticOpener opener = new SyntheticOpener(UINT16_TYPE, 64, 64, 1, 1, 1, 32, 2);
+        opener.deriveCoarseLevels();
+        OmeroSourceUnsignedShort source = new OmeroSourceUnsignedShort(opener, 0);
+
+        readAll(source.getSource(0, 0));
+        long fetched = opener.getCacheMetrics().getFetchedTiles();
+        Assert.assertTrue(fetched > 0);
+
+        Cursor<UnsignedShortType> cursor = Views.flatIterable(source.getSource(0, 1)).localizingCursor();
+        while (cursor.hasNext()) {
+            cursor.fwd();
+            int x = cursor.getIntPosition(0);
+            int y = cursor.getIntPosition(1);
+            double sum = 0;
+            for (int j = 0; j < 2; j++) {
+                for (int i = 0; i < 2; i++) {
+                    sum += SyntheticOpener.value(0, 2 * x + i, 2 * y + j, 0, 0, 0);
+                }
+            }
+            Assert.assertEquals("pixel " + x + ", " + y, Math.round(sum / 4), cursor.get().get());
+        }
+        Assert.assertEquals(fetched, opener.getCacheMetrics().getFetchedTiles());
+        Assert.assertTrue(opener.getCacheMetrics().getDerivedTiles() > 0);
+    }
+
+    @Test
+    public void coarseLevelIsFetchedByDefault() throws Exception {
+        SyntheticOpener opener = new SyntheticOpener(UINT16_TYPE, 64, 64, 1, 1, 1, 32, 2);
+        OmeroSourceUnsignedShort source = new OmeroSourceUnsignedShort(opener, 0);
+
+        readAll(source.getSource(0, 0));
+        // the same values whatever is in the cache
+        Cursor<UnsignedShortType> cursor = Views.flatIterable(source.getSource(0, 1)).localizingCursor();
+        while (cursor.hasNext()) {
+            cursor.fwd();
+            double expected = SyntheticOpener.value(1, cursor.getIntPosition(0), cursor.getIntPosition(1), 0, 0, 0);
+            Assert.assertEquals(expected, cursor.get().get(), 0);
+        }
+        Assert.assertEquals(0, opener.getCacheMetrics().getDerivedTiles());
+    }
+}
@@ -0,0 +1,51 @@
+package ch.epfl.biop.omero.omerosource;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class QuantizerTest {
+
+    @Test
+    public void halfPrecisionValuesAreExact() {
+        // integers up to 2048, powers of 2, subnormal halves
+        float[] values = {0, 1, -1, 0.5f, 2048, -2048, 65504, (float) Math.pow(2, -14), (float) Math.pow(2, -24), 0.099975586f};
+        for (float value : values) {
+            Assert.assertEquals(value, Quantizer.halfToFloat(Quantizer.floatToHalf(value)), 0);
+        }
+    }
+
+    @Test
+    public void allHalvesRoundTrip() {
+        for (int half = 0; half < 0x10000; half++) {
+            float value = Quantizer.halfToFloat(half);
+            if (Float.isNaN(value)) {
+                Assert.assertTrue(Float.isNaN(Quantizer.halfToFloat(Quantizer.floatToHalf(value))));
+            } else {
+                Assert.assertEquals("half " + Integer.toHexString(half), half, Quantizer.floatToHalf(value));
+            }
+        }
+    }
+
+    @Test
+    public void floatsAreRoundedToTheNearestHalf() {
+        for (float value = -70000; value < 70000; value += 0.37f) {
+            float rounded = Quantizer.halfToFloat(Quantizer.floatToHalf(value));
+            if (Math.abs(value) >= 65520) {
+                Assert.assertTrue(Float.isInfinite(rounded));
+                continue;
+            }
+            // relative error of half precision: 2^-11
+            Assert.assertEquals(value, rounded, Math.max(Math.abs(value) * Math.pow(2, -11), Math.pow(2, -25)));
+        }
+        Assert.assertTrue(Float.isInfinite(Quantizer.halfToFloat(Quantizer.floatToHalf(Float.POSITIVE_INFINITY))));
+        Assert.assertTrue(Float.isNaN(Quantizer.halfToFloat(Quantizer.floatToHalf(Float.NaN))));
+    }
+
+    @Test
+    public void byteQuantizationIsClamped() {
+        Quantizer quantizer = Quantizer.toByte(100, 355);
+        Assert.assertEquals(0, quantizer.quantize(50));
+        Assert.assertEquals(255, quantizer.quantize(1000));
+        Assert.assertEquals(200, quantizer.toValue(quantizer.quantize(200)), 0);
+    }
+}
@@ -0,0 +1,89 @@
+package ch.epfl.biop.omero.omerosource;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+import static omero.gateway.model.PixelsData.*;
+
+/**
+ * Opener of an image which only exists in memory, for the tests which do not need a server:
+ * tiles are generated from {@link #value(int, int, int, int, int, int)}, the size of each level is half
+ * the size of the finer level.
+ */
+public class SyntheticOpener extends OmeroSourceOpener {
+
+    public SyntheticOpener(String pixelType, int sizeX, int sizeY, int sizeZ, int sizeC, int sizeT, int tileSize, int nLevels) {
+        this.pixelType = pixelType;
+        this.sizeC = sizeC;
+        this.sizeT = sizeT;
+        this.nLevels = nLevels;
+        this.psizeX = 1;
+        this.psizeY = 1;
+        this.psizeZ = 1;
+        this.imageSize = new HashMap<>();
+        this.tileSize = new HashMap<>();
+        for (int level = 0; level < nLevels; level++) {
+            imageSize.put(level, new int[]{Math.max(1, sizeX >> level), Math.max(1, sizeY >> level), sizeZ});
+            tileSize.put(level, new int[]{tileSize, tileSize});
+        }
+        // no rendering settings to read from the server
+        quantizationWindows = new double[sizeC][];
+        for (int c = 0; c < sizeC; c++) {
+            quantizationWindows[c] = new double[]{0, 255};
+        }
+    }
+
+    /**
+     * Window of values mapped to 8 bits in the quantized levels of all channels
+     */
+    public SyntheticOpener quantizationWindow(double min, double max) {
+        for (int c = 0; c < sizeC; c++) {
+            quantizationWindows[c] = new double[]{min, max};
+        }
+        return this;
+    }
+
+    /**
+     * @return value of a pixel, between 0 and 250 so that it fits all pixel types
+     */
+    public static double value(int level, int x, int y, int z, int c, int t) {
+        return (x + 3 * y + 5 * z + 7 * c + 11 * t + 13 * level) % 251;
+    }
+
+    @Override
+    public byte[] getTile(int level, int z, int c, int t, int x, int y, int w, int h) {
+        if ((x < 0) || (y < 0) || (x + w > getSizeX(level)) || (y + h > getSizeY(level))
+                || (z < 0) || (z >= getSizeZ(level)) || (c < 0) || (c >= sizeC) || (t < 0) || (t >= sizeT)) {
+            throw new IllegalArgumentException("Tile out of the image");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(w * h * TileDecoder.getBytesPerPixel(pixelType));
+        for (int j = 0; j < h; j++) {
+            for (int i = 0; i < w; i++) {
+                put(buffer, value(level, x + i, y + j, z, c, t));
+            }
+        }
+        metrics.fetchedTiles.incrementAndGet();
+        metrics.fetchedBytes.addAndGet(buffer.capacity());
+        return buffer.array();
+    }
+
+    void put(ByteBuffer buffer, double v) {
+        switch (pixelType) {
+            case INT8_TYPE:
+            case UINT8_TYPE: buffer.put((byte) v);
+                break;
+            case INT16_TYPE:
+            case UINT16_TYPE: buffer.putShort((short) v);
+                break;
+            case INT32_TYPE:
+            case UINT32_TYPE: buffer.putInt((int) v);
+                break;
+            case FLOAT_TYPE: buffer.putFloat((float) v);
+                break;
+            case DOUBLE_TYPE: buffer.putDouble(v);
+                break;
+            default:
+                throw new IllegalStateException("Unsupported pixel type : " + pixelType);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package ch.epfl.biop.omero.omerosource;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.type.numeric.RealType;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static omero.gateway.model.PixelsData.*;
+
+public class TileDecoderTest {
+
+    static final String[] PIXEL_TYPES = {INT8_TYPE, UINT8_TYPE, INT16_TYPE, UINT16_TYPE,
+            INT32_TYPE, UINT32_TYPE, FLOAT_TYPE, DOUBLE_TYPE};
+
+    /**
+     * @return values which use the sign or the full range of each type
+     */
+    static double[] getValues(String pixelType) {
+        switch (pixelType) {
+            case INT8_TYPE: return new double[]{-128, -1, 0, 127};
+            case UINT8_TYPE: return new double[]{0, 1, 128, 255};
+            case INT16_TYPE: return new double[]{-32768, -1, 0, 32767};
+            case UINT16_TYPE: return new double[]{0, 1, 32768, 65535};
+            case INT32_TYPE: return new double[]{Integer.MIN_VALUE, -1, 0, Integer.MAX_VALUE};
+            case UINT32_TYPE: return new double[]{0, 1, 2147483648.0, 4294967295.0};
+            case FLOAT_TYPE: return new double[]{-1.5, 0, 0.25, 4294967296.0};
+            default: return new double[]{-1.5, 0, 0.1, 1.0e300};
+        }
+    }
+
+    /**
+     * @return raw bytes in big endian, as sent by the server
+     */
+    static byte[] encode(double[] values, String pixelType) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * TileDecoder.getBytesPerPixel(pixelType));
+        for (double v : values) {
+            switch (pixelType) {
+                case INT8_TYPE:
+                case UINT8_TYPE: buffer.put((byte) (long) v);
+                    break;
+                case INT16_TYPE:
+                case UINT16_TYPE: buffer.putShort((short) (long) v);
+                    break;
+                case INT32_TYPE:
+                case UINT32_TYPE: buffer.putInt((int) (long) v);
+                    break;
+                case FLOAT_TYPE: buffer.putFloat((float) v);
+                    break;
+                default: buffer.putDouble(v);
+            }
+        }
+        return buffer.array();
+    }
+
+    @Test
+    public void getValueDecodesAllTypes() {
+        for (String pixelType : PIXEL_TYPES) {
+            double[] values = getValues(pixelType);
+            ByteBuffer buffer = ByteBuffer.wrap(encode(values, pixelType));
+            for (int i = 0; i < values.length; i++) {
+                Assert.assertEquals(pixelType, values[i], TileDecoder.getValue(buffer, pixelType, i), 0);
+            }
+        }
+    }
+
+    @Test
+    public void toImgMatchesGetValue() {
+        for (String pixelType : PIXEL_TYPES) {
+            double[] values = getValues(pixelType);
+            byte[] bytes = encode(values, pixelType);
+            ArrayImg<? extends RealType<?>, ?> img = TileDecoder.toImg(bytes, pixelType, 2, 2);
+            Assert.assertEquals(TileDecoder.createType(pixelType).getClass(), img.firstElement().getClass());
+            Cursor<? extends RealType<?>> cursor = img.cursor();
+            for (double value : values) {
+                Assert.assertEquals(pixelType, value, cursor.next().getRealDouble(), 0);
+            }
+        }
+    }
+
+    @Test
+    public void copyWritesIntoTheStorageArray() {
+        for (String pixelType : PIXEL_TYPES) {
+            double[] values = getValues(pixelType);
+            byte[] bytes = encode(values, pixelType);
+            ArrayImg<? extends RealType<?>, ?> img = TileDecoder.createImg(pixelType, 3, 2);
+            // the last 3 pixels of the bytes, into the second row of the image
+            TileDecoder.copy(bytes, 1, TileDecoder.getStorageArray(img), 3, 3, pixelType);
+            Cursor<? extends RealType<?>> cursor = img.cursor();
+            for (int i = 0; i < 3; i++) Assert.assertEquals(0, cursor.next().getRealDouble(), 0);
+            for (int i = 1; i < 4; i++) Assert.assertEquals(pixelType, values[i], cursor.next().getRealDouble(), 0);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void unsupportedType() {
+        TileDecoder.getBytesPerPixel("bit");
+    }
+}
@@ -0,0 +1,72 @@
+package ch.epfl.biop.omero.process;
+
+import ch.epfl.biop.omero.omerosource.SyntheticOpener;
+import org.junit.Assert;
+import org.junit.Test;
+
+import static omero.gateway.model.PixelsData.UINT16_TYPE;
+
+public class ForegroundMaskTest {
+
+    @Test
+    public void otsuSeparatesTwoModes() {
+        float[] values = new float[1000];
+        for (int i = 0; i < values.length; i++) {
+            // background around 10, a third of foreground around 200
+            values[i] = (i % 3 == 0) ? 200 + (i % 7) : 10 + (i % 5);
+        }
+        double threshold = ForegroundMask.getOtsuThreshold(values);
+        Assert.assertTrue(threshold > 14);
+        Assert.assertTrue(threshold <= 200);
+    }
+
+    @Test
+    public void otsuOfAConstantImageIsItsValue() {
+        Assert.assertEquals(42, ForegroundMask.getOtsuThreshold(new float[]{42, 42, 42}), 0);
+    }
+
+    @Test
+    public void dilationIsASquare() {
+        int sizeX = 7, sizeY = 5;
+        boolean[] mask = new boolean[sizeX * sizeY];
+        mask[3 + sizeX * 2] = true;
+        // on the border
+        mask[0] = true;
+        boolean[] dilated = ForegroundMask.dilate(mask, sizeX, sizeY, 1);
+        for (int y = 0; y < sizeY; y++) {
+            for (int x = 0; x < sizeX; x++) {
+                boolean expected = ((Math.abs(x - 3) <= 1) && (Math.abs(y - 2) <= 1)) || ((x <= 1) && (y <= 1));
+                Assert.assertEquals("pixel " + x + ", " + y, expected, dilated[x + sizeX * y]);
+            }
+        }
+    }
+
+    @Test
+    public void noDilation() {
+        boolean[] mask = new boolean[]{false, true, false, false};
+        Assert.assertArrayEquals(mask, ForegroundMask.dilate(mask, 2, 2, 0));
+    }
+
+    @Test
+    public void backgroundValueIsTheMeanOutsideTheMask() throws Exception {
+        SyntheticOpener opener = new SyntheticOpener(UINT16_TYPE, 40, 30, 2, 2, 1, 32, 1);
+        ForegroundMask mask = new ForegroundMask(opener).channel(0).threshold(100).dilation(0).compute();
+        for (int c = 0; c < 2; c++) {
+            double sum = 0;
+            int n = 0;
+            for (int y = 0; y < 30; y++) {
+                for (int x = 0; x < 40; x++) {
+                    // bright foreground: the maximum of the z planes of channel 0 is above the threshold
+                    double projection = Math.max(SyntheticOpener.value(0, x, y, 0, 0, 0), SyntheticOpener.value(0, x, y, 1, 0, 0));
+                    if (projection > 100) continue;
+                    for (int z = 0; z < 2; z++) {
+                        sum += SyntheticOpener.value(0, x, y, z, c, 0);
+                        n++;
+                    }
+                }
+            }
+            Assert.assertTrue(n > 0);
+            Assert.assertEquals(sum / n, mask.getBackgroundValue(c), 1e-9);
+        }
+    }
+}
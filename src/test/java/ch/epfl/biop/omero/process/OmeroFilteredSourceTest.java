@@ -0,0 +1,54 @@
+package ch.epfl.biop.omero.process;
+
+import ch.epfl.biop.omero.omerosource.OmeroSourceUnsignedShort;
+import ch.epfl.biop.omero.omerosource.SyntheticOpener;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Iterator;
+
+import static omero.gateway.model.PixelsData.UINT16_TYPE;
+
+public class OmeroFilteredSourceTest {
+
+    static SyntheticOpener createOpener() {
+        // values up to 250 mapped to 8 bits between 0 and 1000: quantization loses precision
+        return new SyntheticOpener(UINT16_TYPE, 80, 70, 2, 1, 1, 32, 2).quantizationWindow(0, 1000);
+    }
+
+    static boolean sameValues(RandomAccessibleInterval<? extends RealType<?>> a, RandomAccessibleInterval<? extends RealType<?>> b) {
+        Iterator<? extends RealType<?>> ia = Views.flatIterable(a).iterator();
+        Iterator<? extends RealType<?>> ib = Views.flatIterable(b).iterator();
+        while (ia.hasNext()) {
+            if (ia.next().getRealDouble() != ib.next().getRealDouble()) return false;
+        }
+        return true;
+    }
+
+    @Test
+    public void filteredValuesDoNotDependOnQuantizedLevels() throws Exception {
+        SyntheticOpener opener = createOpener();
+        SyntheticOpener quantizedOpener = createOpener();
+        quantizedOpener.quantizedLevels(0, 1);
+
+        OmeroSourceUnsignedShort source = new OmeroSourceUnsignedShort(opener, 0);
+        OmeroSourceUnsignedShort quantizedSource = new OmeroSourceUnsignedShort(quantizedOpener, 0);
+        OmeroFilteredSource filtered = new OmeroFilteredSource(source, new GaussianOperation(1.5));
+        OmeroFilteredSource quantizedFiltered = new OmeroFilteredSource(quantizedSource, new GaussianOperation(1.5));
+
+        for (int level = 0; level < 2; level++) {
+            // the displayed source is quantized
+            Assert.assertNotNull(quantizedSource.getQuantizedImage(0, level));
+            Assert.assertFalse(sameValues(source.getSource(0, level), quantizedSource.getSource(0, level)));
+            // but not the filtered one, nor its input
+            Assert.assertNull(quantizedFiltered.getQuantizedImage(0, level));
+            RandomAccessibleInterval<FloatType> expected = filtered.getSource(0, level);
+            RandomAccessibleInterval<FloatType> actual = quantizedFiltered.getSource(0, level);
+            Assert.assertTrue("level " + level, sameValues(expected, actual));
+        }
+    }
+}
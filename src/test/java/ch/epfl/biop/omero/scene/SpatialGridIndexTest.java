@@ -0,0 +1,72 @@
+package ch.epfl.biop.omero.scene;
+
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+public class SpatialGridIndexTest {
+
+    static RealInterval box(double minX, double minY, double maxX, double maxY) {
+        return new FinalRealInterval(new double[]{minX, minY}, new double[]{maxX, maxY});
+    }
+
+    @Test
+    public void queryFindsTheIntersectingItems() {
+        SpatialGridIndex<String> index = new SpatialGridIndex<>(10);
+        index.add(box(0, 0, 5, 5), "small");
+        // spans several cells
+        index.add(box(8, 8, 35, 12), "wide");
+        // negative coordinates
+        index.add(box(-25, -25, -15, -15), "negative");
+        Assert.assertEquals(3, index.size());
+
+        Assert.assertEquals(setOf("small"), index.query(box(1, 1, 2, 2)));
+        Assert.assertEquals(setOf("small", "wide"), index.query(box(4, 4, 9, 9)));
+        Assert.assertEquals(setOf("wide"), index.query(box(30, 10, 30, 10)));
+        Assert.assertEquals(setOf("negative"), index.query(box(-16, -16, -1, -1)));
+        // same cell as "small", but outside of its bounds
+        Assert.assertEquals(setOf(), index.query(box(6, 0, 7, 2)));
+        // larger than the grid
+        Assert.assertEquals(setOf("small", "wide", "negative"), index.query(box(-1e6, -1e6, 1e6, 1e6)));
+    }
+
+    @Test
+    public void queryMatchesBruteForce() {
+        Random random = new Random(42);
+        SpatialGridIndex<Integer> index = new SpatialGridIndex<>(7.5);
+        RealInterval[] boxes = new RealInterval[500];
+        for (int i = 0; i < boxes.length; i++) {
+            double x = random.nextDouble() * 200 - 100;
+            double y = random.nextDouble() * 200 - 100;
+            boxes[i] = box(x, y, x + random.nextDouble() * 20, y + random.nextDouble() * 20);
+            index.add(boxes[i], i);
+        }
+        for (int q = 0; q < 200; q++) {
+            double x = random.nextDouble() * 240 - 120;
+            double y = random.nextDouble() * 240 - 120;
+            RealInterval region = box(x, y, x + random.nextDouble() * 50, y + random.nextDouble() * 50);
+            Set<Integer> expected = new HashSet<>();
+            for (int i = 0; i < boxes.length; i++) {
+                if (SpatialGridIndex.intersectsXY(boxes[i], region)) expected.add(i);
+            }
+            Assert.assertEquals(expected, new HashSet<>(index.query(region)));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroCellSizeIsRejected() {
+        new SpatialGridIndex<String>(0);
+    }
+
+    @SafeVarargs
+    static <T> Set<T> setOf(T... items) {
+        Set<T> set = new HashSet<>();
+        for (T item : items) set.add(item);
+        return set;
+    }
+}